@@ -0,0 +1,53 @@
+import java.net.DatagramPacket;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the per-packet cost of the 8-bit additive checksum with CRC32C on
+ * WIDE packets, encoding and verifying each packet as the sender and receiver
+ * do, from legacy-sized payloads up to the largest loopback datagram.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChecksumBenchmark {
+    @Param({ "124", "1400", "8192", "65495" })
+    public int payloadSize;
+
+    @Param({ "additive", "crc32c" })
+    public String checksum;
+
+    private byte[] packet;
+    private DatagramPacket datagram;
+    private int flags;
+    private long sequenceNumber;
+
+    @Setup
+    public void setUp() {
+        packet = new byte[PacketFormat.WIDE.getHeaderSize() + payloadSize];
+        new Random(payloadSize).nextBytes(packet);
+        datagram = new DatagramPacket(packet, packet.length);
+        flags = checksum.equals("crc32c") ? PacketFormat.FLAG_CRC32C : 0;
+    }
+
+    @Benchmark
+    public boolean encodeAndVerify() {
+        datagram.setLength(PacketFormat.WIDE.encode(packet, sequenceNumber++, flags, payloadSize));
+        return PacketFormat.WIDE.isCorrupt(datagram);
+    }
+}
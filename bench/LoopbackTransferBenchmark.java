@@ -0,0 +1,113 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A whole GoBackN transfer between a sender and a receiver in the same JVM
+ * over loopback, without process start-up in the numbers. One operation is
+ * one 8 MB file; divide to get throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class LoopbackTransferBenchmark {
+    private static final int FILE_SIZE = 8 * 1024 * 1024;
+    private static final int RECEIVER_PORT = 47000;
+    private static final int SENDER_PORT = 47001;
+
+    @Param({ "16", "128", "1024" })
+    public int windowSize;
+
+    @Param({ "1400", "8192" })
+    public int payloadSize;
+
+    private File input;
+    private File output;
+    private ExecutorService receiverThread;
+
+    private FileChannel outputChannel;
+    private Future<?> receiving;
+
+    @Setup(Level.Trial)
+    public void createFile() throws IOException {
+        input = File.createTempFile("gbn-bench", ".in");
+        output = File.createTempFile("gbn-bench", ".out");
+
+        byte[] contents = new byte[FILE_SIZE];
+        new Random(FILE_SIZE).nextBytes(contents);
+        try (FileOutputStream fos = new FileOutputStream(input)) {
+            fos.write(contents);
+        }
+
+        receiverThread = Executors.newSingleThreadExecutor();
+    }
+
+    @Setup(Level.Invocation)
+    public void startReceiver() throws IOException {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        GoBackNReceiver receiver = new GoBackNReceiver(loopback, SENDER_PORT, RECEIVER_PORT);
+        receiver.setPacketFormat(PacketFormat.WIDE);
+        receiver.setLingerMillis(0);
+        receiver.bind();
+
+        outputChannel = FileChannel.open(output.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        receiving = receiverThread.submit(() -> {
+            receiver.receive(outputChannel, 0);
+            return null;
+        });
+    }
+
+    @Benchmark
+    public void transfer() throws Exception {
+        GoBackNSender sender = new GoBackNSender(InetAddress.getLoopbackAddress(), RECEIVER_PORT, SENDER_PORT, windowSize);
+        sender.setPacketFormat(PacketFormat.WIDE);
+        sender.setPayloadSize(payloadSize);
+        sender.setQuiet(true);
+        try {
+            sender.sendFile(input.getPath());
+        } finally {
+            sender.close();
+        }
+        receiving.get();
+    }
+
+    @TearDown(Level.Invocation)
+    public void stopReceiver() throws IOException {
+        outputChannel.close();
+        if (output.length() != FILE_SIZE) {
+            throw new IllegalStateException("Received " + output.length() + " of " + FILE_SIZE + " bytes");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() {
+        receiverThread.shutdownNow();
+        input.delete();
+        output.delete();
+    }
+}
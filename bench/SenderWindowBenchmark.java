@@ -0,0 +1,49 @@
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The sender's window check, run once per packet built and per ack.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SenderWindowBenchmark {
+    @Param({ "16", "128", "4096" })
+    public int windowSize;
+
+    private GoBackNSender sender;
+    private long value;
+
+    @Setup
+    public void setUp() {
+        sender = new GoBackNSender(InetAddress.getLoopbackAddress(), 0, 0, windowSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        sender.close();
+    }
+
+    @Benchmark
+    public boolean isInWindow() {
+        // walk in and out of the window so the branch is not always taken
+        value = (value + 1) % (2L * windowSize);
+        return sender.isInWindow(value);
+    }
+}
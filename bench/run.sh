@@ -0,0 +1,30 @@
+#!/bin/sh
+# Builds the JMH benchmarks in bench/ together with src/ and runs them.
+#
+# JMH_CLASSPATH must list jmh-core, jmh-generator-annprocess and their
+# dependencies (jopt-simple, commons-math3), e.g. the jars from ~/.m2.
+# Any arguments go to JMH, e.g.:
+#
+#   bench/run.sh PacketCodecBenchmark -p packet=wide-1400
+#   bench/run.sh -rf csv -rff bench.csv
+#
+# JMH refuses benchmarks in the default package, so both are copied into
+# the gobackn package to compile; the sources themselves stay flat.
+
+set -e
+
+if [ -z "$JMH_CLASSPATH" ]; then
+    echo "Set JMH_CLASSPATH to the JMH jars" >&2
+    exit 1
+fi
+
+cd "$(dirname "$0")/.."
+rm -rf bench/out
+mkdir -p bench/out/src bench/out/classes
+
+for f in src/*.java bench/*.java; do
+    { echo "package gobackn;"; cat "$f"; } > "bench/out/src/$(basename "$f")"
+done
+
+javac -cp "$JMH_CLASSPATH" -d bench/out/classes bench/out/src/*.java
+java -cp "bench/out/classes:$JMH_CLASSPATH" org.openjdk.jmh.Main "$@"
@@ -0,0 +1,61 @@
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures heap allocation of the current thread, used to check that the
+ * per-packet path stays allocation-free once a transfer is running.
+ */
+public class AllocationCounter {
+    private static final com.sun.management.ThreadMXBean THREADS = threadBean();
+
+    private final long start;
+    private long packets;
+
+    public AllocationCounter() {
+        start = currentThreadAllocatedBytes();
+    }
+
+    public void countPacket() {
+        packets++;
+    }
+
+    public long getPackets() {
+        return packets;
+    }
+
+    /**
+     * @return bytes allocated by this thread since construction, or -1 if the
+     * JVM cannot measure it
+     */
+    public long getAllocatedBytes() {
+        long now = currentThreadAllocatedBytes();
+        return start < 0 || now < 0 ? -1 : now - start;
+    }
+
+    public String summary() {
+        long bytes = getAllocatedBytes();
+        if (bytes < 0) {
+            return "unavailable";
+        }
+        return bytes + " bytes over " + packets + " packets (" + (packets == 0 ? 0 : bytes / packets) + " bytes/packet)";
+    }
+
+    private static long currentThreadAllocatedBytes() {
+        if (THREADS == null) {
+            return -1;
+        }
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+        return threads;
+    }
+}
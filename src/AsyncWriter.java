@@ -0,0 +1,254 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes received data on its own thread, so that a slow disk holds the
+ * receiver up only once every buffer is full instead of on every packet.
+ * Payloads are copied into large chunks, each written out in one call: at
+ * its own position in a file, which other flows may share, or in order to
+ * any other channel. A file can also be forced to disk periodically.
+ */
+public class AsyncWriter implements Closeable {
+    // asks the writer thread to finish
+    private static final Chunk STOP = new Chunk(0);
+
+    // only changed by setChannel once everything before is written
+    private volatile WritableByteChannel channel;
+    private volatile FileChannel file;
+    private final long syncNanos;
+    private final int chunkSize;
+
+    private final BlockingQueue<Chunk> free;
+    private final BlockingQueue<Chunk> full;
+    private final Thread writer;
+    private volatile IOException failure;
+
+    // being filled by the receiving thread
+    private Chunk current;
+    // chunks handed over and not yet written, guarded by this
+    private int pending;
+
+    private long waits;
+    private volatile long writes;
+
+    public AsyncWriter(WritableByteChannel channel, int chunkSize, int chunks, long syncMillis) {
+        this.channel = channel;
+        this.file = channel instanceof FileChannel ? (FileChannel) channel : null;
+        this.syncNanos = TimeUnit.MILLISECONDS.toNanos(syncMillis);
+        this.chunkSize = chunkSize;
+        free = new ArrayBlockingQueue<>(chunks);
+        full = new ArrayBlockingQueue<>(chunks + 1);
+        for (int i = 0; i < chunks; i++) {
+            free.add(new Chunk(chunkSize));
+        }
+
+        writer = new Thread(this::run, "async-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Copies {@code data} to be written at {@code position}, which is
+     * ignored for channels other than files. Waits only if every chunk is
+     * full.
+     */
+    public void write(ByteBuffer data, long position) throws IOException {
+        checkFailure();
+        while (data.hasRemaining()) {
+            if (current != null && (!current.buffer.hasRemaining()
+                    || file != null && current.position + current.buffer.position() != position)) {
+                handOver();
+            }
+            if (current == null) {
+                current = takeFree();
+                current.buffer.clear();
+                current.position = position;
+            }
+
+            int length = Math.min(data.remaining(), current.buffer.remaining());
+            int limit = data.limit();
+            data.limit(data.position() + length);
+            current.buffer.put(data);
+            data.limit(limit);
+            position += length;
+        }
+    }
+
+    /**
+     * Flushes, then writes what comes next to {@code channel} instead, with
+     * the same thread and buffers. The old channel can be closed as soon as
+     * this returns.
+     */
+    public void setChannel(WritableByteChannel channel) throws IOException {
+        flush();
+        synchronized (this) {
+            this.channel = channel;
+            this.file = channel instanceof FileChannel ? (FileChannel) channel : null;
+        }
+    }
+
+    /**
+     * @return bytes that can be written without waiting
+     */
+    public long getFreeBytes() {
+        return (long) free.size() * chunkSize + (current != null ? current.buffer.remaining() : 0);
+    }
+
+    /**
+     * @return how many times {@link #write} had to wait for a chunk
+     */
+    public long getWaits() {
+        return waits;
+    }
+
+    public long getWrites() {
+        return writes;
+    }
+
+    /**
+     * Waits until everything written so far is in the channel.
+     */
+    public void flush() throws IOException {
+        if (current != null && current.buffer.position() > 0) {
+            handOver();
+        }
+        synchronized (this) {
+            while (pending > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted waiting for the writer");
+                }
+            }
+        }
+        checkFailure();
+    }
+
+    /**
+     * Flushes, then stops the writer thread. The channel is left open.
+     */
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            stop();
+        }
+    }
+
+    /**
+     * Lets the writer thread finish once it has written what is queued,
+     * without waiting for it, e.g. when the transfer has failed anyway.
+     * Interrupting it instead would close a file channel mid-write.
+     */
+    public void stop() {
+        // there is always room: at most every chunk is queued ahead of it
+        full.offer(STOP);
+    }
+
+    private void handOver() throws IOException {
+        current.buffer.flip();
+        synchronized (this) {
+            pending++;
+        }
+        try {
+            full.put(current);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted handing data to the writer");
+        }
+        current = null;
+    }
+
+    private Chunk takeFree() throws IOException {
+        Chunk chunk = free.poll();
+        if (chunk != null) {
+            return chunk;
+        }
+        waits++;
+        try {
+            return free.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted waiting for the writer");
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Writing received data failed", failure);
+        }
+    }
+
+    private void run() {
+        long lastSync = System.nanoTime();
+        boolean unsynced = false;
+        try {
+            while (true) {
+                Chunk chunk = syncNanos > 0 ? full.poll(syncNanos, TimeUnit.NANOSECONDS) : full.take();
+                if (chunk == STOP) {
+                    return;
+                }
+                if (chunk != null) {
+                    write(chunk);
+                    unsynced = true;
+                }
+
+                if (syncNanos > 0 && unsynced && file != null && System.nanoTime() - lastSync >= syncNanos) {
+                    sync();
+                    lastSync = System.nanoTime();
+                    unsynced = false;
+                }
+            }
+        } catch (InterruptedException e) {
+            // only stop() ends the thread
+        }
+    }
+
+    private void write(Chunk chunk) throws InterruptedException {
+        // after a failure chunks are still recycled, so the receiver never waits for one forever
+        if (failure == null) {
+            try {
+                while (chunk.buffer.hasRemaining()) {
+                    if (file != null) {
+                        chunk.position += file.write(chunk.buffer, chunk.position);
+                    } else {
+                        channel.write(chunk.buffer);
+                    }
+                }
+                writes++;
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        free.put(chunk);
+        synchronized (this) {
+            pending--;
+            notifyAll();
+        }
+    }
+
+    private synchronized void sync() {
+        if (file == null) {
+            return;
+        }
+        try {
+            file.force(false);
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    private static class Chunk {
+        final ByteBuffer buffer;
+        long position;
+
+        Chunk(int size) {
+            buffer = ByteBuffer.allocate(size);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+/**
+ * Hashes of a file in fixed-size chunks, which a syncing receiver sends to
+ * the sender a piece at a time so that only the chunks that differ cross the
+ * network. A chunk's hash is the first 16 bytes of its SHA-256; the last
+ * chunk may be short.
+ */
+public class ChunkManifest {
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    public static final int HASH_SIZE = 16;
+    // chunk size, file size and the index of the first hash, before a piece's hashes
+    public static final int PIECE_HEADER_SIZE = 16;
+
+    private final int chunkSize;
+    private final long fileSize;
+    private final byte[] hashes;
+
+    private ChunkManifest(int chunkSize, long fileSize, byte[] hashes) {
+        this.chunkSize = chunkSize;
+        this.fileSize = fileSize;
+        this.hashes = hashes;
+    }
+
+    /**
+     * Reads the whole of {@code file} to hash it.
+     */
+    public static ChunkManifest of(FileChannel file, int chunkSize) throws IOException {
+        long fileSize = file.size();
+        int chunks = chunkCount(fileSize, chunkSize);
+        byte[] hashes = new byte[chunks * HASH_SIZE];
+        MessageDigest digest = GoBackNUtils.newFileDigest();
+        ByteBuffer chunk = ByteBuffer.allocate(chunkSize);
+        for (int i = 0; i < chunks; i++) {
+            readChunk(file, (long) i * chunkSize, chunk, fileSize);
+            hash(digest, chunk, hashes, i * HASH_SIZE);
+        }
+        return new ChunkManifest(chunkSize, fileSize, hashes);
+    }
+
+    public static int chunkCount(long fileSize, int chunkSize) {
+        long chunks = (fileSize + chunkSize - 1) / chunkSize;
+        if (chunks * HASH_SIZE > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException(fileSize + " bytes is too many chunks of " + chunkSize);
+        }
+        return (int) chunks;
+    }
+
+    /**
+     * Fills {@code chunk} with the chunk of {@code file} starting at
+     * {@code offset}, or with what there is of it before {@code fileSize}.
+     * The buffer is left flipped, ready to hash.
+     */
+    public static void readChunk(FileChannel file, long offset, ByteBuffer chunk, long fileSize) throws IOException {
+        chunk.clear().limit((int) Math.min(chunk.capacity(), fileSize - offset));
+        long position = offset;
+        while (chunk.hasRemaining()) {
+            int read = file.read(chunk, position);
+            if (read == -1) {
+                throw new EOFException("File ends at " + position + ", before " + fileSize);
+            }
+            position += read;
+        }
+        chunk.flip();
+    }
+
+    /**
+     * Writes the hash of what remains of {@code chunk} into {@code hash} at
+     * {@code offset}, leaving the buffer's position where it was.
+     */
+    public static void hash(MessageDigest digest, ByteBuffer chunk, byte[] hash, int offset) {
+        digest.update(chunk.duplicate());
+        System.arraycopy(digest.digest(), 0, hash, offset, HASH_SIZE);
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public int getChunkCount() {
+        return hashes.length / HASH_SIZE;
+    }
+
+    /**
+     * Writes up to {@code maxHashes} hashes from chunk {@code first} on into
+     * {@code data} at {@code offset}, after the piece header.
+     *
+     * @return the length of the piece
+     */
+    public int writePiece(byte[] data, int offset, int first, int maxHashes) {
+        int count = Math.max(0, Math.min(maxHashes, getChunkCount() - first));
+        GoBackNUtils.writeInt(data, offset, chunkSize);
+        GoBackNUtils.writeLong(data, offset + 4, fileSize);
+        GoBackNUtils.writeInt(data, offset + 12, first);
+        if (count > 0) {
+            System.arraycopy(hashes, first * HASH_SIZE, data, offset + PIECE_HEADER_SIZE, count * HASH_SIZE);
+        }
+        return PIECE_HEADER_SIZE + count * HASH_SIZE;
+    }
+}
@@ -0,0 +1,102 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reno-style congestion window, counted in packets: slow start, congestion
+ * avoidance, fast retransmit after three duplicate acks and multiplicative
+ * decrease. The configured window size is only an upper cap.
+ *
+ * Every change to the window is recorded so the trace can be inspected after
+ * the transfer.
+ */
+public class CongestionController {
+    public static final int DUPLICATE_ACK_THRESHOLD = 3;
+    private static final double MIN_SSTHRESH = 2;
+
+    private final int maxWindow;
+    private final long startTime = System.nanoTime();
+    private final List<String> trace = new ArrayList<>();
+
+    private double congestionWindow = 1;
+    private double slowStartThreshold;
+    private int duplicateAcks;
+
+    public CongestionController(int maxWindow) {
+        this.maxWindow = maxWindow;
+        this.slowStartThreshold = maxWindow;
+        record("init");
+    }
+
+    public synchronized int getWindow() {
+        return (int) Math.max(1, Math.min(maxWindow, congestionWindow));
+    }
+
+    public synchronized double getCongestionWindow() {
+        return congestionWindow;
+    }
+
+    public synchronized double getSlowStartThreshold() {
+        return slowStartThreshold;
+    }
+
+    public synchronized void onAck(int newlyAcked) {
+        int previousWindow = getWindow();
+        duplicateAcks = 0;
+
+        for (int i = 0; i < newlyAcked; i++) {
+            if (congestionWindow < slowStartThreshold) {
+                congestionWindow += 1;
+            } else {
+                congestionWindow += 1 / congestionWindow;
+            }
+        }
+        congestionWindow = Math.min(congestionWindow, maxWindow);
+
+        // only whole-packet changes are interesting, otherwise the trace grows with every ack
+        if (getWindow() != previousWindow) {
+            record(congestionWindow < slowStartThreshold ? "slow-start" : "avoidance");
+        }
+    }
+
+    /**
+     * @return true if this duplicate ack should trigger a fast retransmit
+     */
+    public synchronized boolean onDuplicateAck() {
+        duplicateAcks++;
+        if (duplicateAcks != DUPLICATE_ACK_THRESHOLD) {
+            return false;
+        }
+
+        slowStartThreshold = Math.max(congestionWindow / 2, MIN_SSTHRESH);
+        congestionWindow = slowStartThreshold;
+        record("fast-retransmit");
+        return true;
+    }
+
+    public synchronized void onTimeout() {
+        duplicateAcks = 0;
+        slowStartThreshold = Math.max(congestionWindow / 2, MIN_SSTHRESH);
+        congestionWindow = 1;
+        record("timeout");
+    }
+
+    public synchronized List<String> getTrace() {
+        return new ArrayList<>(trace);
+    }
+
+    public void writeTrace(String fileName) throws IOException {
+        PrintWriter writer = new PrintWriter(new FileWriter(fileName));
+        writer.println("Time,Congestion Window,Slow Start Threshold,Event");
+        for (String line : getTrace()) {
+            writer.println(line);
+        }
+        writer.close();
+    }
+
+    private void record(String event) {
+        trace.add((System.nanoTime() - startTime) + "," + congestionWindow + "," + slowStartThreshold + "," + event);
+    }
+}
@@ -0,0 +1,314 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * GoBackN receiver on a non-blocking DatagramChannel. Each selector wakeup
+ * drains every queued datagram, writes in-order bodies straight from the
+ * direct receive buffer to the file channel and acks each packet.
+ *
+ * Bodies are written one after another from the start of the file, or from
+ * the offset a FLAG_STRIPE packet announces, since packets may be short.
+ * Requests to resume or sync are answered with offset 0: the whole file is
+ * received again. FEC parity packets are dropped, lost packets are left for
+ * the sender to resend. Compressed flows are rejected.
+ */
+public class GoBackNChannelReceiver {
+    private InetAddress senderAddress;
+    private int senderPort;
+    private int receiverPort;
+
+    private PacketFormat packetFormat = PacketFormat.LEGACY;
+
+    private boolean verifyDigest;
+
+    private DatagramChannel channel;
+    private InetSocketAddress sender;
+    private ByteBuffer ackBuffer;
+    private ByteBuffer resumeBuffer;
+    private int ackFlags;
+    private int ackSessionId;
+
+    public GoBackNChannelReceiver(InetAddress senderAddress, int senderPort, int receiverPort) {
+        this.senderAddress = senderAddress;
+        this.senderPort = senderPort;
+        this.receiverPort = receiverPort;
+    }
+
+    public void setPacketFormat(PacketFormat packetFormat) {
+        this.packetFormat = packetFormat;
+    }
+
+    public void setVerifyDigest(boolean verifyDigest) {
+        this.verifyDigest = verifyDigest;
+    }
+
+    public void receiveFile(String fileName, int reliabilityNumber) throws IOException {
+        // the file takes its name once verified
+        Path target = Paths.get(fileName);
+        Path part = GoBackNUtils.partFile(target);
+        FileChannel fileChannel = FileChannel.open(part,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        long lastAck = -1;
+        long position = 0;
+        boolean endOfFile = false;
+        MessageDigest digest = verifyDigest ? GoBackNUtils.newFileDigest() : null;
+        byte[] expectedDigest = null;
+        int headerSize = packetFormat.getHeaderSize();
+
+        ByteBuffer rcvBuffer = ByteBuffer.allocateDirect(packetFormat.getMaxPacketSize());
+        ackBuffer = ByteBuffer.allocateDirect(headerSize);
+        resumeBuffer = ByteBuffer.allocateDirect(headerSize + GoBackNUtils.CONTROL_TYPE_SIZE + GoBackNUtils.RESUME_INFO_SIZE);
+        sender = new InetSocketAddress(senderAddress, senderPort);
+
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(receiverPort));
+        channel.configureBlocking(false);
+        if (packetFormat != PacketFormat.LEGACY) {
+            // large windows of large packets overflow the default buffer in a single burst
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, GoBackNUtils.SOCKET_BUFFER_SIZE);
+        }
+
+        LossModel lossModel = LossModel.fromReliabilityNumber(reliabilityNumber);
+        Selector selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+
+        while (!endOfFile) {
+            selector.select();
+            selector.selectedKeys().clear();
+
+            // drain every datagram queued since the last wakeup
+            rcvBuffer.clear();
+            while (!endOfFile && channel.receive(rcvBuffer) != null) {
+                int length = rcvBuffer.position();
+
+                if (!packetFormat.isCorrupt(rcvBuffer, length) && !lossModel.shouldDrop()) {
+                    int flags = packetFormat.flags(rcvBuffer);
+                    boolean endOfFileBit = (flags & PacketFormat.FLAG_EOT) != 0;
+                    long seqNum = packetFormat.unwrap(packetFormat.sequenceNumber(rcvBuffer), lastAck);
+
+                    ackFlags = flags & PacketFormat.FLAG_CRC32C;
+                    ackSessionId = packetFormat.sessionId(rcvBuffer);
+
+                    long ackNum;
+                    if ((flags & PacketFormat.FLAG_CONTROL) != 0) {
+                        // not part of the flow: nothing is kept from earlier runs
+                        int type = length > headerSize ? rcvBuffer.get(headerSize) : 0;
+                        if (lastAck == -1 && (type == PacketFormat.CONTROL_RESUME_REQUEST || type == PacketFormat.CONTROL_SYNC_REQUEST)) {
+                            sendResumeInfo();
+                        }
+                        rcvBuffer.clear();
+                        continue;
+
+                    } else if ((flags & PacketFormat.FLAG_PARITY) != 0) {
+                        // not data, and its sequence number is its group's: losses are resent instead
+                        rcvBuffer.clear();
+                        continue;
+
+                    } else if (seqNum == lastAck + 1) {
+                        rcvBuffer.limit(length);
+                        rcvBuffer.position(headerSize);
+
+                        if ((flags & PacketFormat.FLAG_DEFLATE) != 0) {
+                            // bodies go straight from the receive buffer to the file, with nowhere to inflate them
+                            throw fail(selector, rcvBuffer, fileChannel, part,
+                                    "Compressed flows are not supported, receive them with GoBackNReceiver");
+                        } else if ((flags & PacketFormat.FLAG_DIGEST) != 0) {
+                            // not file data: keep it to check before the final ack
+                            expectedDigest = new byte[length - headerSize];
+                            rcvBuffer.get(expectedDigest);
+                        } else if ((flags & PacketFormat.FLAG_STRIPE) != 0) {
+                            // where the following data goes: a range, a resumed flow or a run of changed chunks
+                            position = rcvBuffer.getLong(headerSize);
+                        } else {
+                            if (digest != null) {
+                                digest.update(rcvBuffer);
+                                rcvBuffer.position(headerSize);
+                            }
+
+                            // write the body straight out of the receive buffer, at its place in the file
+                            while (rcvBuffer.hasRemaining()) {
+                                position += fileChannel.write(rcvBuffer, position);
+                            }
+                        }
+                        ackNum = seqNum;
+                        lastAck = lastAck + 1;
+                        endOfFile = endOfFileBit;
+
+                        if (endOfFile) {
+                            // the final ack says the file arrived intact, so it waits for the check
+                            String failure = checkDigest(digest, expectedDigest, fileName);
+                            if (failure != null) {
+                                throw fail(selector, rcvBuffer, fileChannel, part, failure);
+                            }
+                            fileChannel.close();
+                            Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                        }
+
+                    } else {
+                        ackNum = lastAck;
+                    }
+                    // make and send ACK, protected the same way as the data
+                    sendAck(ackNum);
+                }
+                rcvBuffer.clear();
+            }
+        }
+
+        // the final ack may be lost: ack retransmissions until the sender goes quiet
+        linger(selector, rcvBuffer, ackBuffer);
+
+        selector.close();
+        fileChannel.close();
+        channel.close();
+        System.out.println("File transfer completed");
+        if (digest != null) {
+            System.out.println("File Digest: " + GoBackNUtils.FILE_DIGEST_ALGORITHM + " verified");
+        }
+    }
+
+    /**
+     * @return why the file is not what the sender sent, or null if it is or
+     * there is no digest to tell
+     */
+    private static String checkDigest(MessageDigest digest, byte[] expectedDigest, String fileName) {
+        if (digest == null) {
+            return null;
+        }
+        if (expectedDigest == null) {
+            return "Sender did not send a file digest";
+        }
+        if (!MessageDigest.isEqual(expectedDigest, digest.digest())) {
+            return "File digest mismatch, " + fileName + " is corrupt";
+        }
+        return null;
+    }
+
+    /**
+     * Rejects the transfer, then closes everything and removes what was
+     * received.
+     *
+     * @return the exception to fail the transfer with
+     */
+    private IOException fail(Selector selector, ByteBuffer rcvBuffer, FileChannel fileChannel, Path part, String reason)
+            throws IOException {
+        reject(selector, rcvBuffer, reason);
+        selector.close();
+        fileChannel.close();
+        channel.close();
+        Files.deleteIfExists(part);
+        return new IOException(reason);
+    }
+
+    /**
+     * Tells the sender why the transfer failed, in place of the final ack,
+     * until it goes quiet.
+     */
+    private void reject(Selector selector, ByteBuffer rcvBuffer, String reason) throws IOException {
+        if (packetFormat == PacketFormat.LEGACY) {
+            // no flags to mark a control message with
+            return;
+        }
+        int headerSize = packetFormat.getHeaderSize();
+        byte[] reply = new byte[packetFormat.getMaxPacketSize()];
+        int length = GoBackNUtils.writeRejection(reply, headerSize, reason, packetFormat.getMaxPayloadSize());
+        if (packetFormat.hasSessionId()) {
+            packetFormat.writeSessionId(reply, ackSessionId);
+        }
+        ByteBuffer rejection = ByteBuffer.wrap(reply, 0, packetFormat.encode(reply, -1, ackFlags | PacketFormat.FLAG_CONTROL, length));
+        channel.send(rejection, sender);
+        linger(selector, rcvBuffer, rejection);
+    }
+
+    /**
+     * Answers every packet with {@code reply} until the sender goes quiet.
+     */
+    private void linger(Selector selector, ByteBuffer rcvBuffer, ByteBuffer reply) throws IOException {
+        while (selector.select(GoBackNUtils.LINGER_MILLIS) > 0) {
+            selector.selectedKeys().clear();
+            rcvBuffer.clear();
+            while (channel.receive(rcvBuffer) != null) {
+                if (!packetFormat.isCorrupt(rcvBuffer, rcvBuffer.position())) {
+                    reply.rewind();
+                    channel.send(reply, sender);
+                }
+                rcvBuffer.clear();
+            }
+        }
+    }
+
+    /**
+     * Answers a request to resume or sync with offset 0 and no hashes, the
+     * same as a receiver with nothing to resume from.
+     */
+    private void sendResumeInfo() throws IOException {
+        resumeBuffer.clear();
+        int headerSize = packetFormat.getHeaderSize();
+        resumeBuffer.put(headerSize, (byte) PacketFormat.CONTROL_RESUME_INFO);
+        int length = GoBackNUtils.CONTROL_TYPE_SIZE + GoBackNUtils.RESUME_INFO_SIZE;
+        for (int i = headerSize + GoBackNUtils.CONTROL_TYPE_SIZE; i < headerSize + length; i++) {
+            resumeBuffer.put(i, (byte) 0);
+        }
+        if (packetFormat.hasSessionId()) {
+            packetFormat.writeSessionId(resumeBuffer, ackSessionId);
+        }
+        resumeBuffer.limit(packetFormat.encode(resumeBuffer, -1, ackFlags | PacketFormat.FLAG_CONTROL, length));
+        channel.send(resumeBuffer, sender);
+    }
+
+    private void sendAck(long packetNumber) throws IOException {
+        ackBuffer.clear();
+        if (packetFormat.hasSessionId()) {
+            packetFormat.writeSessionId(ackBuffer, ackSessionId);
+        }
+        ackBuffer.limit(packetFormat.encode(ackBuffer, packetNumber, ackFlags, 0));
+        channel.send(ackBuffer, sender);
+    }
+
+    public static void main(String[] argv) throws Exception {
+        if (argv.length < 5) {
+            System.out.println("Usage:");
+            System.out.println("java GoBackNChannelReceiver <0> <1> <2> <3> <4> [options]");
+            System.out.println("0: host address of the sender");
+            System.out.println("1: UDP port number used by the sender to receive data from the receiver");
+            System.out.println("2: UDP port number used by the receiver to receive ACKs from the sender");
+            System.out.println("3: Reliability number");
+            System.out.println("4: Name of the file to write received data");
+            System.out.println("options, the only ones supported:");
+            System.out.println("  header=<format>    legacy, wide or session packet header, must match the sender");
+            System.out.println("  digest             require and check the sender's SHA-256 file digest");
+            System.out.println("Senders may use the options GoBackNChannelSender supports, and GoBackNSender may also stream");
+            System.out.println("standard input, resume or sync, which receive the whole file again, but not compress.");
+            System.exit(1);
+        }
+
+        Map<String, String> options = GoBackNUtils.parseOptions(argv, 5, Set.of("header", "digest"));
+
+        int senderPort = Integer.parseInt(argv[1]);
+        int recPort = Integer.parseInt(argv[2]);
+        int rn = Integer.parseInt(argv[3]);
+
+        GoBackNChannelReceiver gbnReceiver = new GoBackNChannelReceiver(InetAddress.getByName(argv[0]), senderPort, recPort);
+        gbnReceiver.setPacketFormat(PacketFormat.fromName(options.getOrDefault("header", "legacy")));
+
+        gbnReceiver.setVerifyDigest(options.containsKey("digest"));
+
+        gbnReceiver.receiveFile(argv[4], rn);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,464 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GoBackN sender on a non-blocking DatagramChannel. A single thread runs a
+ * selector loop that drains every pending ack per wakeup, bursts the whole
+ * sendable window per iteration and checks the retransmission deadline, so
+ * there is no timer thread and no lock shared with one.
+ *
+ * Packets are built in direct buffers, one per window slot, and file data is
+ * read straight into them. With memory mapping enabled the payloads are
+ * copied out of a mapping of the file instead, so the transfer makes no file
+ * system calls at all once the file is mapped.
+ */
+public class GoBackNChannelSender implements GoBackNSenderOptions.Target {
+    private static final int PACKET_DATA_SIZE = 124;
+    private static final int WIDE_PACKET_DATA_SIZE = 1400;
+    // files larger than this are mapped one region at a time
+    private static final long MAPPING_REGION_SIZE = 1L << 30;
+
+    private final RttEstimator rttEstimator = new RttEstimator();
+
+    private InetAddress receiverAddress;
+    private int receiverPort;
+    private int senderPort;
+    private int windowSize;
+
+    // absolute packet indices; only the wire format wraps them
+    private long sendBase;
+    private long nextSequenceNumber;
+    private long nextToTransmit;
+    private long retransmitDeadline;
+
+    private PacketFormat packetFormat = PacketFormat.LEGACY;
+    private int payloadSize = PACKET_DATA_SIZE;
+
+    private int sessionId;
+    private boolean crc32c;
+    private boolean fileDigest;
+
+    private boolean congestionControl;
+    private CongestionController congestionController;
+
+    private ByteBuffer[] windowPackets;
+    private int[] packetLengths;
+    private long[] sendTimes;
+    private boolean[] retransmitted;
+
+    private boolean memoryMapped;
+    private MappedByteBuffer mapping;
+    private long mappingStart;
+
+    private DatagramChannel channel;
+    private InetSocketAddress receiver;
+
+    public GoBackNChannelSender(InetAddress receiverAddress, int receiverPort, int senderPort, int windowSize) {
+        this.receiverAddress = receiverAddress;
+        this.receiverPort = receiverPort;
+        this.senderPort = senderPort;
+        this.windowSize = windowSize;
+    }
+
+    public void setCongestionControl(boolean congestionControl) {
+        this.congestionControl = congestionControl;
+    }
+
+    public CongestionController getCongestionController() {
+        return congestionController;
+    }
+
+    public void setPacketFormat(PacketFormat packetFormat) {
+        this.packetFormat = packetFormat;
+        this.payloadSize = packetFormat == PacketFormat.LEGACY ? PACKET_DATA_SIZE : WIDE_PACKET_DATA_SIZE;
+    }
+
+    public void setPayloadSize(int payloadSize) {
+        if (payloadSize < 1 || payloadSize > packetFormat.getMaxPayloadSize()) {
+            throw new IllegalArgumentException("Payload size must be between 1 and " + packetFormat.getMaxPayloadSize());
+        }
+        this.payloadSize = payloadSize;
+    }
+
+    public void setSessionId(int sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    public int getSessionId() {
+        return sessionId;
+    }
+
+    public void setCrc32c(boolean crc32c) {
+        this.crc32c = crc32c;
+    }
+
+    public void setFileDigest(boolean fileDigest) {
+        this.fileDigest = fileDigest;
+    }
+
+    public void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+    }
+
+    public void sendFile(String fileName) throws IOException {
+        if ((crc32c || fileDigest) && packetFormat == PacketFormat.LEGACY) {
+            throw new IllegalStateException("crc32c and digest need the wide or session packet format");
+        }
+        if (sessionId != 0 && !packetFormat.hasSessionId()) {
+            throw new IllegalStateException("Only the session packet format carries a session id");
+        }
+        while (packetFormat.hasSessionId() && sessionId == 0) {
+            sessionId = ThreadLocalRandom.current().nextInt();
+        }
+
+        File f = new File(fileName);
+        long fileSize = f.length();
+
+        FileChannel fileChannel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+
+        int headerSize = packetFormat.getHeaderSize();
+        ByteBuffer ackBuffer = ByteBuffer.allocateDirect(packetFormat.getMaxPacketSize());
+
+        boolean endOfFile = false;
+        boolean endOfData = false;
+        MessageDigest digest = fileDigest ? GoBackNUtils.newFileDigest() : null;
+        int wakeups = 0;
+        int acksReceived = 0;
+
+        long startTime = System.nanoTime();
+
+        mapping = null;
+        mappingStart = 0;
+
+        sendBase = 0;
+        nextSequenceNumber = 0;
+        nextToTransmit = 0;
+        retransmitDeadline = Long.MAX_VALUE;
+
+        windowSize = (int) Math.min(windowSize, packetFormat.getSequenceSpace() - 1);
+        windowPackets = new ByteBuffer[windowSize];
+        for (int i = 0; i < windowSize; i++) {
+            windowPackets[i] = ByteBuffer.allocateDirect(headerSize + Math.max(payloadSize, fileDigest ? GoBackNUtils.FILE_DIGEST_SIZE : 0));
+        }
+        packetLengths = new int[windowSize];
+        sendTimes = new long[windowSize];
+        retransmitted = new boolean[windowSize];
+        congestionController = congestionControl ? new CongestionController(windowSize) : null;
+
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(senderPort));
+        channel.configureBlocking(false);
+        receiver = new InetSocketAddress(receiverAddress, receiverPort);
+        if (packetFormat != PacketFormat.LEGACY) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, GoBackNUtils.SOCKET_BUFFER_SIZE);
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, GoBackNUtils.SOCKET_BUFFER_SIZE);
+        }
+
+        Selector selector = Selector.open();
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+
+        while (!endOfFile || sendBase != nextSequenceNumber) {
+            // build every packet the window allows
+            while (canSend() && !endOfFile) {
+                ByteBuffer packet = windowPackets[slot(nextSequenceNumber)];
+                packet.clear();
+                packet.position(headerSize);
+
+                int bytesRead;
+                int flags = 0;
+                if (endOfData) {
+                    // all data is out, this last packet carries the digest instead
+                    packet.put(digest.digest());
+                    bytesRead = GoBackNUtils.FILE_DIGEST_SIZE;
+                    flags = PacketFormat.FLAG_DIGEST;
+                } else if (memoryMapped) {
+                    packet.limit(headerSize + payloadSize);
+                    bytesRead = copyFromMapping(fileChannel, fileSize, nextSequenceNumber * payloadSize, packet);
+                } else {
+                    // read bytes straight into the packet, after its header
+                    packet.limit(headerSize + payloadSize);
+                    bytesRead = 0;
+                    while (packet.hasRemaining()) {
+                        int n = fileChannel.read(packet);
+                        if (n == -1) {
+                            break;
+                        }
+                        bytesRead += n;
+                    }
+                }
+
+                // check for EOF
+                if (endOfData) {
+                    endOfFile = true;
+                } else {
+                    if (digest != null) {
+                        packet.flip().position(headerSize);
+                        digest.update(packet);
+                    }
+                    if (bytesRead < payloadSize) {
+                        endOfData = true;
+                        endOfFile = digest == null;
+                    }
+                }
+
+                if (endOfFile) {
+                    flags |= PacketFormat.FLAG_EOT;
+                }
+                if (crc32c) {
+                    flags |= PacketFormat.FLAG_CRC32C;
+                }
+                if (packetFormat.hasSessionId()) {
+                    packetFormat.writeSessionId(packet, sessionId);
+                }
+                packetLengths[slot(nextSequenceNumber)] = packetFormat.encode(packet, nextSequenceNumber, flags, bytesRead);
+                retransmitted[slot(nextSequenceNumber)] = false;
+                nextSequenceNumber++;
+            }
+
+            // burst everything not yet on the wire
+            boolean blocked = !transmit();
+            key.interestOps(blocked ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+
+            long now = System.nanoTime();
+            if (retransmitDeadline == Long.MAX_VALUE && sendBase != nextSequenceNumber) {
+                retransmitDeadline = now + rttEstimator.getTimeoutNanos();
+            }
+
+            // sleep until an ack arrives, the socket drains or the timer expires
+            long waitNanos = retransmitDeadline - now;
+            if (waitNanos <= 0) {
+                selector.selectNow();
+            } else {
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos)));
+            }
+            wakeups++;
+
+            // drain every ack queued since the last wakeup
+            ackBuffer.clear();
+            while (channel.receive(ackBuffer) != null) {
+                int length = ackBuffer.position();
+                acksReceived++;
+                if (!packetFormat.isCorrupt(ackBuffer, length) && packetFormat.sessionId(ackBuffer) == sessionId) {
+                    if ((packetFormat.flags(ackBuffer) & PacketFormat.FLAG_CONTROL) != 0) {
+                        checkRejection(ackBuffer, length);
+                    } else {
+                        // the receiver acks -1 until the first packet arrives, so unwrap from one before the base
+                        handleAck(packetFormat.unwrap(packetFormat.sequenceNumber(ackBuffer), sendBase - 1));
+                    }
+                }
+                ackBuffer.clear();
+            }
+            selector.selectedKeys().clear();
+
+            if (sendBase != nextSequenceNumber && System.nanoTime() >= retransmitDeadline) {
+                onTimeout();
+            }
+        }
+
+        selector.close();
+        fileChannel.close();
+        channel.close();
+
+        long endTime = System.nanoTime();
+        long duration = (endTime - startTime);
+
+        System.out.println();
+        System.out.println("~~File Transfer Completed~~");
+        System.out.println("File Name: " + fileName);
+        System.out.println("File Size: " + fileSize + " bytes");
+        System.out.println("Transfer Time: " + Long.toString(duration) + " nanoseconds");
+        System.out.println("Timeout Length: " + rttEstimator.getTimeoutMillis() + " milliseconds");
+        System.out.println("Packet Format: " + packetFormat + ", " + payloadSize + " byte payloads");
+        if (packetFormat.hasSessionId()) {
+            System.out.println("Session: " + String.format("%08x", sessionId));
+        }
+        if (crc32c || fileDigest) {
+            System.out.println("Integrity: " + (crc32c ? "CRC32C" : "8-bit checksum")
+                    + (fileDigest ? ", " + GoBackNUtils.FILE_DIGEST_ALGORITHM + " file digest" : ""));
+        }
+        System.out.println("File Access: " + (memoryMapped ? "memory mapped" : "channel reads"));
+        System.out.println("Selector Wakeups: " + wakeups + " (" + acksReceived + " acks)");
+        if (congestionController != null) {
+            System.out.println("Final Congestion Window: " + congestionController.getWindow() + " packets");
+        }
+        System.out.println();
+        System.out.println(rttEstimator.getTimeoutMillis() + "," + fileSize + "," + windowSize + "," + Long.toString(duration));
+    }
+
+    /**
+     * Copies up to one payload at {@code position} out of the file mapping,
+     * mapping the next region first if the payload is not covered yet.
+     */
+    private int copyFromMapping(FileChannel fileChannel, long fileSize, long position, ByteBuffer packet) throws IOException {
+        int length = (int) Math.max(0, Math.min(packet.remaining(), fileSize - position));
+        if (length == 0) {
+            return 0;
+        }
+
+        if (mapping == null || position + length > mappingStart + mapping.capacity()) {
+            mappingStart = position;
+            long regionSize = Math.min(MAPPING_REGION_SIZE, fileSize - position);
+            mapping = fileChannel.map(FileChannel.MapMode.READ_ONLY, mappingStart, regionSize);
+        }
+
+        int offset = (int) (position - mappingStart);
+        mapping.limit(offset + length);
+        mapping.position(offset);
+        packet.put(mapping);
+        return length;
+    }
+
+    private boolean canSend() {
+        long outstanding = nextSequenceNumber - sendBase;
+        if (congestionController != null) {
+            return outstanding < congestionController.getWindow();
+        }
+        return outstanding < windowSize;
+    }
+
+    /**
+     * @return false if the socket buffer filled up before everything was sent
+     */
+    private boolean transmit() throws IOException {
+        while (nextToTransmit < nextSequenceNumber) {
+            int slot = slot(nextToTransmit);
+            ByteBuffer packet = windowPackets[slot];
+            packet.limit(packetLengths[slot]);
+            packet.position(0);
+
+            if (channel.send(packet, receiver) == 0) {
+                return false;
+            }
+
+            if (!retransmitted[slot]) {
+                sendTimes[slot] = System.nanoTime();
+            }
+            nextToTransmit++;
+        }
+        return true;
+    }
+
+    /**
+     * Fails the transfer if the receiver rejected it, in place of the final
+     * ack. Other control messages are not meant for this sender.
+     */
+    private void checkRejection(ByteBuffer packet, int length) throws IOException {
+        int headerSize = packetFormat.getHeaderSize();
+        if (length > headerSize && packet.get(headerSize) == PacketFormat.CONTROL_REJECTED) {
+            byte[] data = new byte[length];
+            packet.get(0, data);
+            throw new IOException("Receiver rejected the transfer: " + GoBackNUtils.readRejection(data, length, headerSize));
+        }
+    }
+
+    private void handleAck(long ackNum) {
+        if (sendBase <= ackNum && ackNum < nextSequenceNumber) {
+            // Karn's rule: only time packets that were sent exactly once
+            if (!retransmitted[slot(ackNum)]) {
+                rttEstimator.addSample(System.nanoTime() - sendTimes[slot(ackNum)]);
+            } else {
+                rttEstimator.clearBackoff();
+            }
+
+            int newlyAcked = (int) (ackNum + 1 - sendBase);
+            sendBase = ackNum + 1;
+            // an ack for a packet sent before a rewind also covers its retransmission
+            nextToTransmit = Math.max(nextToTransmit, sendBase);
+
+            if (congestionController != null) {
+                congestionController.onAck(newlyAcked);
+            }
+
+            // restart the timer for what is still outstanding
+            retransmitDeadline = sendBase == nextSequenceNumber ? Long.MAX_VALUE : System.nanoTime() + rttEstimator.getTimeoutNanos();
+
+        } else if (congestionController != null && ackNum == sendBase - 1 && sendBase != nextSequenceNumber) {
+            if (congestionController.onDuplicateAck()) {
+                // fast retransmit: the receiver discards everything after the hole anyway
+                rewind();
+                retransmitDeadline = System.nanoTime() + rttEstimator.getTimeoutNanos();
+            }
+        }
+    }
+
+    private void onTimeout() {
+        rttEstimator.onTimeout();
+        if (congestionController != null) {
+            congestionController.onTimeout();
+        }
+        rewind();
+        retransmitDeadline = System.nanoTime() + rttEstimator.getTimeoutNanos();
+    }
+
+    private void rewind() {
+        for (long seq = sendBase; seq < nextToTransmit; seq++) {
+            retransmitted[slot(seq)] = true;
+        }
+        nextToTransmit = sendBase;
+    }
+
+    private int slot(long sequenceNumber) {
+        return (int) (sequenceNumber % windowSize);
+    }
+
+    public static void main(String[] argv) throws Exception {
+        if (argv.length < 5) {
+            System.out.println("Usage:");
+            System.out.println("java GoBackNChannelSender <0> <1> <2> <3> <4> [options]");
+            System.out.println("0: host address of the receiver");
+            System.out.println("1: UDP port number used by the receiver to receive data from the sender");
+            System.out.println("2: UDP port number used by the sender to receive ACKs from the receiver");
+            System.out.println("3: Name of the file to be transferred");
+            System.out.println("4: Window size <= " + GoBackNSender.MAX_WINDOW_SIZE + " (" + GoBackNSender.MAX_WIDE_WINDOW_SIZE + " with header=wide|session)");
+            System.out.println("options, the only ones supported; GoBackNReceiver can receive with the same options:");
+            for (String line : GoBackNSenderOptions.USAGE) {
+                System.out.println(line);
+            }
+            System.out.println("  mmap               read the file through a memory mapping");
+            System.exit(1);
+        }
+
+        Set<String> supported = new HashSet<>(GoBackNSenderOptions.NAMES);
+        supported.add("mmap");
+        Map<String, String> options = GoBackNUtils.parseOptions(argv, 5, supported);
+
+        int recPort = Integer.parseInt(argv[1]);
+        int senderPort = Integer.parseInt(argv[2]);
+        int windowSize = Integer.parseInt(argv[4]);
+
+        int maxWindowSize = GoBackNSenderOptions.maxWindowSize(GoBackNSenderOptions.packetFormat(options));
+
+        if (windowSize > maxWindowSize) {
+            System.out.println("Window size must be <= " + maxWindowSize);
+            System.exit(1);
+        }
+
+        GoBackNChannelSender gbnSender = new GoBackNChannelSender(InetAddress.getByName(argv[0]), recPort, senderPort, windowSize);
+        GoBackNSenderOptions.apply(gbnSender, options);
+        gbnSender.setMemoryMapped(options.containsKey("mmap"));
+
+        gbnSender.sendFile(argv[3]);
+
+        if (options.containsKey("cc-trace")) {
+            gbnSender.getCongestionController().writeTrace(options.get("cc-trace"));
+        }
+        System.exit(0);
+    }
+}
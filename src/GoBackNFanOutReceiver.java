@@ -0,0 +1,346 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Receives a file from a GoBackNFanOutSender, on its own or as a member of a
+ * multicast group. Instead of acking every packet it reports to the sender
+ * now and then: its cumulative ack, and a NAK for any gaps behind the
+ * packets it holds. A new gap is NAKed straight away, an old one again with
+ * each periodic report until it is repaired.
+ */
+public class GoBackNFanOutReceiver {
+    // how often to report while packets are missing, or nothing arrives
+    public static final int REPORT_INTERVAL_MILLIS = 20;
+    // in-order packets between progress reports
+    private static final int REPORT_EVERY = 16;
+    private static final int MAX_HELD_PACKETS = GoBackNSender.MAX_WIDE_WINDOW_SIZE;
+    // a sender this quiet once sending has finished without us, e.g. dropped us for lagging
+    private static final long SENDER_TIMEOUT_NANOS = 10 * 1000000000L;
+
+    private InetAddress senderAddress;
+    private int senderPort;
+    private int receiverPort;
+    private InetAddress group;
+    private NetworkInterface networkInterface;
+
+    private PacketFormat packetFormat = PacketFormat.WIDE;
+    private int sessionId;
+    private boolean verifyDigest;
+    private int lingerMillis = GoBackNUtils.LINGER_MILLIS;
+
+    private final TransferMetrics metrics;
+    private final int receiverId;
+
+    private DatagramSocket socket;
+    private DatagramPacket reportPacket;
+    private int reportFlags;
+    private long naksSent;
+
+    public GoBackNFanOutReceiver(InetAddress senderAddress, int senderPort, int receiverPort) {
+        this.senderAddress = senderAddress;
+        this.senderPort = senderPort;
+        this.receiverPort = receiverPort;
+        this.metrics = new TransferMetrics("GoBackNFanOutReceiver-" + receiverPort);
+        int id = 0;
+        while (id == 0) {
+            id = ThreadLocalRandom.current().nextInt();
+        }
+        this.receiverId = id;
+    }
+
+    /**
+     * Joins a multicast group on the receiver port instead of taking
+     * packets sent to this host alone.
+     */
+    public void setGroup(InetAddress group, NetworkInterface networkInterface) {
+        this.group = group;
+        this.networkInterface = networkInterface;
+    }
+
+    public void setPacketFormat(PacketFormat packetFormat) {
+        if (packetFormat == PacketFormat.LEGACY) {
+            throw new IllegalArgumentException("Fan-out needs the wide or session packet format");
+        }
+        this.packetFormat = packetFormat;
+    }
+
+    public void setSessionId(int sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    public void setVerifyDigest(boolean verifyDigest) {
+        this.verifyDigest = verifyDigest;
+    }
+
+    public TransferMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void receiveFile(String fileName, int reliabilityNumber) throws IOException {
+        FileChannel fileChannel = FileChannel.open(Paths.get(fileName),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            if (group != null) {
+                MulticastSocket multicastSocket = new MulticastSocket(receiverPort);
+                socket = multicastSocket;
+                multicastSocket.joinGroup(new InetSocketAddress(group, receiverPort), networkInterface);
+            } else {
+                socket = new DatagramSocket(receiverPort);
+            }
+            socket.setReceiveBufferSize(GoBackNUtils.SOCKET_BUFFER_SIZE);
+            receive(fileChannel, reliabilityNumber);
+        } finally {
+            fileChannel.close();
+            if (socket != null) {
+                socket.close();
+            }
+        }
+
+        System.out.println("File transfer completed");
+        System.out.println("Packets Received: " + metrics.getPacketsReceived() + " (" + metrics.getPacketsDropped() + " dropped, "
+                + metrics.getPacketsOutOfOrder() + " out of order, " + metrics.getChecksumFailures() + " corrupt)");
+        System.out.println("NAKs Sent: " + naksSent);
+        if (verifyDigest) {
+            System.out.println("File Digest: " + GoBackNUtils.FILE_DIGEST_ALGORITHM + " verified");
+        }
+    }
+
+    private void receive(FileChannel output, int reliabilityNumber) throws IOException {
+        int headerSize = packetFormat.getHeaderSize();
+        byte[] rcvBuffer = new byte[packetFormat.getMaxPacketSize()];
+        DatagramPacket receivePacket = new DatagramPacket(rcvBuffer, rcvBuffer.length);
+        ByteBuffer body = ByteBuffer.wrap(rcvBuffer);
+        int reportSize = headerSize + GoBackNFanOutSender.RECEIVER_ID_SIZE
+                + GoBackNFanOutSender.MAX_NAK_RANGES * GoBackNUtils.SACK_BLOCK_SIZE;
+        reportPacket = new DatagramPacket(new byte[reportSize], reportSize, senderAddress, senderPort);
+        reportFlags = 0;
+        naksSent = 0;
+
+        LossModel lossModel = LossModel.fromReliabilityNumber(reliabilityNumber);
+        MessageDigest digest = verifyDigest ? GoBackNUtils.newFileDigest() : null;
+        byte[] expectedDigest = null;
+        TreeMap<Long, byte[]> held = new TreeMap<>();
+        long lastAck = -1;
+        long highestSeen = -1;
+        int sinceReport = 0;
+        long lastReport = 0;
+        long lastHeard = System.nanoTime();
+        boolean endOfFile = false;
+
+        metrics.start();
+        // also the join: the sender waits for every receiver to report before sending
+        report(lastAck, held);
+        socket.setSoTimeout(REPORT_INTERVAL_MILLIS);
+
+        while (!endOfFile) {
+            receivePacket.setLength(rcvBuffer.length);
+            try {
+                socket.receive(receivePacket);
+            } catch (SocketTimeoutException e) {
+                if (highestSeen >= 0 && System.nanoTime() - lastHeard > SENDER_TIMEOUT_NANOS) {
+                    throw new IOException("Sender went quiet after " + (lastAck + 1) + " packets");
+                }
+                report(lastAck, held);
+                lastReport = System.nanoTime();
+                continue;
+            }
+            lastHeard = System.nanoTime();
+            metrics.packetReceived();
+            if (packetFormat.isCorrupt(receivePacket)) {
+                metrics.checksumFailure();
+                continue;
+            }
+            if (packetFormat.sessionId(rcvBuffer) != sessionId) {
+                continue;
+            }
+            if (lossModel.shouldDrop()) {
+                metrics.packetDropped();
+                continue;
+            }
+            reportFlags = packetFormat.flags(rcvBuffer) & PacketFormat.FLAG_CRC32C;
+            if ((packetFormat.flags(rcvBuffer) & PacketFormat.FLAG_PARITY) != 0) {
+                // not data, and its sequence number is its group's: losses are repaired by NAK instead
+                continue;
+            }
+
+            long seqNum = packetFormat.unwrap(packetFormat.sequenceNumber(rcvBuffer), lastAck);
+            boolean reportNow = false;
+            if (seqNum == lastAck + 1) {
+                byte[] packet = rcvBuffer;
+                int length = receivePacket.getLength() - headerSize;
+                while (true) {
+                    int flags = packetFormat.flags(packet);
+                    if ((flags & PacketFormat.FLAG_DIGEST) != 0) {
+                        expectedDigest = Arrays.copyOfRange(packet, headerSize, headerSize + length);
+                    } else {
+                        ByteBuffer data = packet == rcvBuffer ? body : ByteBuffer.wrap(packet);
+                        data.limit(headerSize + length).position(headerSize);
+                        while (data.hasRemaining()) {
+                            output.write(data);
+                        }
+                        if (digest != null) {
+                            digest.update(packet, headerSize, length);
+                        }
+                        metrics.packetDelivered(length);
+                    }
+                    lastAck++;
+                    sinceReport++;
+                    endOfFile = (flags & PacketFormat.FLAG_EOT) != 0;
+
+                    // a repair releases whatever was held behind it
+                    if (endOfFile || held.isEmpty() || held.firstKey() != lastAck + 1) {
+                        break;
+                    }
+                    packet = held.pollFirstEntry().getValue();
+                    length = packet.length - headerSize;
+                }
+                reportNow = sinceReport >= REPORT_EVERY || endOfFile;
+
+            } else if (seqNum > lastAck + 1 && seqNum <= lastAck + MAX_HELD_PACKETS) {
+                metrics.packetOutOfOrder();
+                if (!held.containsKey(seqNum)) {
+                    held.put(seqNum, Arrays.copyOf(rcvBuffer, receivePacket.getLength()));
+                }
+                // packets skipped over for the first time
+                reportNow = seqNum > highestSeen + 1;
+
+            } else {
+                // a repair or probe of something already delivered: the sender lacks a report
+                reportNow = true;
+            }
+            highestSeen = Math.max(highestSeen, seqNum);
+
+            if (reportNow || !held.isEmpty() && System.nanoTime() - lastReport > REPORT_INTERVAL_MILLIS * 1000000L) {
+                report(lastAck, held);
+                lastReport = System.nanoTime();
+                sinceReport = 0;
+            }
+        }
+
+        linger(receivePacket, lastAck);
+
+        if (verifyDigest) {
+            if (expectedDigest == null) {
+                throw new IOException("Sender did not send a file digest");
+            }
+            if (!MessageDigest.isEqual(expectedDigest, digest.digest())) {
+                throw new IOException("File digest mismatch, received data is corrupt");
+            }
+        }
+    }
+
+    /**
+     * Sends the cumulative ack, with a NAK for the gaps before each run of
+     * held packets, as many as fit.
+     */
+    private void report(long lastAck, TreeMap<Long, byte[]> held) throws IOException {
+        byte[] report = reportPacket.getData();
+        int headerSize = packetFormat.getHeaderSize();
+        GoBackNUtils.writeInt(report, headerSize, receiverId);
+
+        int offset = headerSize + GoBackNFanOutSender.RECEIVER_ID_SIZE;
+        int ranges = 0;
+        long expected = lastAck + 1;
+        for (long seqNum : held.keySet()) {
+            if (ranges == GoBackNFanOutSender.MAX_NAK_RANGES) {
+                break;
+            }
+            if (seqNum > expected) {
+                GoBackNUtils.writeInt(report, offset, (int) expected);
+                GoBackNUtils.writeInt(report, offset + 4, (int) seqNum);
+                offset += GoBackNUtils.SACK_BLOCK_SIZE;
+                ranges++;
+            }
+            expected = seqNum + 1;
+        }
+
+        int flags = reportFlags | (ranges > 0 ? PacketFormat.FLAG_NAK : 0);
+        if (packetFormat.hasSessionId()) {
+            packetFormat.writeSessionId(report, sessionId);
+        }
+        reportPacket.setLength(packetFormat.encode(report, lastAck, flags, offset - headerSize));
+        socket.send(reportPacket);
+        metrics.packetSent();
+        if (ranges > 0) {
+            naksSent++;
+        }
+    }
+
+    /**
+     * Answers whatever the sender still sends with the final report, until it
+     * goes quiet.
+     */
+    private void linger(DatagramPacket receivePacket, long lastAck) throws IOException {
+        TreeMap<Long, byte[]> none = new TreeMap<>();
+        socket.setSoTimeout(lingerMillis);
+        try {
+            while (true) {
+                receivePacket.setLength(receivePacket.getData().length);
+                socket.receive(receivePacket);
+                if (!packetFormat.isCorrupt(receivePacket) && packetFormat.sessionId(receivePacket.getData()) == sessionId) {
+                    report(lastAck, none);
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // the sender has gone quiet, so it has every final report it needs
+        }
+    }
+
+    public static void main(String[] argv) throws Exception {
+        if (argv.length < 5) {
+            System.out.println("Usage:");
+            System.out.println("java GoBackNFanOutReceiver <0> <1> <2> <3> <4> [options]");
+            System.out.println("0: host address of the sender");
+            System.out.println("1: UDP port number used by the sender to receive reports");
+            System.out.println("2: UDP port number used by the receiver to receive data, the group's port with group=");
+            System.out.println("3: Reliability number");
+            System.out.println("4: Name of the file to write received data");
+            System.out.println("options:");
+            System.out.println("  group=<address>    join this multicast group");
+            System.out.println("  interface=<name>   network interface for the group, e.g. lo");
+            System.out.println("  header=<format>    wide or session packet header, must match the sender");
+            System.out.println("  session=<hex id>   session id for header=session, must match the sender's");
+            System.out.println("  digest             require and check the sender's SHA-256 file digest");
+            System.out.println("  metrics=<file>     write live transfer metrics as JSON lines, - for stderr");
+            System.out.println("  metrics-every=<ms> how often to write metrics, default 1000");
+            System.exit(1);
+        }
+
+        Map<String, String> options = GoBackNUtils.parseOptions(argv, 5);
+
+        int senderPort = Integer.parseInt(argv[1]);
+        int recPort = Integer.parseInt(argv[2]);
+        int rn = Integer.parseInt(argv[3]);
+
+        GoBackNFanOutReceiver receiver = new GoBackNFanOutReceiver(InetAddress.getByName(argv[0]), senderPort, recPort);
+        receiver.setPacketFormat(PacketFormat.fromName(options.getOrDefault("header", "wide")));
+        if (options.containsKey("session")) {
+            receiver.setSessionId(Integer.parseUnsignedInt(options.get("session"), 16));
+        }
+        if (options.containsKey("group")) {
+            receiver.setGroup(InetAddress.getByName(options.get("group")),
+                    options.containsKey("interface") ? NetworkInterface.getByName(options.get("interface")) : null);
+        }
+        receiver.setVerifyDigest(options.containsKey("digest"));
+        receiver.getMetrics().configure(options);
+
+        receiver.receiveFile(argv[4], rn);
+        receiver.getMetrics().close();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,666 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends one file to many GoBackNFanOutReceivers from a single loop. Each
+ * packet is read and encoded once, then sent once to a multicast group or in
+ * turn to each unicast receiver. Receivers report their progress and NAK
+ * only the packets they are missing; a packet NAKed by several receivers
+ * within an RTT is repaired once, to the whole group, or only to the unicast
+ * receivers that asked.
+ *
+ * The window slides with the slowest receiver. One that stays more than the
+ * lag bound behind the fastest for longer than a few timeouts, long enough
+ * for its repairs to arrive, is dropped from the transfer and the rest carry
+ * on; so is a receiver that goes silent.
+ */
+public class GoBackNFanOutSender {
+    public static final int MAX_RECEIVERS = 64;
+    // at the start of every receiver report, since multicast receivers on one host share an address
+    public static final int RECEIVER_ID_SIZE = 4;
+    // missing ranges a report can NAK, each a start and end like a SACK block
+    public static final int MAX_NAK_RANGES = 16;
+    // how long a receiver may stay beyond the lag bound, in repair rounds of a timeout and a report interval
+    private static final int LAG_GRACE_ROUNDS = 8;
+    private static final int DEFAULT_PAYLOAD_SIZE = 1400;
+    private static final long JOIN_TIMEOUT_MILLIS = 30000;
+    // receivers report several times a second, one that stops has gone away
+    private static final long SILENT_RECEIVER_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final List<InetSocketAddress> destinations;
+    private final boolean multicast;
+    private final int senderPort;
+    private int windowSize;
+    private int expectedReceivers;
+    // packets behind the fastest receiver, 0 for half the window
+    private int maxLag;
+    private NetworkInterface networkInterface;
+
+    private PacketFormat packetFormat = PacketFormat.WIDE;
+    private int payloadSize = DEFAULT_PAYLOAD_SIZE;
+    private int sessionId;
+    private boolean crc32c;
+    private boolean fileDigest;
+
+    private final RttEstimator rttEstimator = new RttEstimator();
+    private final TransferMetrics metrics;
+    private final List<Receiver> receivers = new ArrayList<>();
+
+    // absolute packet indices, the base following the slowest receiver still in the transfer
+    private long sendBase;
+    private long nextSequenceNumber;
+    private long lastSequenceNumber;
+    private long retransmitDeadline;
+
+    private PacketPool packetPool;
+    private long[] sendTimes;
+    private boolean[] retransmitted;
+    // per packet, a bit for each receiver that NAKed it since it was last sent
+    private long[] repairMasks;
+    private int pendingRepairs;
+    private long repairsSent;
+
+    private DatagramSocket socket;
+
+    /**
+     * @param destinations the receivers, or a single multicast group address
+     * @param expectedReceivers how many receivers to wait for before sending;
+     *                          for unicast, the number of destinations
+     */
+    public GoBackNFanOutSender(List<InetSocketAddress> destinations, int expectedReceivers, int senderPort, int windowSize) {
+        this.destinations = destinations;
+        this.multicast = destinations.size() == 1 && destinations.get(0).getAddress().isMulticastAddress();
+        this.expectedReceivers = multicast ? expectedReceivers : destinations.size();
+        this.senderPort = senderPort;
+        this.windowSize = windowSize;
+        this.metrics = new TransferMetrics("GoBackNFanOutSender-" + senderPort);
+        if (this.expectedReceivers < 1 || this.expectedReceivers > MAX_RECEIVERS) {
+            throw new IllegalArgumentException("Between 1 and " + MAX_RECEIVERS + " receivers are supported");
+        }
+    }
+
+    /**
+     * Selects the header format, wide or session; the legacy one has no room
+     * for a large window or reports. With the session format the receivers
+     * must be given the same session id.
+     */
+    public void setPacketFormat(PacketFormat packetFormat) {
+        if (packetFormat == PacketFormat.LEGACY) {
+            throw new IllegalArgumentException("Fan-out needs the wide or session packet format");
+        }
+        this.packetFormat = packetFormat;
+    }
+
+    public void setPayloadSize(int payloadSize) {
+        if (payloadSize < 1 || payloadSize > packetFormat.getMaxPayloadSize()) {
+            throw new IllegalArgumentException("Payload size must be between 1 and " + packetFormat.getMaxPayloadSize());
+        }
+        this.payloadSize = payloadSize;
+    }
+
+    /**
+     * Sets the session id stamped on every packet of the session format,
+     * which the receivers must be given too: they report before they have
+     * seen any packet to learn it from.
+     */
+    public void setSessionId(int sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    public void setCrc32c(boolean crc32c) {
+        this.crc32c = crc32c;
+    }
+
+    public void setFileDigest(boolean fileDigest) {
+        this.fileDigest = fileDigest;
+    }
+
+    /**
+     * How many packets a receiver may fall behind the fastest before it is
+     * dropped, half the window by default. At most the window: beyond that
+     * it holds everyone else back.
+     */
+    public void setMaxLag(int packets) {
+        this.maxLag = packets;
+    }
+
+    /**
+     * The interface multicast packets leave on, the system's choice if not set.
+     */
+    public void setNetworkInterface(NetworkInterface networkInterface) {
+        this.networkInterface = networkInterface;
+    }
+
+    public TransferMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void sendFile(String fileName) throws IOException {
+        long fileSize = new File(fileName).length();
+        FileInputStream fis = new FileInputStream(fileName);
+        try {
+            if (multicast) {
+                MulticastSocket multicastSocket = new MulticastSocket(senderPort);
+                socket = multicastSocket;
+                if (networkInterface != null) {
+                    multicastSocket.setNetworkInterface(networkInterface);
+                }
+            } else {
+                socket = new DatagramSocket(senderPort);
+            }
+            // every receiver reports on its own
+            socket.setReceiveBufferSize(GoBackNUtils.SOCKET_BUFFER_SIZE);
+            transfer(fileName, fileSize, fis);
+        } finally {
+            fis.close();
+            if (socket != null) {
+                socket.close();
+            }
+        }
+    }
+
+    private void transfer(String fileName, long fileSize, FileInputStream fis) throws IOException {
+        windowSize = (int) Math.min(windowSize, packetFormat.getSequenceSpace() - 1);
+        int headerSize = packetFormat.getHeaderSize();
+        int packetSize = headerSize + Math.max(payloadSize, GoBackNUtils.FILE_DIGEST_SIZE);
+        packetPool = new PacketPool(windowSize, packetSize, destinations.get(0).getAddress(), destinations.get(0).getPort());
+        sendTimes = new long[windowSize];
+        retransmitted = new boolean[windowSize];
+        repairMasks = new long[windowSize];
+        pendingRepairs = 0;
+        repairsSent = 0;
+        sendBase = 0;
+        nextSequenceNumber = 0;
+        lastSequenceNumber = Long.MAX_VALUE;
+        int lagBound = maxLag > 0 ? Math.min(maxLag, windowSize - 1) : windowSize / 2;
+        receivers.clear();
+
+        byte[] rcvBuffer = new byte[packetFormat.getMaxPacketSize()];
+        DatagramPacket receivePacket = new DatagramPacket(rcvBuffer, rcvBuffer.length);
+        MessageDigest digest = fileDigest ? GoBackNUtils.newFileDigest() : null;
+
+        awaitReceivers(receivePacket);
+        metrics.start();
+        long startTime = System.nanoTime();
+
+        boolean endOfData = false;
+        retransmitDeadline = Long.MAX_VALUE;
+        while (!isComplete()) {
+            while (nextSequenceNumber - sendBase < windowSize && lastSequenceNumber == Long.MAX_VALUE) {
+                DatagramPacket packet = packetPool.get(nextSequenceNumber);
+                int bytesRead;
+                int flags;
+                if (endOfData) {
+                    bytesRead = finishDigest(digest, packet);
+                    flags = PacketFormat.FLAG_EOT | PacketFormat.FLAG_DIGEST;
+                } else {
+                    bytesRead = fis.read(packet.getData(), headerSize, payloadSize);
+                    if (bytesRead == -1 || bytesRead < payloadSize) {
+                        bytesRead = Math.max(0, bytesRead);
+                        endOfData = true;
+                    }
+                    if (digest != null) {
+                        digest.update(packet.getData(), headerSize, bytesRead);
+                    }
+                    flags = endOfData && digest == null ? PacketFormat.FLAG_EOT : 0;
+                }
+                if ((flags & PacketFormat.FLAG_EOT) != 0) {
+                    lastSequenceNumber = nextSequenceNumber;
+                }
+
+                makePacket(packet, nextSequenceNumber, bytesRead, flags);
+                sendTimes[slot(nextSequenceNumber)] = System.nanoTime();
+                retransmitted[slot(nextSequenceNumber)] = false;
+                repairMasks[slot(nextSequenceNumber)] = 0;
+                sendToAll(packet);
+                nextSequenceNumber++;
+                metrics.windowOccupancy((int) (nextSequenceNumber - sendBase));
+            }
+            if (retransmitDeadline == Long.MAX_VALUE) {
+                retransmitDeadline = System.nanoTime() + rttEstimator.getTimeoutNanos();
+            }
+
+            long repairDue = pendingRepairs > 0 ? sendRepairs() : Long.MAX_VALUE;
+
+            long now = System.nanoTime();
+            if (now >= retransmitDeadline) {
+                onTimeout();
+                continue;
+            }
+            long waitNanos = Math.min(retransmitDeadline, repairDue) - now;
+            socket.setSoTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos + 999999)));
+            receivePacket.setLength(rcvBuffer.length);
+            try {
+                socket.receive(receivePacket);
+                onReport(receivePacket);
+            } catch (SocketTimeoutException e) {
+                // a repair or the timer is due
+            }
+            dropStragglers(lagBound);
+            slideWindow();
+        }
+
+        long duration = System.nanoTime() - startTime;
+        printSummary(fileName, fileSize, duration);
+    }
+
+    /**
+     * Waits for every expected receiver to report in, or for as many as have
+     * by the join timeout.
+     */
+    private void awaitReceivers(DatagramPacket receivePacket) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(JOIN_TIMEOUT_MILLIS);
+        while (receivers.size() < expectedReceivers) {
+            long waitNanos = deadline - System.nanoTime();
+            if (waitNanos <= 0) {
+                break;
+            }
+            socket.setSoTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos)));
+            receivePacket.setLength(receivePacket.getData().length);
+            try {
+                socket.receive(receivePacket);
+                onReport(receivePacket);
+            } catch (SocketTimeoutException e) {
+                break;
+            }
+        }
+        if (receivers.isEmpty()) {
+            throw new IOException("No receivers joined within " + JOIN_TIMEOUT_MILLIS + " milliseconds");
+        }
+    }
+
+    /**
+     * Takes in a receiver's report: its cumulative ack, and the ranges past
+     * it that it is missing, which are queued for repair.
+     */
+    private void onReport(DatagramPacket report) {
+        byte[] data = report.getData();
+        int headerSize = packetFormat.getHeaderSize();
+        if (packetFormat.isCorrupt(report)) {
+            metrics.checksumFailure();
+            return;
+        }
+        if (packetFormat.sessionId(data) != sessionId || report.getLength() < headerSize + RECEIVER_ID_SIZE) {
+            return;
+        }
+
+        int id = GoBackNUtils.readInt(data, headerSize);
+        Receiver receiver = findReceiver(id);
+        if (receiver == null) {
+            // only receivers that are there from the start get the whole file
+            if (nextSequenceNumber > 0 || receivers.size() >= expectedReceivers
+                    || !multicast && !destinations.contains(report.getSocketAddress())) {
+                return;
+            }
+            receiver = new Receiver(id, receivers.size(), report.getSocketAddress());
+            receivers.add(receiver);
+        }
+        if (receiver.dropped) {
+            return;
+        }
+        receiver.lastHeard = System.nanoTime();
+
+        long ackNum = packetFormat.unwrap(packetFormat.sequenceNumber(data), sendBase - 1);
+        if (ackNum > receiver.acked && ackNum < nextSequenceNumber) {
+            // Karn's rule, widened to every packet the ack covers: one that jumps over a
+            // repaired hole was held back for the repair, and would time the repair as well
+            if (!repairedBetween(receiver.acked, ackNum)) {
+                long rtt = System.nanoTime() - sendTimes[slot(ackNum)];
+                rttEstimator.addSample(rtt);
+                metrics.rttSample(rtt, rttEstimator.getTimeoutNanos());
+            } else {
+                rttEstimator.clearBackoff();
+            }
+            receiver.acked = ackNum;
+        }
+
+        if ((packetFormat.flags(data) & PacketFormat.FLAG_NAK) != 0) {
+            int ranges = Math.min(MAX_NAK_RANGES, (report.getLength() - headerSize - RECEIVER_ID_SIZE) / GoBackNUtils.SACK_BLOCK_SIZE);
+            int offset = headerSize + RECEIVER_ID_SIZE;
+            long bit = 1L << receiver.index;
+            for (int i = 0; i < ranges; i++, offset += GoBackNUtils.SACK_BLOCK_SIZE) {
+                long start = Math.max(receiver.acked + 1,
+                        packetFormat.unwrap(GoBackNUtils.readInt(data, offset) & 0xFFFFFFFFL, sendBase));
+                long end = Math.min(nextSequenceNumber,
+                        packetFormat.unwrap(GoBackNUtils.readInt(data, offset + 4) & 0xFFFFFFFFL, sendBase));
+                for (long seq = start; seq < end; seq++) {
+                    if (repairMasks[slot(seq)] == 0) {
+                        pendingRepairs++;
+                    }
+                    repairMasks[slot(seq)] |= bit;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return whether any packet after {@code ack} up to {@code newAck} has
+     * been sent more than once
+     */
+    private boolean repairedBetween(long ack, long newAck) {
+        for (long seq = Math.max(ack + 1, sendBase); seq <= newAck; seq++) {
+            if (retransmitted[slot(seq)]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Resends every NAKed packet that has not been sent within the last
+     * smoothed RTT; anything sooner is probably still on its way, and more
+     * NAKs for it may yet come in to share the repair.
+     *
+     * @return when the next held-back repair is due, or Long.MAX_VALUE
+     */
+    private long sendRepairs() throws IOException {
+        long now = System.nanoTime();
+        long holdoff = rttEstimator.getSmoothedRttNanos();
+        long nextDue = Long.MAX_VALUE;
+        for (long seq = sendBase; seq < nextSequenceNumber && pendingRepairs > 0; seq++) {
+            long mask = repairMasks[slot(seq)];
+            if (mask == 0) {
+                continue;
+            }
+            long due = sendTimes[slot(seq)] + holdoff;
+            if (due > now) {
+                nextDue = Math.min(nextDue, due);
+                continue;
+            }
+
+            DatagramPacket packet = packetPool.get(seq);
+            if (multicast) {
+                sendTo(packet, destinations.get(0));
+            } else {
+                for (Receiver receiver : receivers) {
+                    if ((mask & 1L << receiver.index) != 0 && !receiver.dropped) {
+                        sendTo(packet, receiver.address);
+                    }
+                }
+            }
+            repairMasks[slot(seq)] = 0;
+            pendingRepairs--;
+            sendTimes[slot(seq)] = now;
+            retransmitted[slot(seq)] = true;
+            repairsSent++;
+            metrics.packetsRetransmitted(1);
+        }
+        return nextDue;
+    }
+
+    /**
+     * Nothing has moved for a timeout: resends the newest packet to whoever
+     * has not got everything, so that a receiver that lost the tail of what
+     * was sent sees the gap and NAKs it.
+     */
+    private void onTimeout() throws IOException {
+        if (nextSequenceNumber > sendBase) {
+            DatagramPacket packet = packetPool.get(nextSequenceNumber - 1);
+            if (multicast) {
+                sendTo(packet, destinations.get(0));
+            } else {
+                for (Receiver receiver : receivers) {
+                    if (!receiver.dropped && receiver.acked < nextSequenceNumber - 1) {
+                        sendTo(packet, receiver.address);
+                    }
+                }
+            }
+            retransmitted[slot(nextSequenceNumber - 1)] = true;
+            metrics.packetsRetransmitted(1);
+        }
+        rttEstimator.onTimeout();
+        metrics.timeout(rttEstimator.getTimeoutNanos());
+        retransmitDeadline = System.nanoTime() + rttEstimator.getTimeoutNanos();
+    }
+
+    /**
+     * Drops receivers that have gone silent, and those that have stayed more
+     * than {@code lagBound} packets behind the fastest for too long.
+     */
+    private void dropStragglers(int lagBound) {
+        long now = System.nanoTime();
+        long leader = -1;
+        for (Receiver receiver : receivers) {
+            if (!receiver.dropped) {
+                if (now - receiver.lastHeard > SILENT_RECEIVER_NANOS && receiver.acked < lastSequenceNumber) {
+                    drop(receiver, "silent");
+                } else {
+                    leader = Math.max(leader, receiver.acked);
+                }
+            }
+        }
+
+        // a lost repair is only NAKed again at the receiver's next report
+        long grace = LAG_GRACE_ROUNDS * (rttEstimator.getTimeoutNanos()
+                + TimeUnit.MILLISECONDS.toNanos(GoBackNFanOutReceiver.REPORT_INTERVAL_MILLIS));
+        for (Receiver receiver : receivers) {
+            if (receiver.dropped || leader - receiver.acked <= lagBound) {
+                receiver.laggingSince = 0;
+            } else if (receiver.laggingSince == 0) {
+                receiver.laggingSince = now;
+            } else if (now - receiver.laggingSince > grace) {
+                drop(receiver, "lagging");
+            }
+        }
+    }
+
+    private void drop(Receiver receiver, String reason) {
+        receiver.dropped = true;
+        receiver.dropReason = reason;
+    }
+
+    private void slideWindow() throws IOException {
+        long slowest = Long.MAX_VALUE;
+        for (Receiver receiver : receivers) {
+            if (!receiver.dropped) {
+                slowest = Math.min(slowest, receiver.acked);
+            }
+        }
+        if (slowest == Long.MAX_VALUE) {
+            throw new IOException("Every receiver was dropped");
+        }
+        if (slowest < sendBase) {
+            return;
+        }
+        // delivered once every receiver still in the transfer has it
+        int newlyAcked = 0;
+        long bytesAcked = 0;
+        while (sendBase <= slowest) {
+            if (repairMasks[slot(sendBase)] != 0) {
+                repairMasks[slot(sendBase)] = 0;
+                pendingRepairs--;
+            }
+            bytesAcked += packetPool.get(sendBase).getLength() - packetFormat.getHeaderSize();
+            newlyAcked++;
+            sendBase++;
+        }
+        metrics.packetsAcked(newlyAcked, bytesAcked);
+        metrics.windowOccupancy((int) (nextSequenceNumber - sendBase));
+        retransmitDeadline = sendBase == nextSequenceNumber ? Long.MAX_VALUE : System.nanoTime() + rttEstimator.getTimeoutNanos();
+    }
+
+    private boolean isComplete() {
+        for (Receiver receiver : receivers) {
+            if (!receiver.dropped && receiver.acked != lastSequenceNumber) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void sendToAll(DatagramPacket packet) throws IOException {
+        if (multicast) {
+            sendTo(packet, destinations.get(0));
+            return;
+        }
+        for (Receiver receiver : receivers) {
+            if (!receiver.dropped) {
+                sendTo(packet, receiver.address);
+            }
+        }
+    }
+
+    private void sendTo(DatagramPacket packet, SocketAddress address) throws IOException {
+        packet.setSocketAddress(address);
+        socket.send(packet);
+        metrics.packetSent();
+    }
+
+    private Receiver findReceiver(int id) {
+        for (Receiver receiver : receivers) {
+            if (receiver.id == id) {
+                return receiver;
+            }
+        }
+        return null;
+    }
+
+    private int slot(long sequenceNumber) {
+        return (int) (sequenceNumber % windowSize);
+    }
+
+    private void makePacket(DatagramPacket packet, long packetNumber, int numberOfBytes, int flags) {
+        if (crc32c) {
+            flags |= PacketFormat.FLAG_CRC32C;
+        }
+        if (packetFormat.hasSessionId()) {
+            packetFormat.writeSessionId(packet.getData(), sessionId);
+        }
+        packet.setLength(packetFormat.encode(packet.getData(), packetNumber, flags, numberOfBytes));
+    }
+
+    private int finishDigest(MessageDigest digest, DatagramPacket packet) throws IOException {
+        try {
+            return digest.digest(packet.getData(), packetFormat.getHeaderSize(), GoBackNUtils.FILE_DIGEST_SIZE);
+        } catch (DigestException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void printSummary(String fileName, long fileSize, long duration) {
+        int completed = 0;
+        StringBuilder dropped = new StringBuilder();
+        for (Receiver receiver : receivers) {
+            if (receiver.dropped) {
+                dropped.append(dropped.length() == 0 ? " (dropped: " : ", ")
+                        .append(String.format("%08x", receiver.id)).append(" at ").append(receiver.address)
+                        .append(' ').append(receiver.dropReason);
+            } else {
+                completed++;
+            }
+        }
+        if (dropped.length() > 0) {
+            dropped.append(')');
+        }
+
+        System.out.println();
+        System.out.println("~~File Transfer Completed~~");
+        System.out.println("File Name: " + fileName);
+        System.out.println("File Size: " + fileSize + " bytes");
+        System.out.println("Transfer Time: " + Long.toString(duration) + " nanoseconds");
+        System.out.println("Timeout Length: " + rttEstimator.getTimeoutMillis() + " milliseconds");
+        System.out.println("Packet Format: " + packetFormat + ", " + payloadSize + " byte payloads");
+        System.out.println("Receivers: " + completed + " of " + expectedReceivers + " completed"
+                + (multicast ? " through " + destinations.get(0) : "") + dropped);
+        System.out.println("Packets Sent: " + metrics.getPacketsSent() + " (" + repairsSent + " repairs, "
+                + metrics.getTimeouts() + " timeouts)");
+        System.out.println();
+        System.out.println(rttEstimator.getTimeoutMillis() + "," + fileSize + "," + windowSize + "," + Long.toString(duration));
+    }
+
+    private static class Receiver {
+        final int id;
+        // its bit in the repair masks
+        final int index;
+        final SocketAddress address;
+        long acked = -1;
+        long lastHeard = System.nanoTime();
+        // since when it has been beyond the lag bound, 0 if it is not
+        long laggingSince;
+        boolean dropped;
+        String dropReason;
+
+        Receiver(int id, int index, SocketAddress address) {
+            this.id = id;
+            this.index = index;
+            this.address = address;
+        }
+    }
+
+    public static void main(String[] argv) throws Exception {
+        if (argv.length < 4) {
+            System.out.println("Usage:");
+            System.out.println("java GoBackNFanOutSender <0> <1> <2> <3> [options]");
+            System.out.println("0: receivers as host:port,host:port,... or one multicast group as group:port");
+            System.out.println("1: UDP port number used by the sender to receive reports from the receivers");
+            System.out.println("2: Name of the file to be transferred");
+            System.out.println("3: Window size <= " + GoBackNSender.MAX_WIDE_WINDOW_SIZE);
+            System.out.println("options:");
+            System.out.println("  receivers=<n>      how many receivers to wait for on a multicast group, default 1");
+            System.out.println("  interface=<name>   network interface for multicast, e.g. lo");
+            System.out.println("  max-lag=<packets>  how far a receiver may fall behind the fastest before it is dropped, default window / 2");
+            System.out.println("  header=<format>    wide or session packet header, must match the receivers");
+            System.out.println("  payload=<bytes>    payload bytes per packet, default " + DEFAULT_PAYLOAD_SIZE);
+            System.out.println("  session=<hex id>   session id for header=session, must match the receivers'");
+            System.out.println("  crc32c             CRC32C per packet instead of the 8-bit checksum");
+            System.out.println("  digest             send a SHA-256 of the file for the receivers to verify");
+            System.out.println("  metrics=<file>     write live transfer metrics as JSON lines, - for stderr");
+            System.out.println("  metrics-every=<ms> how often to write metrics, default 1000");
+            System.exit(1);
+        }
+
+        Map<String, String> options = GoBackNUtils.parseOptions(argv, 4);
+
+        List<InetSocketAddress> destinations = new ArrayList<>();
+        for (String destination : argv[0].split(",")) {
+            int split = destination.lastIndexOf(':');
+            destinations.add(new InetSocketAddress(InetAddress.getByName(destination.substring(0, split)),
+                    Integer.parseInt(destination.substring(split + 1))));
+        }
+        int senderPort = Integer.parseInt(argv[1]);
+        int windowSize = Integer.parseInt(argv[3]);
+
+        if (windowSize > GoBackNSender.MAX_WIDE_WINDOW_SIZE) {
+            System.out.println("Window size must be <= " + GoBackNSender.MAX_WIDE_WINDOW_SIZE);
+            System.exit(1);
+        }
+
+        GoBackNFanOutSender sender = new GoBackNFanOutSender(destinations,
+                Integer.parseInt(options.getOrDefault("receivers", "1")), senderPort, windowSize);
+        sender.setPacketFormat(PacketFormat.fromName(options.getOrDefault("header", "wide")));
+        if (options.containsKey("payload")) {
+            sender.setPayloadSize(Integer.parseInt(options.get("payload")));
+        }
+        if (options.containsKey("session")) {
+            sender.setSessionId(Integer.parseUnsignedInt(options.get("session"), 16));
+        }
+        if (options.containsKey("interface")) {
+            sender.setNetworkInterface(NetworkInterface.getByName(options.get("interface")));
+        }
+        if (options.containsKey("max-lag")) {
+            sender.setMaxLag(Integer.parseInt(options.get("max-lag")));
+        }
+        sender.setCrc32c(options.containsKey("crc32c"));
+        sender.setFileDigest(options.containsKey("digest"));
+        sender.getMetrics().configure(options);
+
+        sender.sendFile(argv[2]);
+        sender.getMetrics().close();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,124 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Publishes one GoBackN flow to a single subscriber, a buffer per packet in
+ * order. The receive loop runs on its own thread and waits for demand before
+ * handing each packet over; meanwhile nothing is read or acked, so a slow
+ * subscriber fills the sender's window and holds the sender back.
+ * Cancelling closes the receiver's socket.
+ */
+public class GoBackNPublisher implements Flow.Publisher<ByteBuffer> {
+    private final GoBackNReceiver receiver;
+    private final int reliabilityNumber;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    public GoBackNPublisher(GoBackNReceiver receiver, int reliabilityNumber) {
+        this.receiver = receiver;
+        this.reliabilityNumber = reliabilityNumber;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                public void request(long n) {
+                }
+
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("A flow can only be received once"));
+            return;
+        }
+
+        final Subscription subscription = new Subscription(subscriber);
+        subscriber.onSubscribe(subscription);
+
+        Thread thread = new Thread(() -> {
+            try {
+                receiver.receive(subscription, reliabilityNumber);
+                if (subscription.isOpen()) {
+                    subscriber.onComplete();
+                }
+            } catch (IOException e) {
+                if (subscription.isOpen()) {
+                    subscriber.onError(e);
+                }
+            }
+        }, "gbn-publisher");
+        thread.start();
+    }
+
+    /**
+     * The channel the receiver writes into, each write blocking until the
+     * subscriber has asked for another buffer.
+     */
+    private class Subscription implements Flow.Subscription, WritableByteChannel {
+        private final Flow.Subscriber<? super ByteBuffer> subscriber;
+        private long demand;
+        private volatile boolean cancelled;
+
+        Subscription(Flow.Subscriber<? super ByteBuffer> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public synchronized void request(long n) {
+            if (n <= 0) {
+                cancel();
+                subscriber.onError(new IllegalArgumentException("Demand must be positive, got " + n));
+                return;
+            }
+            demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+            notifyAll();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            receiver.close();
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            synchronized (this) {
+                while (demand == 0 && !cancelled) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        cancelled = true;
+                    }
+                }
+                if (cancelled) {
+                    throw new AsynchronousCloseException();
+                }
+                demand--;
+            }
+
+            // the receive buffer is reused for the next packet
+            int length = src.remaining();
+            ByteBuffer copy = ByteBuffer.allocate(length);
+            copy.put(src).flip();
+            subscriber.onNext(copy);
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !cancelled;
+        }
+
+        @Override
+        public void close() {
+            cancel();
+        }
+    }
+}
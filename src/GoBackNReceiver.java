@@ -1,112 +1,1351 @@
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 /**
  * Created by jmuia on 2016-03-09.
  */
 public class GoBackNReceiver {
+    public static final int DEFAULT_ACK_DELAY_MILLIS = 5;
+    public static final long DEFAULT_CHECKPOINT_BYTES = 4 * 1024 * 1024;
+    private static final String CHECKPOINT_SUFFIX = ".checkpoint";
+    private static final int INFLATE_BUFFER_SIZE = 64 * 1024;
+    private static final int WRITE_CHUNK_SIZE = 256 * 1024;
+    // out-of-order packets held for selective acks, beyond which they are dropped like before
+    private static final int MAX_BUFFERED_PACKETS = 16384;
+    public static final long DEFAULT_HOLD_BUFFER_BYTES = 16 * 1024 * 1024;
+
     private InetAddress senderAddress;
     private int senderPort;
     private int receiverPort;
 
-    private static final int MAX_WINDOW_SIZE = 128;
+    private PacketFormat packetFormat = PacketFormat.LEGACY;
+
+    private boolean verifyDigest;
+    private int lingerMillis = GoBackNUtils.LINGER_MILLIS;
+    private int ackEvery = 1;
+    private int ackDelayMillis = DEFAULT_ACK_DELAY_MILLIS;
+    private boolean selectiveAcks;
+    private long checkpointInterval;
+    private int syncChunkSize;
+    private int fecGroupSize;
+    private int writeBufferSize;
+    private long syncMillis;
+    private long holdBufferBytes = DEFAULT_HOLD_BUFFER_BYTES;
+
+    // state of the flow being received
+    private PayloadSink sink;
+    private TreeMap<Long, byte[]> outOfOrder;
+    // slots of delivered out-of-order packets, and the bytes of every slot allocated
+    private ArrayDeque<byte[]> freeSlots;
+    private long slotBytes;
+    // null when writing inline on the receiving thread
+    private AsyncWriter asyncWriter;
+    private int largestPayload;
+    // FEC groups from the last delivered packet on, by group index modulo the length
+    private FecGroup[] fecGroups;
+    // set once a FLAG_DEFLATE packet arrives
+    private Inflater inflater;
+    private ByteBuffer inflated;
 
     private DatagramSocket socket;
+    private DatagramPacket ackPacket;
+    private int ackFlags;
+    private int ackSessionId;
+    private AllocationCounter allocationCounter;
+    private final TransferMetrics metrics;
 
     public GoBackNReceiver(InetAddress senderAddress, int senderPort, int receiverPort) {
         this.senderAddress = senderAddress;
         this.senderPort = senderPort;
         this.receiverPort = receiverPort;
+        this.metrics = new TransferMetrics("GoBackNReceiver-" + receiverPort);
     }
 
-    public void receiveFile(String fileName, int reliabilityNumber) throws IOException {
-        FileOutputStream fos = new FileOutputStream(fileName);
+    public void setPacketFormat(PacketFormat packetFormat) {
+        this.packetFormat = packetFormat;
+    }
 
-        int lastAck = -1;
-        boolean endOfFile = false;
-        byte[] rcvBuffer = new byte[GoBackNUtils.MAX_PACKET_SIZE];
+    /**
+     * Requires the sender to finish with a whole-file digest and fails the
+     * transfer if it does not match what was written.
+     */
+    public void setVerifyDigest(boolean verifyDigest) {
+        this.verifyDigest = verifyDigest;
+    }
+
+    /**
+     * How long to keep re-acking after the last packet, so a sender whose
+     * final ack was lost can still finish. 0 leaves straight away.
+     */
+    public void setLingerMillis(int lingerMillis) {
+        this.lingerMillis = lingerMillis;
+    }
+
+    /**
+     * Acks only every {@code ackEvery} in-order packets, or once the oldest
+     * unacked one has waited {@code ackDelayMillis}. Out-of-order packets and
+     * the last packet are still acked straight away, so the sender hears of
+     * holes as soon as they appear.
+     */
+    public void setDelayedAcks(int ackEvery, int ackDelayMillis) {
+        if (ackEvery < 1 || ackDelayMillis < 1) {
+            throw new IllegalArgumentException("Acks must be sent at least every packet and every millisecond");
+        }
+        this.ackEvery = ackEvery;
+        this.ackDelayMillis = ackDelayMillis;
+    }
+
+    /**
+     * Keeps packets that arrive after a hole instead of discarding them, and
+     * lists them in FLAG_SACK blocks on every ack so the sender resends only
+     * what is missing. Needs a wide or session header.
+     */
+    public void setSelectiveAcks(boolean selectiveAcks) {
+        this.selectiveAcks = selectiveAcks;
+    }
+
+    /**
+     * Hands received data to a writer thread through {@code bufferBytes} of
+     * chunks instead of writing it inline, so a slow disk does not stop the
+     * socket being read. Every ack then advertises the free space in
+     * packets (FLAG_WINDOW), which the sender keeps its window within. A
+     * positive {@code syncMillis} forces a file to disk that often. 0 bytes
+     * writes inline as before.
+     */
+    public void setAsyncWrite(int bufferBytes, long syncMillis) {
+        this.writeBufferSize = bufferBytes;
+        this.syncMillis = syncMillis;
+    }
+
+    /**
+     * Caps the memory that packets held for selective acks or FEC take, in
+     * bytes. Slots are reused once their packets are delivered, so what is
+     * held stays within the sender's window; past the cap further
+     * out-of-order packets are dropped and retransmitted like before.
+     */
+    public void setHoldBufferSize(long bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Hold buffer size must not be negative");
+        }
+        this.holdBufferBytes = bytes;
+    }
+
+    /**
+     * Rebuilds a lost packet from the FLAG_PARITY packet the sender sends
+     * after every {@code groupSize} packets, which must match the sender's.
+     * Packets after a hole are held, as with selective acks, so the rebuilt
+     * one releases them without a retransmission. Needs a wide or session
+     * header.
+     */
+    public void setForwardErrorCorrection(int groupSize) {
+        if (groupSize < 0 || groupSize > GoBackNUtils.MAX_FEC_GROUP_SIZE) {
+            throw new IllegalArgumentException("FEC group size must be between 1 and " + GoBackNUtils.MAX_FEC_GROUP_SIZE + ", or 0 for none");
+        }
+        this.fecGroupSize = groupSize;
+    }
+
+    /**
+     * Makes {@link #receiveFile} resumable. Every {@code bytes} of data the
+     * file is forced to disk and the offset it is complete up to, with a
+     * SHA-256 of everything before it, is saved beside it in a .checkpoint
+     * file. A sender asking to resume after a crash then starts there. The
+     * hash costs a digest update per packet. 0 turns checkpoints off.
+     */
+    public void setCheckpointInterval(long bytes) {
+        this.checkpointInterval = bytes;
+    }
+
+    /**
+     * Makes {@link #receiveFile} update the existing file in place instead of
+     * receiving it whole. The file is hashed in chunks of {@code chunkSize}
+     * bytes up front, and a sender set to sync asks for the hashes and sends
+     * only the chunks that differ, each run after a FLAG_STRIPE packet with
+     * its offset. The file is cut to the new length at the end. Needs a wide
+     * or session header; 0 turns it off.
+     */
+    public void setSync(int chunkSize) {
+        this.syncChunkSize = chunkSize;
+    }
+
+    public TransferMetrics getMetrics() {
+        return metrics;
+    }
 
+    /**
+     * Opens the socket ahead of {@link #receive}, so that a sender started
+     * straight afterwards cannot lose its first packets.
+     */
+    public void bind() throws IOException {
         socket = new DatagramSocket(receiverPort);
+        if (packetFormat != PacketFormat.LEGACY) {
+            // large windows of large packets overflow the default buffer in a single burst
+            socket.setReceiveBufferSize(GoBackNUtils.SOCKET_BUFFER_SIZE);
+        }
+    }
 
-        while (!endOfFile) {
-            // receive packet
-            DatagramPacket receivePacket = new DatagramPacket(rcvBuffer, rcvBuffer.length);
-            socket.receive(receivePacket);
+    public void receiveFile(String fileName, int reliabilityNumber) throws IOException {
+        if (syncChunkSize > 0 && checkpointInterval > 0) {
+            throw new IllegalStateException("A synced file cannot also be checkpointed");
+        }
+        // the file takes its name once verified, until then any earlier version keeps it
+        Path target = Paths.get(fileName);
+        Path part = GoBackNUtils.partFile(target);
+        FileChannel fileChannel;
+        if (syncChunkSize > 0 || checkpointInterval > 0) {
+            if (syncChunkSize > 0 && Files.exists(target)) {
+                // chunks are matched against a copy, which replaces the file once it checks out
+                Files.copy(target, part, StandardCopyOption.REPLACE_EXISTING);
+            }
+            // keep what is there: matching chunks, or what an interrupted run wrote
+            fileChannel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } else {
+            fileChannel = FileChannel.open(part,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
 
-            if (GoBackNUtils.isPacketCorrupt(receivePacket)) {
-                continue;
+        boolean completed = false;
+        try {
+            FileSink fileSink;
+            if (syncChunkSize > 0) {
+                fileSink = new SyncSink(fileChannel, part, target, ChunkManifest.of(fileChannel, syncChunkSize));
+            } else if (checkpointInterval > 0) {
+                // the checkpoint says how much of the file is good
+                fileSink = new CheckpointSink(fileChannel, part, target, Paths.get(fileName + CHECKPOINT_SUFFIX));
+            } else {
+                fileSink = new FileSink(fileChannel, part, target);
             }
+            receive(fileSink, reliabilityNumber);
+            completed = true;
+            printSummary(System.out);
+        } finally {
+            fileChannel.close();
+            // already closed unless the transfer failed
+            close();
+            if (!completed && checkpointInterval == 0) {
+                // nothing to resume from
+                Files.deleteIfExists(part);
+            }
+        }
+    }
 
-            byte[] data = Arrays.copyOfRange(receivePacket.getData(), 0, receivePacket.getLength());
-            byte header = data[0];
+    /**
+     * Receives a session of files sent back to back by
+     * {@link GoBackNSender#sendFiles}, each into {@code directory} under the
+     * name its FLAG_STRIPE packet carries, replacing any file of that name.
+     * With a digest, each file is checked as soon as it is complete, and
+     * only then takes its name.
+     */
+    public void receiveFiles(String directory, int reliabilityNumber) throws IOException {
+        if (packetFormat == PacketFormat.LEGACY) {
+            throw new IllegalStateException("Sessions of files need the wide or session packet format");
+        }
+        if (syncChunkSize > 0 || checkpointInterval > 0) {
+            throw new IllegalStateException("Sessions receive whole files, without sync or checkpoints");
+        }
+        SessionSink session = new SessionSink(Paths.get(directory));
+        try {
+            receive(session, reliabilityNumber);
+            printSummary(System.out);
+        } finally {
+            // left open by a session that failed
+            session.abort();
+            close();
+        }
+    }
+
+    private void printSummary(PrintStream out) {
+        out.println("File transfer completed");
+        sink.printSummary(out);
+        out.println("Packets Received: " + metrics.getPacketsReceived() + " (" + metrics.getPacketsDropped() + " dropped, "
+                + metrics.getPacketsOutOfOrder() + " out of order, " + metrics.getChecksumFailures() + " corrupt)");
+        out.println("Receiver Thread Allocations: " + allocationCounter.summary());
+        if (asyncWriter != null) {
+            out.println("Disk Writer: " + asyncWriter.getWrites() + " writes of up to " + WRITE_CHUNK_SIZE
+                    + " bytes, receiving waited " + asyncWriter.getWaits() + " times for buffer space");
+        }
+        if (fecGroupSize > 0) {
+            out.println("FEC: " + metrics.getPacketsRecovered() + " packets rebuilt from parity");
+        }
+        if (verifyDigest) {
+            out.println("File Digest: " + GoBackNUtils.FILE_DIGEST_ALGORITHM + " verified");
+        }
+    }
 
-            boolean endOfFileBit = (header >> GoBackNUtils.EOT_INDEX & 1) == 1;
+    /**
+     * Receives one flow into a file channel that other flows may be writing
+     * too. Data goes at the offset announced by a FLAG_STRIPE packet, or at
+     * the start of the file if there is none.
+     */
+    public void receive(FileChannel fileChannel, int reliabilityNumber) throws IOException {
+        receive(new FileSink(fileChannel, null, null), reliabilityNumber);
+    }
 
-            header &= ~(1 << GoBackNUtils.EOT_INDEX);
-            int seqNum = header & 0xFF;
+    /**
+     * Receives one flow, writing its data to {@code output} in order as it
+     * arrives. A slow channel slows the transfer down: packets are not read
+     * off the socket, and so not acked, while a write is blocked.
+     */
+    public void receive(WritableByteChannel output, int reliabilityNumber) throws IOException {
+        receive(new ChannelSink(output), reliabilityNumber);
+    }
 
-            byte[] body = Arrays.copyOfRange(data, 2, data.length);
+    public void receive(OutputStream out, int reliabilityNumber) throws IOException {
+        receive(Channels.newChannel(out), reliabilityNumber);
+        out.flush();
+    }
 
-            if (shouldDropPacket(reliabilityNumber)) {
-                // System.out.println("Dropping packet: reliability number.");
+    /**
+     * Publishes the flow as it arrives, one buffer per packet, to a single
+     * subscriber. Receiving starts on subscription and only proceeds while
+     * the subscriber has outstanding demand.
+     */
+    public Flow.Publisher<ByteBuffer> publisher(int reliabilityNumber) {
+        return new GoBackNPublisher(this, reliabilityNumber);
+    }
 
-            } else {
-                int ackNum;
-                if (seqNum == (lastAck + 1) % MAX_WINDOW_SIZE) {
-                    fos.write(body);
-                    ackNum = seqNum;
-                    lastAck = (lastAck + 1) % MAX_WINDOW_SIZE;
-                    endOfFile = endOfFileBit;
+    /**
+     * Closes the socket, ending a transfer in progress with an exception.
+     */
+    public void close() {
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
+    private void receive(PayloadSink sink, int reliabilityNumber) throws IOException {
+        if ((selectiveAcks || fecGroupSize > 0 || writeBufferSize > 0 || syncChunkSize > 0) && packetFormat == PacketFormat.LEGACY) {
+            throw new IllegalStateException("Selective acks, FEC, write buffers and sync need the wide or session packet format");
+        }
+        boolean holdOutOfOrder = selectiveAcks || fecGroupSize > 0;
+
+        long lastAck = -1;
+        boolean endOfFile = false;
+        int unackedPackets = 0;
+        // when the oldest unacked packet has waited the ack delay
+        long ackDeadline = Long.MAX_VALUE;
+        byte[] rcvBuffer = new byte[packetFormat.getMaxPacketSize()];
+        DatagramPacket receivePacket = new DatagramPacket(rcvBuffer, rcvBuffer.length);
+        ByteBuffer body = ByteBuffer.wrap(rcvBuffer);
+        int headerSize = packetFormat.getHeaderSize();
+
+        this.sink = sink;
+        sink.start();
+        outOfOrder = new TreeMap<>();
+        freeSlots = new ArrayDeque<>();
+        slotBytes = 0;
+        if (fecGroupSize > 0) {
+            // enough groups to cover every packet that can be held
+            fecGroups = new FecGroup[MAX_BUFFERED_PACKETS / fecGroupSize + 2];
+            for (int i = 0; i < fecGroups.length; i++) {
+                fecGroups[i] = new FecGroup();
+            }
+        }
+        if (inflater != null) {
+            // left by a flow that failed
+            inflater.end();
+            inflater = null;
+        }
+
+        int ackSize = headerSize + (holdOutOfOrder ? GoBackNUtils.MAX_SACK_BLOCKS * GoBackNUtils.SACK_BLOCK_SIZE : 0)
+                + (writeBufferSize > 0 ? GoBackNUtils.ADVERTISED_WINDOW_SIZE : 0);
+        ackPacket = new DatagramPacket(new byte[ackSize], ackSize, senderAddress, senderPort);
+
+        if (socket == null || socket.isClosed()) {
+            bind();
+        }
+
+        LossModel lossModel = LossModel.fromReliabilityNumber(reliabilityNumber);
+        // a session opens a writer for each file as it starts
+        asyncWriter = writeBufferSize > 0 && sink.output != null
+                ? new AsyncWriter(sink.output, WRITE_CHUNK_SIZE, Math.max(2, writeBufferSize / WRITE_CHUNK_SIZE), syncMillis)
+                : null;
+        largestPayload = 0;
+        allocationCounter = new AllocationCounter();
+        metrics.start();
+
+        try {
+            while (!endOfFile) {
+                if (unackedPackets > 0) {
+                    long waitNanos = ackDeadline - System.nanoTime();
+                    if (waitNanos <= 0) {
+                        // packets kept arriving, but the oldest has waited long enough
+                        sendAck(lastAck);
+                        unackedPackets = 0;
+                        socket.setSoTimeout(0);
+                    } else {
+                        // whole milliseconds, rounded up so the deadline has passed on waking
+                        socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMillis(waitNanos + 999999)));
+                    }
+                }
+
+                // receive packet
+                receivePacket.setLength(rcvBuffer.length);
+                try {
+                    socket.receive(receivePacket);
+                } catch (SocketTimeoutException e) {
+                    // nothing more came within the ack delay
+                    sendAck(lastAck);
+                    unackedPackets = 0;
+                    socket.setSoTimeout(0);
+                    continue;
+                }
+                allocationCounter.countPacket();
+                metrics.packetReceived();
+
+                if (packetFormat.isCorrupt(receivePacket)) {
+                    metrics.checksumFailure();
+                    continue;
+                }
+
+                // decode in place, the body is written straight out of the receive buffer
+                int flags = packetFormat.flags(rcvBuffer);
+                long seqNum = packetFormat.unwrap(packetFormat.sequenceNumber(rcvBuffer), lastAck);
+
+                if (lossModel.shouldDrop()) {
+                    // System.out.println("Dropping packet: reliability number.");
+                    metrics.packetDropped();
+                    continue;
+                }
+
+                // acks are protected the same way as the data
+                ackFlags = flags & PacketFormat.FLAG_CRC32C;
+                ackSessionId = packetFormat.sessionId(rcvBuffer);
+
+                if ((flags & PacketFormat.FLAG_CONTROL) != 0) {
+                    // answered until the data starts, later copies are stale
+                    if (lastAck == -1) {
+                        int request = headerSize + GoBackNUtils.CONTROL_TYPE_SIZE;
+                        sink.control(GoBackNUtils.controlType(rcvBuffer, receivePacket.getLength(), headerSize),
+                                rcvBuffer, request, receivePacket.getLength() - request);
+                    }
+                    continue;
+                }
+
+                if ((flags & PacketFormat.FLAG_PARITY) != 0) {
+                    // the group may start a little before the next expected packet
+                    long groupStart = packetFormat.unwrap(packetFormat.sequenceNumber(rcvBuffer), lastAck + 1 - fecGroupSize);
+                    seqNum = fecGroupSize > 0 ? recover(receivePacket, groupStart, lastAck) : -1;
+                    if (seqNum == -1) {
+                        continue;
+                    }
+                    // carry on as if the rebuilt packet had arrived
+                    flags = packetFormat.flags(rcvBuffer);
+                    metrics.packetRecovered();
+                }
+
+                boolean ackNow;
+                if (seqNum == lastAck + 1) {
+                    if (fecGroupSize > 0) {
+                        addToFecGroup(seqNum, rcvBuffer, receivePacket.getLength() - headerSize, flags);
+                    }
+                    deliver(body, receivePacket.getLength() - headerSize, flags);
+                    lastAck = lastAck + 1;
+                    endOfFile = (flags & PacketFormat.FLAG_EOT) != 0;
+
+                    // a filled hole releases whatever was held back behind it
+                    boolean filledHole = false;
+                    while (!endOfFile && !outOfOrder.isEmpty() && outOfOrder.firstKey() == lastAck + 1) {
+                        byte[] packet = outOfOrder.pollFirstEntry().getValue();
+                        int packetFlags = packetFormat.flags(packet);
+                        // a reused slot can be longer than its packet
+                        deliver(ByteBuffer.wrap(packet), GoBackNUtils.readShort(packet, 2), packetFlags);
+                        freeSlots.push(packet);
+                        lastAck = lastAck + 1;
+                        endOfFile = (packetFlags & PacketFormat.FLAG_EOT) != 0;
+                        filledHole = true;
+                    }
+                    if (endOfFile) {
+                        // the final ack says the file arrived intact, so it waits for the checks
+                        finish();
+                    }
+
+                    unackedPackets++;
+                    ackNow = unackedPackets >= ackEvery || endOfFile || filledHole || !outOfOrder.isEmpty();
 
                 } else {
-                    ackNum = lastAck;
+                    byte[] slot = holdOutOfOrder && seqNum > lastAck + 1 && seqNum <= lastAck + MAX_BUFFERED_PACKETS
+                            && !outOfOrder.containsKey(seqNum) ? holdSlot(receivePacket.getLength()) : null;
+                    if (slot != null) {
+                        System.arraycopy(rcvBuffer, 0, slot, 0, receivePacket.getLength());
+                        outOfOrder.put(seqNum, slot);
+                        if (fecGroupSize > 0) {
+                            addToFecGroup(seqNum, rcvBuffer, receivePacket.getLength() - headerSize, flags);
+                        }
+                    }
+                    metrics.packetOutOfOrder();
+                    ackNow = true;
                 }
-                // make and send ACK
-                socket.send(makePacket(ackNum));
+
+                if (ackNow) {
+                    sendAck(lastAck);
+                    if (unackedPackets > 0 && ackEvery > 1) {
+                        socket.setSoTimeout(0);
+                    }
+                    unackedPackets = 0;
+                } else if (unackedPackets == 1) {
+                    // the first unacked packet starts the delay
+                    ackDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ackDelayMillis);
+                }
+            }
+        } finally {
+            if (asyncWriter != null) {
+                asyncWriter.stop();
             }
         }
 
-        fos.close();
+        socket.setSoTimeout(0);
+        outOfOrder = null;
+        freeSlots = null;
+        linger(receivePacket, makePacket(lastAck));
         socket.close();
-        System.out.println("File transfer completed");
+
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
     }
 
-    private DatagramPacket makePacket(int packetNumber) {
-        byte[] data = { (byte) packetNumber, 0 };
-        byte checksum = GoBackNUtils.checksum(data);
-        data[1] = checksum;
-        return new DatagramPacket(data, data.length, senderAddress, senderPort);
+    /**
+     * Checks the flow once its last packet has been delivered, ahead of the
+     * final ack. A failed check is reported to the sender instead.
+     */
+    private void finish() throws IOException {
+        if (asyncWriter != null) {
+            asyncWriter.flush();
+        }
+        if (inflater != null && !inflater.finished()) {
+            throw reject("Compressed data ends before the end of its zlib stream");
+        }
+        sink.finish();
+    }
+
+    /**
+     * Tells the sender why the transfer failed, in place of the final ack,
+     * and answers its retransmissions the same way until it goes quiet.
+     *
+     * @return the exception to fail the transfer with
+     */
+    private IOException reject(String reason) throws IOException {
+        if (packetFormat != PacketFormat.LEGACY) {
+            int headerSize = packetFormat.getHeaderSize();
+            byte[] reply = new byte[packetFormat.getMaxPacketSize()];
+            int length = GoBackNUtils.writeRejection(reply, headerSize, reason, packetFormat.getMaxPayloadSize());
+            if (packetFormat.hasSessionId()) {
+                packetFormat.writeSessionId(reply, ackSessionId);
+            }
+            length = packetFormat.encode(reply, -1, ackFlags | PacketFormat.FLAG_CONTROL, length);
+            DatagramPacket rejection = new DatagramPacket(reply, length, senderAddress, senderPort);
+            socket.send(rejection);
+            metrics.packetSent();
+            linger(new DatagramPacket(new byte[reply.length], reply.length), rejection);
+        }
+        return new IOException(reason);
+    }
+
+    /**
+     * Handles the next in-order packet, whose payload is at the header offset
+     * of {@code packet}.
+     */
+    private void deliver(ByteBuffer packet, int length, int flags) throws IOException {
+        int headerSize = packetFormat.getHeaderSize();
+        if ((flags & PacketFormat.FLAG_DIGEST) != 0) {
+            // not file data: kept to check before the final ack
+            sink.digest(packet.array(), headerSize, length);
+        } else if ((flags & PacketFormat.FLAG_STRIPE) != 0) {
+            sink.stripe(packet.array(), headerSize, length);
+        } else {
+            packet.limit(headerSize + length);
+            packet.position(headerSize);
+            largestPayload = Math.max(largestPayload, length);
+            if ((flags & PacketFormat.FLAG_DEFLATE) != 0) {
+                inflate(packet);
+            } else {
+                sink.write(packet);
+            }
+            sink.delivered(packet.array(), headerSize, length);
+            metrics.packetDelivered(length);
+        }
     }
 
-    private boolean shouldDropPacket(int rn) {
-        if (rn < 1) { return false; }
-        double random = Math.random();
-        return random <= (1 / rn);
+    /**
+     * Folds a packet accepted for the first time into the XOR of its group.
+     */
+    private void addToFecGroup(long seqNum, byte[] packet, int length, int flags) {
+        FecGroup group = fecGroup(seqNum - seqNum % fecGroupSize);
+        long bit = 1L << (seqNum - group.start);
+        if ((group.received & bit) != 0) {
+            return;
+        }
+        group.received |= bit;
+        group.count++;
+        group.lengthsAndFlags ^= length << 8 | (flags & ~PacketFormat.FLAG_CRC32C);
+        if (group.payload.length < length) {
+            group.payload = Arrays.copyOf(group.payload, length);
+        }
+        GoBackNUtils.xor(packet, packetFormat.getHeaderSize(), group.payload, 0, length);
+        group.length = Math.max(group.length, length);
+    }
+
+    private FecGroup fecGroup(long start) {
+        FecGroup group = fecGroups[(int) (start / fecGroupSize % fecGroups.length)];
+        if (group.start != start) {
+            // the group that was here has long been delivered
+            Arrays.fill(group.payload, 0, group.length, (byte) 0);
+            group.start = start;
+            group.received = 0;
+            group.count = 0;
+            group.lengthsAndFlags = 0;
+            group.length = 0;
+        }
+        return group;
+    }
+
+    /**
+     * A slot to hold an out-of-order packet of {@code length} bytes in,
+     * reused from a delivered packet if one is big enough, otherwise
+     * allocated within the hold budget.
+     *
+     * @return null if the budget is spent and the packet has to be dropped
+     */
+    private byte[] holdSlot(int length) {
+        byte[] slot = freeSlots.poll();
+        if (slot != null && slot.length >= length) {
+            return slot;
+        }
+        if (slot != null) {
+            // too small for this packet, its bytes go towards a new slot
+            slotBytes -= slot.length;
+        }
+        if (slotBytes + length > holdBufferBytes) {
+            return null;
+        }
+        slotBytes += length;
+        return new byte[length];
+    }
+
+    /**
+     * Rebuilds the one packet of a group that has not arrived from the
+     * group's parity packet, in place of the parity in the receive buffer.
+     *
+     * @return the sequence number of the rebuilt packet, or -1 if none of
+     * the group is missing, more than one is, or it is delivered already
+     */
+    private long recover(DatagramPacket receivePacket, long groupStart, long lastAck) {
+        byte[] packet = receivePacket.getData();
+        int headerSize = packetFormat.getHeaderSize();
+        int count = GoBackNUtils.readShort(packet, headerSize);
+        if (groupStart % fecGroupSize != 0 || count < 1 || count > fecGroupSize
+                || groupStart + count - 1 <= lastAck || groupStart > lastAck + MAX_BUFFERED_PACKETS) {
+            return -1;
+        }
+        FecGroup group = fecGroup(groupStart);
+        if (group.count != count - 1) {
+            return -1;
+        }
+
+        int missing = Long.numberOfTrailingZeros(~group.received);
+        int lengthAndFlags = GoBackNUtils.readInt(packet, headerSize + 2) ^ group.lengthsAndFlags;
+        int length = lengthAndFlags >>> 8;
+        if (length > receivePacket.getLength() - headerSize - GoBackNUtils.FEC_HEADER_SIZE) {
+            return -1;
+        }
+
+        // the payload moves down over the parity header
+        for (int i = 0; i < length; i++) {
+            byte known = i < group.payload.length ? group.payload[i] : 0;
+            packet[headerSize + i] = (byte) (packet[headerSize + GoBackNUtils.FEC_HEADER_SIZE + i] ^ known);
+        }
+        long seqNum = groupStart + missing;
+        int flags = lengthAndFlags & 0xFF | packetFormat.flags(packet) & PacketFormat.FLAG_CRC32C;
+        receivePacket.setLength(packetFormat.encode(packet, seqNum, flags, length));
+        return seqNum;
+    }
+
+    /**
+     * Inflates the next slice of the sender's zlib stream and writes out
+     * whatever it completes. The input is used up before returning, since
+     * the receive buffer holding it is reused for the next packet.
+     */
+    private void inflate(ByteBuffer compressed) throws IOException {
+        if (inflater == null) {
+            inflater = new Inflater();
+            inflated = ByteBuffer.allocate(INFLATE_BUFFER_SIZE);
+        }
+        inflater.setInput(compressed);
+        try {
+            while (!inflater.finished()) {
+                inflated.clear();
+                int length = inflater.inflate(inflated);
+                inflated.flip();
+                sink.write(inflated);
+                if (length == 0) {
+                    if (!inflater.needsInput()) {
+                        throw new IOException("Compressed data needs a preset dictionary");
+                    }
+                    break;
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Compressed data is corrupt", e);
+        }
+    }
+
+    /**
+     * Answers a resume request with a checkpoint, offset 0 and no hash if
+     * there is none.
+     */
+    private void sendResumeInfo(long offset, byte[] hash) throws IOException {
+        int headerSize = packetFormat.getHeaderSize();
+        byte[] reply = new byte[headerSize + GoBackNUtils.CONTROL_TYPE_SIZE + GoBackNUtils.RESUME_INFO_SIZE];
+        int infoLength = GoBackNUtils.writeResumeInfo(reply, headerSize, offset, hash);
+        if (packetFormat.hasSessionId()) {
+            packetFormat.writeSessionId(reply, ackSessionId);
+        }
+        int length = packetFormat.encode(reply, -1, ackFlags | PacketFormat.FLAG_CONTROL, infoLength);
+        socket.send(new DatagramPacket(reply, length, senderAddress, senderPort));
+        metrics.packetSent();
+    }
+
+    /**
+     * Answers a sync request with up to {@code maxHashes} of the manifest's
+     * chunk hashes from chunk {@code first} on, as many as fit in a packet.
+     */
+    private void sendManifestPiece(ChunkManifest manifest, int first, int maxHashes) throws IOException {
+        int headerSize = packetFormat.getHeaderSize();
+        int fit = (packetFormat.getMaxPayloadSize() - GoBackNUtils.CONTROL_TYPE_SIZE - ChunkManifest.PIECE_HEADER_SIZE)
+                / ChunkManifest.HASH_SIZE;
+        byte[] reply = new byte[packetFormat.getMaxPacketSize()];
+        reply[headerSize] = PacketFormat.CONTROL_SYNC_PIECE;
+        int pieceLength = manifest.writePiece(reply, headerSize + GoBackNUtils.CONTROL_TYPE_SIZE, first, Math.min(maxHashes, fit));
+        if (packetFormat.hasSessionId()) {
+            packetFormat.writeSessionId(reply, ackSessionId);
+        }
+        int length = packetFormat.encode(reply, -1, ackFlags | PacketFormat.FLAG_CONTROL,
+                GoBackNUtils.CONTROL_TYPE_SIZE + pieceLength);
+        socket.send(new DatagramPacket(reply, length, senderAddress, senderPort));
+        metrics.packetSent();
+    }
+
+    private void sendAck(long ackNum) throws IOException {
+        socket.send(makePacket(ackNum));
+        metrics.packetSent();
+    }
+
+    /**
+     * Answers every packet with {@code reply}, the final ack or a rejection,
+     * until the sender goes quiet.
+     */
+    private void linger(DatagramPacket receivePacket, DatagramPacket reply) throws IOException {
+        if (lingerMillis <= 0) {
+            return;
+        }
+
+        socket.setSoTimeout(lingerMillis);
+        try {
+            while (true) {
+                receivePacket.setLength(receivePacket.getData().length);
+                socket.receive(receivePacket);
+                if (!packetFormat.isCorrupt(receivePacket)) {
+                    socket.send(reply);
+                    metrics.packetSent();
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // the sender has gone quiet, so it has its reply
+        }
+    }
+
+    private DatagramPacket makePacket(long packetNumber) {
+        // one buffer serves every ack
+        byte[] ack = ackPacket.getData();
+        if (packetFormat.hasSessionId()) {
+            packetFormat.writeSessionId(ack, ackSessionId);
+        }
+        int flags = ackFlags;
+        int length = 0;
+        if (asyncWriter != null) {
+            GoBackNUtils.writeInt(ack, packetFormat.getHeaderSize(), advertisedWindow());
+            flags |= PacketFormat.FLAG_WINDOW;
+            length = GoBackNUtils.ADVERTISED_WINDOW_SIZE;
+        }
+        int blocks = outOfOrder == null || outOfOrder.isEmpty() ? 0 : writeSackBlocks(ack, packetFormat.getHeaderSize() + length);
+        if (blocks > 0) {
+            flags |= PacketFormat.FLAG_SACK;
+        }
+        ackPacket.setLength(packetFormat.encode(ack, packetNumber, flags, length + blocks * GoBackNUtils.SACK_BLOCK_SIZE));
+        return ackPacket;
+    }
+
+    /**
+     * Packets past the acked one the writer can take without waiting, never
+     * 0: the sender may always send one, which also tells it when the window
+     * opens again.
+     */
+    private int advertisedWindow() {
+        long packets = asyncWriter.getFreeBytes() / Math.max(1, largestPayload);
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, packets));
+    }
+
+    /**
+     * Describes the lowest runs of held-back packets, the ones the sender
+     * most needs to know about to fill the first holes.
+     *
+     * @return the number of blocks written
+     */
+    private int writeSackBlocks(byte[] ack, int offset) {
+        int blocks = 0;
+        long start = -1;
+        long end = -1;
+        Iterator<Long> i = outOfOrder.keySet().iterator();
+        while (blocks < GoBackNUtils.MAX_SACK_BLOCKS) {
+            long seqNum = i.hasNext() ? i.next() : -1;
+            if (seqNum != -1 && seqNum == end) {
+                end++;
+                continue;
+            }
+            if (start != -1) {
+                GoBackNUtils.writeInt(ack, offset, (int) start);
+                GoBackNUtils.writeInt(ack, offset + 4, (int) end);
+                offset += GoBackNUtils.SACK_BLOCK_SIZE;
+                blocks++;
+            }
+            if (seqNum == -1) {
+                break;
+            }
+            start = seqNum;
+            end = seqNum + 1;
+        }
+        return blocks;
+    }
+
+    /**
+     * Where the data of a flow goes: a stream, a file written at the
+     * offsets the sender gives, or the files of a session. The receive loop
+     * hands it the packets in order, and has it check the flow before the
+     * final ack.
+     */
+    private abstract class PayloadSink {
+        // null between the files of a session
+        WritableByteChannel output;
+        long position;
+        // hash of the data delivered so far, null when it is not checked as it arrives
+        MessageDigest digest;
+        byte[] expectedDigest;
+
+        void start() throws IOException {
+            position = 0;
+            digest = verifyDigest ? GoBackNUtils.newFileDigest() : null;
+            expectedDigest = null;
+        }
+
+        /**
+         * Answers a control request sent ahead of the data. Without a
+         * checkpoint or manifest, offset 0 answers a sync request too.
+         */
+        void control(int type, byte[] request, int offset, int length) throws IOException {
+            if (type == PacketFormat.CONTROL_RESUME_REQUEST || type == PacketFormat.CONTROL_SYNC_REQUEST) {
+                sendResumeInfo(0, null);
+            }
+        }
+
+        /**
+         * A FLAG_STRIPE packet, with the offset the data after it goes at.
+         */
+        void stripe(byte[] packet, int offset, int length) throws IOException {
+            throw new IOException("Striped flows need a file to write into");
+        }
+
+        void digest(byte[] packet, int offset, int length) throws IOException {
+            expectedDigest = Arrays.copyOfRange(packet, offset, offset + length);
+        }
+
+        void write(ByteBuffer data) throws IOException {
+            if (asyncWriter != null) {
+                int length = data.remaining();
+                asyncWriter.write(data, position);
+                position += length;
+                return;
+            }
+            while (data.hasRemaining()) {
+                position += output.write(data);
+            }
+        }
+
+        /**
+         * Called once a payload of data has been written.
+         */
+        void delivered(byte[] packet, int offset, int length) throws IOException {
+            if (digest != null) {
+                digest.update(packet, offset, length);
+            }
+        }
+
+        /**
+         * Checks the flow once its last packet has been delivered, with the
+         * writer flushed.
+         */
+        void finish() throws IOException {
+            if (!digestMatches()) {
+                throw reject("File digest mismatch, received data is corrupt");
+            }
+        }
+
+        boolean digestMatches() throws IOException {
+            if (!verifyDigest) {
+                return true;
+            }
+            if (expectedDigest == null) {
+                throw reject("Sender did not send a file digest");
+            }
+            return MessageDigest.isEqual(expectedDigest, digest.digest());
+        }
+
+        void printSummary(PrintStream out) {
+        }
+    }
+
+    /**
+     * Writes the flow to a channel in order.
+     */
+    private class ChannelSink extends PayloadSink {
+        ChannelSink(WritableByteChannel output) {
+            this.output = output;
+        }
+    }
+
+    /**
+     * Writes the flow into a file at the offsets FLAG_STRIPE packets give,
+     * from the start without one. With a part file, the file takes its
+     * target name once it checks out.
+     */
+    private class FileSink extends PayloadSink {
+        FileChannel fileChannel;
+        final Path partFile;
+        final Path targetFile;
+
+        FileSink(FileChannel fileChannel, Path partFile, Path targetFile) {
+            this.fileChannel = fileChannel;
+            this.output = fileChannel;
+            this.partFile = partFile;
+            this.targetFile = targetFile;
+        }
+
+        @Override
+        void stripe(byte[] packet, int offset, int length) throws IOException {
+            position = GoBackNUtils.readLong(packet, offset);
+        }
+
+        @Override
+        void write(ByteBuffer data) throws IOException {
+            if (asyncWriter != null) {
+                super.write(data);
+                return;
+            }
+            while (data.hasRemaining()) {
+                position += fileChannel.write(data, position);
+            }
+        }
+
+        @Override
+        void finish() throws IOException {
+            super.finish();
+            if (partFile != null) {
+                Files.move(partFile, targetFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+    }
+
+    /**
+     * A file that can be resumed. Every checkpointInterval bytes it is forced
+     * to disk and the offset it is complete up to, with a SHA-256 of
+     * everything before it, is saved in the checkpoint file. A sender asking
+     * to resume is told of the checkpoint an earlier run left.
+     */
+    private class CheckpointSink extends FileSink {
+        private final Path checkpointFile;
+        private long checkpointedPosition;
+        // what an earlier run left behind, offset 0 and no hash if nothing usable
+        private long resumeOffset;
+        private byte[] resumeHash;
+        private MessageDigest resumeDigest;
+
+        CheckpointSink(FileChannel fileChannel, Path partFile, Path targetFile, Path checkpointFile) throws IOException {
+            super(fileChannel, partFile, targetFile);
+            this.checkpointFile = checkpointFile;
+            loadCheckpoint();
+        }
+
+        @Override
+        void start() throws IOException {
+            super.start();
+            // hashed either way, for the checkpoints
+            digest = GoBackNUtils.newFileDigest();
+            checkpointedPosition = 0;
+        }
+
+        @Override
+        void control(int type, byte[] request, int offset, int length) throws IOException {
+            if (type == PacketFormat.CONTROL_RESUME_REQUEST || type == PacketFormat.CONTROL_SYNC_REQUEST) {
+                sendResumeInfo(resumeOffset, resumeHash);
+            }
+        }
+
+        @Override
+        void stripe(byte[] packet, int offset, int length) throws IOException {
+            super.stripe(packet, offset, length);
+            // a resumed flow continues the hash of the data already on disk
+            if (resumeDigest != null && position == resumeOffset) {
+                digest = resumeDigest;
+            } else if (position != 0) {
+                throw new IOException("Sender resumed at " + position + " but the checkpoint is at " + resumeOffset);
+            }
+            checkpointedPosition = position;
+        }
+
+        @Override
+        void delivered(byte[] packet, int offset, int length) throws IOException {
+            super.delivered(packet, offset, length);
+            if (position - checkpointedPosition >= checkpointInterval) {
+                writeCheckpoint();
+            }
+        }
+
+        @Override
+        void finish() throws IOException {
+            // cut off whatever an earlier attempt left past the end
+            fileChannel.truncate(position);
+            if (!digestMatches()) {
+                // what was checkpointed cannot be trusted either
+                Files.deleteIfExists(checkpointFile);
+                throw reject("File digest mismatch, received data is corrupt");
+            }
+            Files.move(partFile, targetFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(checkpointFile);
+        }
+
+        /**
+         * Records that the file is complete up to the current position. The
+         * data is forced to disk first, so a crash never leaves a checkpoint
+         * ahead of it, and the record is replaced in one atomic rename.
+         */
+        private void writeCheckpoint() throws IOException {
+            if (asyncWriter != null) {
+                asyncWriter.flush();
+            }
+            fileChannel.force(false);
+            String record = position + " " + HexFormat.of().formatHex(GoBackNUtils.peekDigest(digest)) + "\n";
+            Path temp = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+            Files.write(temp, record.getBytes(StandardCharsets.US_ASCII));
+            Files.move(temp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            checkpointedPosition = position;
+        }
+
+        /**
+         * Picks up the checkpoint of an earlier run, provided the file still
+         * holds the data it describes. Otherwise the transfer starts over.
+         */
+        private void loadCheckpoint() throws IOException {
+            if (!Files.exists(checkpointFile)) {
+                return;
+            }
+
+            long offset;
+            byte[] hash;
+            try {
+                String[] record = new String(Files.readAllBytes(checkpointFile), StandardCharsets.US_ASCII).trim().split(" ");
+                offset = Long.parseLong(record[0]);
+                hash = HexFormat.of().parseHex(record[1]);
+            } catch (RuntimeException e) {
+                // unreadable, e.g. cut short
+                return;
+            }
+            if (offset > fileChannel.size()) {
+                return;
+            }
+
+            MessageDigest prefix = GoBackNUtils.newFileDigest();
+            GoBackNUtils.updateDigest(prefix, fileChannel, 0, offset);
+            if (MessageDigest.isEqual(hash, GoBackNUtils.peekDigest(prefix))) {
+                resumeOffset = offset;
+                resumeHash = hash;
+                resumeDigest = prefix;
+            }
+        }
+    }
+
+    /**
+     * A copy of the existing file, updated with the chunks a syncing sender
+     * finds changed and hashed once it is complete, since most of it is
+     * never received.
+     */
+    private class SyncSink extends FileSink {
+        private final ChunkManifest manifest;
+
+        SyncSink(FileChannel fileChannel, Path partFile, Path targetFile, ChunkManifest manifest) {
+            super(fileChannel, partFile, targetFile);
+            this.manifest = manifest;
+        }
+
+        @Override
+        void start() throws IOException {
+            super.start();
+            digest = null;
+        }
+
+        @Override
+        void control(int type, byte[] request, int offset, int length) throws IOException {
+            if (type == PacketFormat.CONTROL_SYNC_REQUEST && length >= GoBackNUtils.SYNC_REQUEST_SIZE) {
+                sendManifestPiece(manifest, GoBackNUtils.readInt(request, offset), GoBackNUtils.readInt(request, offset + 4));
+            } else {
+                super.control(type, request, offset, length);
+            }
+        }
+
+        @Override
+        void finish() throws IOException {
+            // cut off whatever the older version of the file had past the new end
+            fileChannel.truncate(position);
+            if (verifyDigest) {
+                digest = GoBackNUtils.newFileDigest();
+                GoBackNUtils.updateDigest(digest, fileChannel, 0, position);
+            }
+            super.finish();
+        }
+
+        @Override
+        void printSummary(PrintStream out) {
+            out.println("Sync: " + manifest.getChunkCount() + " chunks of " + manifest.getChunkSize()
+                    + " bytes hashed, " + metrics.getBytesDelivered() + " of " + position + " bytes received");
+        }
+    }
+
+    /**
+     * The files of a session, each written under its part name in the
+     * directory until the next one starts, and checked against its digest
+     * as soon as that arrives.
+     */
+    private class SessionSink extends FileSink {
+        private final Path directory;
+        private Path file;
+        private int filesReceived;
+
+        SessionSink(Path directory) {
+            super(null, null, null);
+            this.directory = directory;
+        }
+
+        @Override
+        void stripe(byte[] packet, int offset, int length) throws IOException {
+            // the next file of the session, named after the offset
+            nextFile(new String(packet, offset + 8, length - 8, StandardCharsets.UTF_8));
+            super.stripe(packet, offset, length);
+        }
+
+        @Override
+        void digest(byte[] packet, int offset, int length) throws IOException {
+            super.digest(packet, offset, length);
+            if (digest != null && !MessageDigest.isEqual(expectedDigest, digest.digest())) {
+                throw reject("File digest mismatch in file " + filesReceived + " of the session, received data is corrupt");
+            }
+        }
+
+        @Override
+        void write(ByteBuffer data) throws IOException {
+            if (fileChannel == null) {
+                throw new IOException("Sender sent data of the session outside a file");
+            }
+            super.write(data);
+        }
+
+        @Override
+        void finish() throws IOException {
+            if (fileChannel != null) {
+                // the last file's digest was checked as it arrived
+                checkFileDigest();
+                closeFile();
+            }
+        }
+
+        /**
+         * Finishes the current file and opens the next one. Only the last
+         * element of the sender's name is used, so a session cannot write
+         * outside its directory. A write buffer carries over to the new
+         * file.
+         */
+        private void nextFile(String name) throws IOException {
+            checkFileDigest();
+            Path fileName = Paths.get(name).getFileName();
+            if (fileName == null || name.isEmpty() || fileName.toString().equals(".") || fileName.toString().equals("..")) {
+                throw new IOException("Sender named a file of the session \"" + name + "\"");
+            }
+            if (fileChannel != null) {
+                if (asyncWriter != null) {
+                    asyncWriter.flush();
+                }
+                closeFile();
+            }
+            file = directory.resolve(fileName);
+            fileChannel = FileChannel.open(GoBackNUtils.partFile(file),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            output = fileChannel;
+            if (asyncWriter != null) {
+                asyncWriter.setChannel(fileChannel);
+            } else if (writeBufferSize > 0) {
+                asyncWriter = new AsyncWriter(output, WRITE_CHUNK_SIZE, Math.max(2, writeBufferSize / WRITE_CHUNK_SIZE), syncMillis);
+            }
+            digest = verifyDigest ? GoBackNUtils.newFileDigest() : null;
+            expectedDigest = null;
+            filesReceived++;
+        }
+
+        private void checkFileDigest() throws IOException {
+            if (verifyDigest && fileChannel != null && expectedDigest == null) {
+                throw reject("Sender did not send a digest for file " + filesReceived + " of the session");
+            }
+        }
+
+        /**
+         * Gives the current file its name, once the writer has been flushed
+         * into it.
+         */
+        private void closeFile() throws IOException {
+            fileChannel.close();
+            fileChannel = null;
+            output = null;
+            Files.move(GoBackNUtils.partFile(file), file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * Closes and deletes the file a failed session was writing.
+         */
+        void abort() throws IOException {
+            if (fileChannel != null) {
+                fileChannel.close();
+                fileChannel = null;
+                Files.deleteIfExists(GoBackNUtils.partFile(file));
+            }
+        }
+
+        @Override
+        void printSummary(PrintStream out) {
+            out.println("Files Received: " + filesReceived + " in one flow");
+        }
+    }
+
+    /**
+     * The XOR of the packets of one FEC group accepted so far.
+     */
+    private static class FecGroup {
+        long start = -1;
+        // bit i: packet start + i
+        long received;
+        int count;
+        int lengthsAndFlags;
+        int length;
+        byte[] payload = new byte[0];
     }
 
     public static void main(String[] argv) throws Exception {
-        if (argv.length != 5) {
+        if (argv.length < 5) {
             System.out.println("Usage:");
-            System.out.println("java StopAndWaitReceiver <0> <1> <2> <3> <4>");
+            System.out.println("java GoBackNReceiver <0> <1> <2> <3> <4> [options]");
             System.out.println("0: host address of the sender");
             System.out.println("1: UDP port number used by the sender to receive data from the receiver");
             System.out.println("2: UDP port number used by the receiver to receive ACKs from the sender");
             System.out.println("3: Reliability number");
-            System.out.println("4: Name of the file to write received data");
+            System.out.println("4: Name of the file to write received data, - for standard output");
+            System.out.println("options:");
+            System.out.println("  header=<format>    legacy, wide or session packet header, must match the sender");
+            System.out.println("  digest             require and check the sender's SHA-256 file digest");
+            System.out.println("  ack-every=<n>      ack every n in-order packets instead of each one");
+            System.out.println("  ack-delay=<ms>     longest an in-order packet waits for its ack, default " + DEFAULT_ACK_DELAY_MILLIS);
+            System.out.println("  sack               keep out-of-order packets and report them in SACK blocks (header=wide|session)");
+            System.out.println("  fec=<k>            rebuild lost packets from the sender's parity, k must match its fec=");
+            System.out.println("  hold-buffer=<bytes> with sack or fec, most bytes of out-of-order packets held, default "
+                    + DEFAULT_HOLD_BUFFER_BYTES);
+            System.out.println("  write-buffer=<bytes> write on a separate thread through this much buffer, advertising the space left");
+            System.out.println("  fsync-every=<ms>   with write-buffer, force the file to disk this often");
+            System.out.println("  sync[=<bytes>]     update the existing file, hashed in chunks of this size, default "
+                    + ChunkManifest.DEFAULT_CHUNK_SIZE + " (header=wide|session)");
+            System.out.println("  resume             checkpoint the file so an interrupted transfer can resume (header=wide|session)");
+            System.out.println("  checkpoint-every=<bytes> how much data between checkpoints, default " + DEFAULT_CHECKPOINT_BYTES);
+            System.out.println("  files              receive a session of files into the directory named by 4 (header=wide|session)");
+            System.out.println("  metrics=<file>     write live transfer metrics as JSON lines, - for stderr");
+            System.out.println("  metrics-every=<ms> how often to write metrics, default 1000");
             System.exit(1);
         }
 
+        Map<String, String> options = GoBackNUtils.parseOptions(argv, 5);
+
         int senderPort = Integer.parseInt(argv[1]);
         int recPort = Integer.parseInt(argv[2]);
         int rn = Integer.parseInt(argv[3]);
 
         GoBackNReceiver gbnReceiver = new GoBackNReceiver(InetAddress.getByName(argv[0]), senderPort, recPort);
+        gbnReceiver.setPacketFormat(PacketFormat.fromName(options.getOrDefault("header", "legacy")));
 
-        gbnReceiver.receiveFile(argv[4], rn);
+        gbnReceiver.setVerifyDigest(options.containsKey("digest"));
+        if (options.containsKey("ack-every")) {
+            gbnReceiver.setDelayedAcks(Integer.parseInt(options.get("ack-every")),
+                    Integer.parseInt(options.getOrDefault("ack-delay", Integer.toString(DEFAULT_ACK_DELAY_MILLIS))));
+        }
+        gbnReceiver.setSelectiveAcks(options.containsKey("sack"));
+        if (options.containsKey("write-buffer")) {
+            gbnReceiver.setAsyncWrite(Integer.parseInt(options.get("write-buffer")),
+                    Long.parseLong(options.getOrDefault("fsync-every", "0")));
+        }
+        if (options.containsKey("fec")) {
+            gbnReceiver.setForwardErrorCorrection(Integer.parseInt(options.get("fec")));
+        }
+        if (options.containsKey("hold-buffer")) {
+            gbnReceiver.setHoldBufferSize(Long.parseLong(options.get("hold-buffer")));
+        }
+        if (options.containsKey("sync")) {
+            gbnReceiver.setSync(options.get("sync").isEmpty() ? ChunkManifest.DEFAULT_CHUNK_SIZE : Integer.parseInt(options.get("sync")));
+        }
+        if (options.containsKey("resume") || options.containsKey("checkpoint-every")) {
+            gbnReceiver.setCheckpointInterval(Long.parseLong(options.getOrDefault("checkpoint-every",
+                    Long.toString(DEFAULT_CHECKPOINT_BYTES))));
+        }
+
+        gbnReceiver.getMetrics().configure(options);
+
+        if (argv[4].equals("-")) {
+            // the data has standard output to itself
+            gbnReceiver.receive(System.out, rn);
+            gbnReceiver.printSummary(System.err);
+        } else if (options.containsKey("files")) {
+            gbnReceiver.receiveFiles(argv[4], rn);
+        } else {
+            gbnReceiver.receiveFile(argv[4], rn);
+        }
+        gbnReceiver.getMetrics().close();
         System.exit(0);
     }
 }
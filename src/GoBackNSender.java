@@ -1,231 +1,1359 @@
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Iterator;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
 
 
 /**
  * Created by jmuia on 2016-03-09.
  */
 
-public class GoBackNSender {
-    private static final long TIMEOUT = 100;
+public class GoBackNSender implements GoBackNSenderOptions.Target {
     private static final int PACKET_DATA_SIZE = 124;
-    private static final int MAX_WINDOW_SIZE = 128;
-
-    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
-    private ScheduledFuture<?> timerTask;
+    private static final int WIDE_PACKET_DATA_SIZE = 1400;
+    public static final int MAX_WINDOW_SIZE = 128;
+    public static final int MAX_WIDE_WINDOW_SIZE = 1 << 16;
+    // payloads read ahead from a stream while the window is full
+    private static final int STREAM_BUFFERS = 64;
+    private static final int COMPRESSION_BUFFER_SIZE = 64 * 1024;
+    public static final int DEFAULT_PACING_BURST = 8;
+    // pacing rate over cwnd / RTT, enough headroom for the window to still grow
+    private static final double PACING_GAIN = 1.25;
 
+    // the retransmission timer: checked while waiting for acks, no timer thread or task per ack
+    private long retransmitDeadline;
 
+    private final RttEstimator rttEstimator = new RttEstimator();
+    private final TransferMetrics metrics;
+    private long[] sendTimes;
+    private boolean[] retransmitted;
+    // packets the receiver holds past a hole, from its SACK blocks; never resent
+    private boolean[] sacked;
+    private long highestSacked;
+    private int duplicateAcks;
 
     private InetAddress receiverAddress;
     private int receiverPort;
     private int senderPort;
     private int windowSize;
-    private int sendBase;
-    private int nextSequenceNumber;
 
-    private List<DatagramPacket> windowPackets;
+    // absolute packet indices; only the wire format wraps them
+    private long sendBase;
+    private long nextSequenceNumber;
+
+    private PacketFormat packetFormat = PacketFormat.LEGACY;
+    private int payloadSize = PACKET_DATA_SIZE;
+
+    private int sessionId;
+    private long rangeOffset;
+    private long rangeLength = -1;
+    private boolean quiet;
+    private boolean crc32c;
+    private boolean fileDigest;
+    private boolean resume;
+    private boolean sync;
+    // offset and length pairs of the changed chunks, null unless syncing
+    private long[] syncRuns;
+    private int syncChunks;
+    private int syncChunksSent;
+    private boolean compress;
+    private int compressionLevel = Deflater.BEST_SPEED;
+    // compressing the transfer in progress, read by the stream's reader thread
+    private Deflater deflater;
+    private long resumedAt;
+    private int filesSent;
+
+    // parity of the current group of fecGroupSize packets, 0 for no FEC
+    private int fecGroupSize;
+    private DatagramPacket parityPacket;
+    private int parityCount;
+    private int parityLengthsAndFlags;
+    private int parityLength;
+    private long parityPacketsSent;
+
+    // bytes per second, 0 to follow the window and RTT, -1 not to pace at all
+    private double pacingRate = -1;
+    private int pacingBurst = DEFAULT_PACING_BURST;
+    private TokenBucket pacer;
+    // a retransmission the pacer spreads out, sent from the send loop
+    private long resendNext;
+    private long resendEnd;
+
+    // first sequence number past the receiver's advertised buffer space
+    private long receiveWindowEnd;
+    private int smallestReceiveWindow;
+
+    private boolean congestionControl;
+    private CongestionController congestionController;
+
+    // ring of the window's packets, indexed like sendTimes by sequence number
+    private PacketPool packetPool;
+    private int packetSize;
+    private AllocationCounter allocationCounter;
 
     private DatagramSocket socket;
+    private DatagramPacket receivePacket;
+    private long startTime;
 
     public GoBackNSender(InetAddress receiverAddress, int receiverPort, int senderPort, int windowSize) {
         this.receiverAddress = receiverAddress;
         this.receiverPort = receiverPort;
         this.senderPort = senderPort;
         this.windowSize = windowSize;
+        this.metrics = new TransferMetrics("GoBackNSender-" + senderPort);
     }
 
-    public void sendFile(String fileName) throws IOException {
+    /**
+     * Lets the window grow and shrink with a congestion window, capped at the
+     * window size given to the constructor.
+     */
+    public void setCongestionControl(boolean congestionControl) {
+        this.congestionControl = congestionControl;
+    }
+
+    public CongestionController getCongestionController() {
+        return congestionController;
+    }
+
+    /**
+     * Selects the header format. The wide format also switches to a larger
+     * default payload; call {@link #setPayloadSize(int)} afterwards to change it.
+     */
+    public void setPacketFormat(PacketFormat packetFormat) {
+        this.packetFormat = packetFormat;
+        this.payloadSize = packetFormat == PacketFormat.LEGACY ? PACKET_DATA_SIZE : WIDE_PACKET_DATA_SIZE;
+    }
+
+    public void setPayloadSize(int payloadSize) {
+        if (payloadSize < 1 || payloadSize > packetFormat.getMaxPayloadSize()) {
+            throw new IllegalArgumentException("Payload size must be between 1 and " + packetFormat.getMaxPayloadSize());
+        }
+        this.payloadSize = payloadSize;
+    }
+
+    public int getPayloadSize() {
+        return payloadSize;
+    }
+
+    /**
+     * Sets the session id stamped on every packet of the session format, so a
+     * GoBackNServer can tell this transfer apart from others on its port. A
+     * random one is picked if none is set.
+     */
+    public void setSessionId(int sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    public int getSessionId() {
+        return sessionId;
+    }
+
+    /**
+     * Protects every packet with a CRC32C instead of the 8-bit checksum.
+     * Needs a wide or session header, the legacy one has no room for it.
+     */
+    public void setCrc32c(boolean crc32c) {
+        this.crc32c = crc32c;
+    }
+
+    /**
+     * Follows the last data packet with one carrying a SHA-256 of the whole
+     * file, which the receiver checks before reporting success. Needs a wide
+     * or session header.
+     */
+    public void setFileDigest(boolean fileDigest) {
+        this.fileDigest = fileDigest;
+    }
+
+    /**
+     * Sends only {@code length} bytes from {@code offset}, after a first
+     * FLAG_STRIPE packet telling the receiver where in the file they go.
+     * Needs a wide or session header.
+     */
+    public void setRange(long offset, long length) {
+        this.rangeOffset = offset;
+        this.rangeLength = length;
+    }
+
+    /**
+     * Asks the receiver for its checkpoint before sending, and starts from
+     * the offset it has instead of the beginning of the file. Needs a wide or
+     * session header, and a receiver keeping checkpoints to gain anything.
+     */
+    public void setResume(boolean resume) {
+        this.resume = resume;
+    }
+
+    /**
+     * Asks a receiver set to sync for the hashes of its copy of the file,
+     * and sends only the chunks that differ from it, plus the last one so
+     * that the receiver knows where the file now ends. Needs a wide or
+     * session header; a receiver that is not syncing gets the whole file.
+     */
+    public void setSync(boolean sync) {
+        this.sync = sync;
+    }
+
+    /**
+     * Spaces packets out with a token bucket instead of sending the window,
+     * or a retransmitted window, back to back. {@code bytesPerSecond} of 0
+     * paces at 1.25 times the window over the smoothed RTT, unpaced until
+     * the first sample. Up to {@code burstPackets} full packets may go out
+     * together; since the sender sleeps in whole milliseconds, at high rates
+     * it is effectively a millisecond's worth.
+     */
+    public void setPacing(double bytesPerSecond, int burstPackets) {
+        if (burstPackets < 1) {
+            throw new IllegalArgumentException("The pacing burst must be at least one packet");
+        }
+        this.pacingRate = bytesPerSecond;
+        this.pacingBurst = burstPackets;
+    }
+
+    /**
+     * Follows every {@code groupSize} packets with a FLAG_PARITY packet
+     * holding their XOR, from which a receiver set to the same group size
+     * rebuilds any one of them that is lost without waiting for a timeout.
+     * Costs one packet in {@code groupSize}; only first transmissions are
+     * covered. Needs a wide or session header.
+     */
+    public void setForwardErrorCorrection(int groupSize) {
+        if (groupSize < 0 || groupSize > GoBackNUtils.MAX_FEC_GROUP_SIZE) {
+            throw new IllegalArgumentException("FEC group size must be between 1 and " + GoBackNUtils.MAX_FEC_GROUP_SIZE + ", or 0 for none");
+        }
+        this.fecGroupSize = groupSize;
+    }
+
+    /**
+     * Deflates the data on the stream's reader thread before it is cut into
+     * packets, each flagged FLAG_DEFLATE so the receiver inflates it again.
+     * Worth it for text such as logs and CSVs; cannot be combined with
+     * ranges or resuming, as offsets in the compressed data mean nothing to
+     * the file. A file digest then covers the data as sent, and zlib's own
+     * Adler-32 the inflated file. Needs a wide or session header.
+     */
+    public void setCompression(boolean compress) {
+        this.compress = compress;
+    }
+
+    /**
+     * Deflater level from 1, fastest, to 9, smallest; 1 by default.
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
 
+    /**
+     * Leaves the summary to the caller, e.g. when this is one of many flows.
+     */
+    public void setQuiet(boolean quiet) {
+        this.quiet = quiet;
+    }
+
+    public long getTimeoutMillis() {
+        return rttEstimator.getTimeoutMillis();
+    }
+
+    public TransferMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void sendFile(String fileName) throws IOException {
         File f = new File(fileName);
-        long fileSize = f.length();
+        long fileSize = rangeLength == -1 ? f.length() : rangeLength;
 
         FileInputStream fis = new FileInputStream(fileName);
+        try {
+            fis.getChannel().position(rangeOffset);
+            if (compress) {
+                sendStream(fileName, fis.getChannel());
+            } else {
+                openFlow();
+                transfer(fileName, fileSize, openFile(fis, fileSize));
+            }
+        } finally {
+            fis.close();
+            // already closed unless the transfer failed
+            close();
+        }
+    }
 
-        byte[] rcvBuffer = new byte[GoBackNUtils.MAX_PACKET_SIZE];
+    public void send(InputStream in) throws IOException {
+        send(Channels.newChannel(in));
+    }
 
-        int bytesRead;
-        boolean endOfFile = false;
-        boolean firstPacket = true;
+    /**
+     * Sends everything read from {@code source} until it ends, without
+     * needing to know its length up front. Data is sent as soon as it is
+     * read; when none is ready the sender waits for acks instead, so a slow
+     * source never holds back retransmissions.
+     */
+    public void send(ReadableByteChannel source) throws IOException {
+        sendStream("-", source);
+    }
 
-        long startTime = System.nanoTime();
+    private void sendStream(String name, ReadableByteChannel source) throws IOException {
+        if (rangeLength != -1 || resume || sync) {
+            throw new IllegalStateException("Ranges, resuming and sync need a file to seek in, and no compression");
+        }
+        if (compress && packetFormat == PacketFormat.LEGACY) {
+            throw new IllegalStateException("Compression needs the wide or session packet format");
+        }
+
+        if (compress) {
+            deflater = new Deflater(compressionLevel);
+            source = Channels.newChannel(new DeflaterInputStream(Channels.newInputStream(source), deflater, COMPRESSION_BUFFER_SIZE));
+        }
+        StreamSource stream = new StreamSource(source, payloadSize, STREAM_BUFFERS);
+        try {
+            openFlow();
+            transfer(name, -1, new ReadAheadSource(stream));
+        } finally {
+            stream.close();
+            close();
+            if (deflater != null) {
+                deflater.end();
+                deflater = null;
+            }
+        }
+    }
+
+    /**
+     * Sends every file in {@code fileNames} back to back over one flow.
+     */
+    public void sendFiles(List<String> fileNames) throws IOException {
+        BlockingQueue<String> files = new LinkedBlockingQueue<>(fileNames);
+        files.add("");
+        sendFiles(files);
+    }
+
+    /**
+     * Sends files back to back over one flow as their names are taken from
+     * {@code files}, until an empty name ends it. The socket, RTT estimate
+     * and windows carry over from one file to the next, and the head of a
+     * file goes out while the tail of the one before is still in flight.
+     * Each file starts with a FLAG_STRIPE packet carrying its name after
+     * offset 0 and, with a digest, ends with a FLAG_DIGEST packet of its
+     * own. Once everything sent is acked the flow idles until the next name
+     * arrives. Needs a wide or session header.
+     */
+    public void sendFiles(BlockingQueue<String> files) throws IOException {
+        if (packetFormat == PacketFormat.LEGACY) {
+            throw new IllegalStateException("Sessions of files need the wide or session packet format");
+        }
+        if (rangeLength != -1 || resume || sync || compress) {
+            throw new IllegalStateException("Sessions send whole files, without ranges, resuming, sync or compression");
+        }
+
+        filesSent = 0;
+        SessionSource session = new SessionSource(files);
+        try {
+            openFlow();
+            transfer("-", -1, session);
+        } finally {
+            session.close();
+            close();
+        }
+    }
+
+    /**
+     * Works out what of the file to send: all of it, the range, what the
+     * receiver's checkpoint lacks, or the chunks that differ from its copy.
+     */
+    private PayloadSource openFile(FileInputStream fis, long fileSize) throws IOException {
+        MessageDigest digest = fileDigest ? GoBackNUtils.newFileDigest() : null;
+        syncRuns = null;
+        if (resume) {
+            resumedAt = negotiateResume(fileSize, fis, digest);
+            return new FileSource(fis, new long[] {resumedAt, Long.MAX_VALUE}, true, digest, true);
+        }
+        if (sync) {
+            syncRuns = negotiateSync(fileSize, fis, digest);
+            if (syncRuns != null) {
+                // the whole file was hashed on the way, most of it is never read again
+                return new FileSource(fis, syncRuns, true, digest, false);
+            }
+        }
+        if (rangeLength != -1) {
+            return new FileSource(fis, new long[] {rangeOffset, rangeLength}, true, digest, true);
+        }
+        return new FileSource(fis, new long[] {rangeOffset, Long.MAX_VALUE}, false, digest, true);
+    }
+
+    /**
+     * Checks the settings and opens the socket and window of a flow, ready
+     * for a resume or sync request ahead of the data.
+     */
+    private void openFlow() throws IOException {
+        if ((crc32c || fileDigest || rangeLength != -1 || resume || sync) && packetFormat == PacketFormat.LEGACY) {
+            throw new IllegalStateException("crc32c, digest, ranges, resuming and sync need the wide or session packet format");
+        }
+        if (fecGroupSize > 0 && packetFormat == PacketFormat.LEGACY) {
+            throw new IllegalStateException("FEC needs the wide or session packet format");
+        }
+        if (fecGroupSize > 0 && payloadSize > packetFormat.getMaxPayloadSize() - GoBackNUtils.FEC_HEADER_SIZE) {
+            throw new IllegalStateException("FEC needs payloads of at most " + (packetFormat.getMaxPayloadSize() - GoBackNUtils.FEC_HEADER_SIZE) + " bytes");
+        }
+        if (resume && rangeLength != -1) {
+            throw new IllegalStateException("Ranges cannot be resumed");
+        }
+        if (sync && (resume || rangeLength != -1)) {
+            throw new IllegalStateException("Sync sends the whole file, it cannot be resumed or cut to a range");
+        }
+        if (sessionId != 0 && !packetFormat.hasSessionId()) {
+            throw new IllegalStateException("Only the session packet format carries a session id");
+        }
+        while (packetFormat.hasSessionId() && sessionId == 0) {
+            sessionId = ThreadLocalRandom.current().nextInt();
+        }
+
+        byte[] rcvBuffer = new byte[packetFormat.getMaxPacketSize()];
+        receivePacket = new DatagramPacket(rcvBuffer, rcvBuffer.length);
+
+        startTime = System.nanoTime();
 
         nextSequenceNumber = 0;
         sendBase = 0;
-        windowPackets = Collections.synchronizedList(new ArrayList<>());
+        windowSize = (int) Math.min(windowSize, packetFormat.getSequenceSpace() - 1);
+        // room for the stripe offset and digest packets even with tiny payloads
+        packetSize = packetFormat.getHeaderSize() + Math.max(payloadSize, GoBackNUtils.FILE_DIGEST_SIZE);
+        packetPool = new PacketPool(windowSize, packetSize, receiverAddress, receiverPort);
+        if (fecGroupSize > 0) {
+            int paritySize = packetSize + GoBackNUtils.FEC_HEADER_SIZE;
+            parityPacket = new DatagramPacket(new byte[paritySize], paritySize, receiverAddress, receiverPort);
+            parityCount = 0;
+            parityLengthsAndFlags = 0;
+            parityLength = 0;
+            parityPacketsSent = 0;
+        }
+        sendTimes = new long[windowSize];
+        retransmitted = new boolean[windowSize];
+        sacked = new boolean[windowSize];
+        highestSacked = -1;
+        duplicateAcks = 0;
+        retransmitDeadline = Long.MAX_VALUE;
+        congestionController = congestionControl ? new CongestionController(windowSize) : null;
+        pacer = pacingRate < 0 ? null
+                : new TokenBucket(pacingRate == 0 ? Double.POSITIVE_INFINITY : pacingRate, (long) pacingBurst * packetSize);
+        resendNext = 0;
+        resendEnd = 0;
+        receiveWindowEnd = Long.MAX_VALUE;
+        smallestReceiveWindow = Integer.MAX_VALUE;
         socket = new DatagramSocket(senderPort);
+        if (packetFormat != PacketFormat.LEGACY) {
+            // a window of thousands of packets produces a burst of thousands of acks
+            socket.setReceiveBufferSize(GoBackNUtils.SOCKET_BUFFER_SIZE);
+        }
+    }
 
+    /**
+     * Sends everything {@code source} has over the flow {@link #openFlow}
+     * opened, and waits for all of it to be acked.
+     *
+     * @param fileSize bytes of data for the summary, -1 to count them as they are sent
+     */
+    private void transfer(String fileName, long fileSize, PayloadSource source) throws IOException {
+        byte[] rcvBuffer = receivePacket.getData();
 
-        while (!endOfFile || windowPackets.size() != 0) {
-            while (isInWindow(nextSequenceNumber) && !endOfFile) {
-                byte[] fileBuffer = new byte[PACKET_DATA_SIZE];
-                // read bytes
-                bytesRead = fis.read(fileBuffer);
+        allocationCounter = new AllocationCounter();
+        metrics.start();
 
-                // check for EOF
-                if (bytesRead == -1 || bytesRead < fileBuffer.length) {
-                    bytesRead = Math.max(0, bytesRead);
-                    endOfFile = true;
+        while (!source.finished || sendBase != nextSequenceNumber) {
+            if (pacer != null) {
+                sendPacedResends();
+            }
+            // with pacing, new packets wait for the tokens and for any retransmission to finish
+            while (canSend() && !source.finished
+                    && (pacer == null || resendNext >= resendEnd && pacer.nanosUntil(packetSize) == 0)) {
+                // the slot is free: everything up to sendBase has been acked
+                DatagramPacket packet = packetPool.get(nextSequenceNumber);
+
+                // only wait for data when there is nothing in flight to wait on instead
+                int lengthAndFlags = source.next(packet.getData(), sendBase == nextSequenceNumber);
+                if (lengthAndFlags == -1) {
+                    break;
                 }
+                int bytesRead = lengthAndFlags >>> 8;
+                int flags = lengthAndFlags & 0xFF;
 
                 // make packet
-                DatagramPacket packet = makePacket(nextSequenceNumber, fileBuffer, bytesRead, endOfFile);
-                windowPackets.add(packet);
+                makePacket(packet, nextSequenceNumber, bytesRead, flags);
+                sendTimes[slot(nextSequenceNumber)] = System.nanoTime();
+                retransmitted[slot(nextSequenceNumber)] = false;
+                sacked[slot(nextSequenceNumber)] = false;
 
                 // send packet
                 socket.send(packet);
+                allocationCounter.countPacket();
+                metrics.packetSent();
+                if (pacer != null) {
+                    pacer.take(packet.getLength());
+                }
 
-                if (firstPacket) {
-                    // start timer
-                    startTimer();
-                    firstPacket = false;
+                if (fecGroupSize > 0) {
+                    addToParity(packet, bytesRead, flags, source.finished);
                 }
 
-                nextSequenceNumber = (nextSequenceNumber + 1) % MAX_WINDOW_SIZE;
+                nextSequenceNumber++;
+                metrics.windowOccupancy((int) (nextSequenceNumber - sendBase));
+            }
+
+            if (retransmitDeadline == Long.MAX_VALUE) {
+                retransmitDeadline = System.nanoTime() + rttEstimator.getTimeoutNanos();
             }
 
             // wait for ACK
             boolean gotAck = false;
             do {
-                DatagramPacket receivePacket = new DatagramPacket(rcvBuffer, rcvBuffer.length);
-                socket.receive(receivePacket);
+                long waitNanos = retransmitDeadline - System.nanoTime();
+                if (waitNanos <= 0) {
+                    onTimeout();
+                    continue;
+                }
+                boolean paced = pacer != null && (resendNext < resendEnd
+                        || canSend() && !source.finished && source.isReady());
+                if (paced) {
+                    // packets are waiting for tokens: wake up in time to send them
+                    long paceNanos = pacer.nanosUntil(packetSize);
+                    if (paceNanos == 0) {
+                        break;
+                    }
+                    waitNanos = Math.min(waitNanos, paceNanos);
+                }
+                // whole milliseconds, rounded up so the deadline has passed on waking
+                socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMillis(waitNanos + 999999)));
+
+                receivePacket.setLength(rcvBuffer.length);
+                try {
+                    socket.receive(receivePacket);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
 
                 // validate ack
-                if (GoBackNUtils.isPacketCorrupt(receivePacket)) {
+                if (packetFormat.isCorrupt(receivePacket)) {
+                    metrics.checksumFailure();
+                    continue;
+                }
+                if (packetFormat.sessionId(rcvBuffer) != sessionId) {
+                    continue;
+                }
+                if ((packetFormat.flags(rcvBuffer) & PacketFormat.FLAG_CONTROL) != 0) {
+                    if (GoBackNUtils.controlType(rcvBuffer, receivePacket.getLength(), packetFormat.getHeaderSize())
+                            == PacketFormat.CONTROL_REJECTED) {
+                        throw new IOException("Receiver rejected the transfer: "
+                                + GoBackNUtils.readRejection(rcvBuffer, receivePacket.getLength(), packetFormat.getHeaderSize()));
+                    }
+                    // a duplicate answer to the resume or sync request
                     continue;
                 }
 
-                byte[] data = receivePacket.getData();
-                byte header = data[0];
-                int ackNum = (int) header;
+                // the receiver acks -1 until the first packet arrives, so unwrap from one before the base
+                long ackNum = packetFormat.unwrap(packetFormat.sequenceNumber(receivePacket.getData()), sendBase - 1);
+                int sackOffset = packetFormat.getHeaderSize();
+                if ((packetFormat.flags(rcvBuffer) & PacketFormat.FLAG_WINDOW) != 0) {
+                    // a stale ack would advertise space that has been used since
+                    if (isOutstanding(ackNum) || ackNum == sendBase - 1) {
+                        int window = GoBackNUtils.readInt(rcvBuffer, sackOffset);
+                        receiveWindowEnd = ackNum + 1 + window;
+                        smallestReceiveWindow = Math.min(smallestReceiveWindow, window);
+                    }
+                    sackOffset += GoBackNUtils.ADVERTISED_WINDOW_SIZE;
+                }
+                if ((packetFormat.flags(rcvBuffer) & PacketFormat.FLAG_SACK) != 0) {
+                    readSackBlocks(receivePacket, sackOffset);
+                }
 
-                if (isInWindow(ackNum)) {
-                    cancelTimer();
+                if (isOutstanding(ackNum)) {
+                    int newlyAcked = 0;
+                    long bytesAcked = 0;
+                    // Karn's rule: only time packets that were sent exactly once
+                    if (!retransmitted[slot(ackNum)]) {
+                        long rtt = System.nanoTime() - sendTimes[slot(ackNum)];
+                        rttEstimator.addSample(rtt);
+                        metrics.rttSample(rtt, rttEstimator.getTimeoutNanos());
+                    } else {
+                        rttEstimator.clearBackoff();
+                    }
 
-                    synchronized (windowPackets) {
-                        while (sendBase != ackNum) {
-                            windowPackets.remove(0);
-                            sendBase = (sendBase + 1) % MAX_WINDOW_SIZE;
-                        }
-                        windowPackets.remove(0);
+                    // sliding the window just moves the base; the slots are reused in place
+                    while (sendBase <= ackNum) {
+                        bytesAcked += packetPool.get(sendBase).getLength() - packetFormat.getHeaderSize();
+                        sacked[slot(sendBase)] = false;
+                        sendBase++;
+                        newlyAcked++;
                     }
+                    duplicateAcks = 0;
+                    metrics.packetsAcked(newlyAcked, bytesAcked);
+                    metrics.windowOccupancy((int) (nextSequenceNumber - sendBase));
 
-                    sendBase = (sendBase + 1) % MAX_WINDOW_SIZE;
-                    startTimer();
+                    if (congestionController != null) {
+                        congestionController.onAck(newlyAcked);
+                    }
+                    if (pacer != null && pacingRate == 0) {
+                        updatePacingRate(packetSize);
+                    }
+
+                    // restart the timer for what is still outstanding
+                    retransmitDeadline = sendBase == nextSequenceNumber ? Long.MAX_VALUE : System.nanoTime() + rttEstimator.getTimeoutNanos();
                     gotAck = true;
 
+                } else if (isDuplicateAck(ackNum)) {
+                    metrics.duplicateAck();
+                    duplicateAcks++;
+                    boolean fastRetransmit = congestionController != null
+                            ? congestionController.onDuplicateAck()
+                            : highestSacked >= sendBase && duplicateAcks == 3;
+                    if (fastRetransmit) {
+                        // without SACK the receiver discards everything after the hole anyway
+                        resendHoles();
+                        retransmitDeadline = System.nanoTime() + rttEstimator.getTimeoutNanos();
+                    }
+
+                } else {
+                    // a late ack, overtaken by a later cumulative one
+                    metrics.outOfOrderAck();
                 }
             } while(!gotAck);
         }
 
-        fis.close();
         socket.close();
 
         long endTime = System.nanoTime();
         long duration = (endTime - startTime);
+        long bytesSent = source.bytesSent;
+        if (fileSize == -1) {
+            // the reader thread has finished with the deflater once the stream has ended
+            fileSize = deflater != null ? deflater.getBytesRead() : bytesSent;
+        }
+
+        if (quiet) {
+            return;
+        }
 
         System.out.println();
         System.out.println("~~File Transfer Completed~~");
-        System.out.println("File Name: " + fileName);
+        if (source instanceof SessionSource) {
+            System.out.println("Files Sent: " + filesSent + " in one flow");
+        } else {
+            System.out.println("File Name: " + fileName);
+        }
         System.out.println("File Size: " + fileSize + " bytes");
+        if (resume) {
+            System.out.println("Resumed At: " + resumedAt + " bytes");
+        }
         System.out.println("Transfer Time: " + Long.toString(duration) + " nanoseconds");
-        System.out.println("Timeout Length: " + TIMEOUT + " milliseconds");
+        System.out.println("Timeout Length: " + rttEstimator.getTimeoutMillis() + " milliseconds");
+        System.out.println("Packet Format: " + packetFormat + ", " + payloadSize + " byte payloads");
+        if (packetFormat.hasSessionId()) {
+            System.out.println("Session: " + String.format("%08x", sessionId));
+        }
+        if (deflater != null) {
+            System.out.println("Compression: deflate level " + compressionLevel + ", " + bytesSent + " bytes sent, "
+                    + String.format("%.1f", 100.0 * bytesSent / Math.max(1, fileSize)) + "% of the file");
+            System.out.println("Goodput: " + String.format("%.1f", fileSize * 8e3 / duration) + " Mbit/s of file data, "
+                    + String.format("%.1f", bytesSent * 8e3 / duration) + " Mbit/s on the wire");
+        }
+        if (crc32c || fileDigest) {
+            System.out.println("Integrity: " + (crc32c ? "CRC32C" : "8-bit checksum")
+                    + (fileDigest ? ", " + GoBackNUtils.FILE_DIGEST_ALGORITHM + " file digest" : ""));
+        }
+        System.out.println("Packets Sent: " + metrics.getPacketsSent() + " (" + metrics.getPacketsRetransmitted() + " retransmitted, "
+                + metrics.getTimeouts() + " timeouts)");
+        System.out.println("RTT p50/p99: " + metrics.getRttP50Micros() + "/" + metrics.getRttP99Micros() + " microseconds");
+        if (pacer != null) {
+            System.out.println("Pacing: " + (pacingRate == 0 ? "window / RTT x " + PACING_GAIN + ", ending at " : "")
+                    + String.format("%.1f", pacer.getBytesPerSecond() * 8 / 1e6) + " Mbit/s, bursts of "
+                    + pacingBurst + " packets");
+        }
+        if (syncRuns != null) {
+            System.out.println("Sync: " + syncChunksSent + " of " + syncChunks + " chunks sent, " + bytesSent + " bytes of data");
+        }
+        if (smallestReceiveWindow != Integer.MAX_VALUE) {
+            System.out.println("Receive Window: down to " + smallestReceiveWindow + " packets advertised");
+        }
+        if (fecGroupSize > 0) {
+            System.out.println("FEC: 1 parity packet per " + fecGroupSize + ", " + parityPacketsSent + " sent");
+        }
+        System.out.println("Packet Buffers Allocated: " + packetPool.getAllocations());
+        System.out.println("Sender Thread Allocations: " + allocationCounter.summary());
+        if (congestionController != null) {
+            System.out.println("Final Congestion Window: " + congestionController.getWindow() + " packets");
+        }
         System.out.println();
-        System.out.println(TIMEOUT + "," + fileSize + "," + windowSize + "," + Long.toString(duration));
+        System.out.println(rttEstimator.getTimeoutMillis() + "," + fileSize + "," + windowSize + "," + Long.toString(duration));
     }
 
-    private boolean isInWindow(int value) {
-        if (sendBase + windowSize < MAX_WINDOW_SIZE) {
-            return (sendBase <= value) && (value <= sendBase + windowSize);
-        } else {
-            return (sendBase <= value && value < MAX_WINDOW_SIZE) || (0 <= value && value <= (sendBase + windowSize) % MAX_WINDOW_SIZE);
+    boolean isInWindow(long value) {
+        return sendBase <= value && value < sendBase + windowSize;
+    }
+
+    private boolean canSend() {
+        if (nextSequenceNumber >= receiveWindowEnd) {
+            return false;
         }
+        if (congestionController != null) {
+            return nextSequenceNumber - sendBase < congestionController.getWindow();
+        }
+        return isInWindow(nextSequenceNumber);
     }
 
-    private DatagramPacket makePacket(int packetNumber, byte[] buffer, int numberOfBytes, boolean endOfFile) {
-        byte header = (byte) packetNumber;
+    private boolean isOutstanding(long ackNum) {
+        return sendBase <= ackNum && ackNum < nextSequenceNumber;
+    }
 
-        if (endOfFile) {
-            header |= (1 << GoBackNUtils.EOT_INDEX);
+    private boolean isDuplicateAck(long ackNum) {
+        return sendBase != nextSequenceNumber && ackNum == sendBase - 1;
+    }
+
+    private int slot(long sequenceNumber) {
+        return (int) (sequenceNumber % windowSize);
+    }
+
+    /**
+     * Resends every outstanding packet the receiver has not SACKed.
+     */
+    private void resendWindow() throws IOException {
+        resend(nextSequenceNumber);
+    }
+
+    /**
+     * Resends only the holes below the highest SACKed packet, or the whole
+     * window without SACK.
+     */
+    private void resendHoles() throws IOException {
+        resend(highestSacked >= sendBase ? highestSacked : nextSequenceNumber);
+    }
+
+    private void resend(long end) throws IOException {
+        if (pacer != null) {
+            // left to the send loop, at the pacing rate
+            resendNext = sendBase;
+            resendEnd = end;
+            return;
+        }
+        int resent = 0;
+        for (long seq = sendBase; seq < end; seq++) {
+            if (sacked[slot(seq)]) {
+                continue;
+            }
+            retransmitted[slot(seq)] = true;
+            socket.send(packetPool.get(seq));
+            resent++;
+        }
+        metrics.packetsRetransmitted(resent);
+    }
+
+    /**
+     * Sends as much of a pending retransmission as the tokens allow.
+     */
+    private void sendPacedResends() throws IOException {
+        // what has been acked since needs no resending
+        resendNext = Math.max(resendNext, sendBase);
+        int resent = 0;
+        while (resendNext < resendEnd) {
+            DatagramPacket packet = packetPool.get(resendNext);
+            if (!sacked[slot(resendNext)]) {
+                if (pacer.nanosUntil(packet.getLength()) > 0) {
+                    break;
+                }
+                retransmitted[slot(resendNext)] = true;
+                socket.send(packet);
+                pacer.take(packet.getLength());
+                resent++;
+            }
+            resendNext++;
+        }
+        metrics.packetsRetransmitted(resent);
+    }
+
+    /**
+     * Paces at the rate the window would go out at over one smoothed RTT.
+     */
+    private void updatePacingRate(int packetSize) {
+        long smoothedRtt = rttEstimator.getSmoothedRttNanos();
+        if (smoothedRtt == 0) {
+            return;
         }
+        double window = congestionController != null ? congestionController.getCongestionWindow() : windowSize;
+        pacer.setRate(PACING_GAIN * window * packetSize * 1e9 / smoothedRtt);
+    }
 
-        byte[] data = new byte[numberOfBytes+2];
-        data[0] = header;
-        data[1] = 0;
-        System.arraycopy(buffer, 0, data, 2, numberOfBytes);
+    private void readSackBlocks(DatagramPacket ack, int offset) {
+        byte[] data = ack.getData();
+        int blocks = (ack.getLength() - offset) / GoBackNUtils.SACK_BLOCK_SIZE;
+        for (int i = 0; i < blocks; i++, offset += GoBackNUtils.SACK_BLOCK_SIZE) {
+            long start = packetFormat.unwrap(GoBackNUtils.readInt(data, offset) & 0xFFFFFFFFL, sendBase);
+            long end = Math.min(nextSequenceNumber, packetFormat.unwrap(GoBackNUtils.readInt(data, offset + 4) & 0xFFFFFFFFL, sendBase));
+            if (start >= end) {
+                // a late ack describing packets acked since
+                continue;
+            }
+            for (long seq = start; seq < end; seq++) {
+                sacked[slot(seq)] = true;
+            }
+            highestSacked = Math.max(highestSacked, end);
+        }
+    }
 
-        byte checksum = GoBackNUtils.checksum(data);
-        data[1] = checksum;
+    void makePacket(DatagramPacket packet, long packetNumber, int numberOfBytes, int flags) {
+        if (crc32c) {
+            flags |= PacketFormat.FLAG_CRC32C;
+        }
+        if (packetFormat.hasSessionId()) {
+            packetFormat.writeSessionId(packet.getData(), sessionId);
+        }
+        int length = packetFormat.encode(packet.getData(), packetNumber, flags, numberOfBytes);
 
-        return new DatagramPacket(data, data.length, receiverAddress, receiverPort);
+        packet.setLength(length);
     }
 
-    private void cancelTimer() {
-        synchronized (timer) {
-            if (timerTask != null && (!timerTask.isDone() || !timerTask.isCancelled())) {
-                timerTask.cancel(true);
+    /**
+     * Folds the packet just sent into the parity of its group, and sends the
+     * parity once the group is complete or the flow has ended.
+     */
+    private void addToParity(DatagramPacket packet, int length, int flags, boolean last) throws IOException {
+        byte[] parity = parityPacket.getData();
+        int payloadOffset = packetFormat.getHeaderSize() + GoBackNUtils.FEC_HEADER_SIZE;
+        GoBackNUtils.xor(packet.getData(), packetFormat.getHeaderSize(), parity, payloadOffset, length);
+        parityLengthsAndFlags ^= length << 8 | flags;
+        parityLength = Math.max(parityLength, length);
+        parityCount++;
+
+        if (parityCount < fecGroupSize && !last) {
+            return;
+        }
+
+        GoBackNUtils.writeShort(parity, packetFormat.getHeaderSize(), parityCount);
+        GoBackNUtils.writeInt(parity, packetFormat.getHeaderSize() + 2, parityLengthsAndFlags);
+        long groupStart = nextSequenceNumber - parityCount + 1;
+        makePacket(parityPacket, groupStart, GoBackNUtils.FEC_HEADER_SIZE + parityLength, PacketFormat.FLAG_PARITY);
+        socket.send(parityPacket);
+        metrics.packetSent();
+        if (pacer != null) {
+            pacer.take(parityPacket.getLength());
+        }
+        parityPacketsSent++;
+
+        Arrays.fill(parity, payloadOffset, payloadOffset + parityLength, (byte) 0);
+        parityCount = 0;
+        parityLengthsAndFlags = 0;
+        parityLength = 0;
+    }
+
+    /**
+     * Asks the receiver how much of the file it already has, until it
+     * answers. The file is hashed up to that offset and checked against the
+     * receiver's hash, and sent whole if they differ: the receiver may hold
+     * part of some other file of the same name. With a file digest the
+     * prefix hash carries on into it.
+     *
+     * @return the offset to resume sending at
+     */
+    private long negotiateResume(long fileSize, FileInputStream fis, MessageDigest digest) throws IOException {
+        DatagramPacket request = packetPool.get(0);
+        int headerSize = packetFormat.getHeaderSize();
+        request.getData()[headerSize] = PacketFormat.CONTROL_RESUME_REQUEST;
+        makePacket(request, 0, GoBackNUtils.CONTROL_TYPE_SIZE, PacketFormat.FLAG_CONTROL);
+        byte[] reply = receivePacket.getData();
+        int body = headerSize + GoBackNUtils.CONTROL_TYPE_SIZE;
+
+        while (true) {
+            socket.send(request);
+            socket.setSoTimeout((int) rttEstimator.getTimeoutMillis());
+            receivePacket.setLength(reply.length);
+            try {
+                socket.receive(receivePacket);
+            } catch (SocketTimeoutException e) {
+                continue;
+            }
+            if (packetFormat.isCorrupt(receivePacket) || packetFormat.sessionId(reply) != sessionId
+                    || (packetFormat.flags(reply) & PacketFormat.FLAG_CONTROL) == 0
+                    || GoBackNUtils.controlType(reply, receivePacket.getLength(), headerSize) != PacketFormat.CONTROL_RESUME_INFO
+                    || receivePacket.getLength() - body < GoBackNUtils.RESUME_INFO_SIZE) {
+                continue;
+            }
+
+            long offset = GoBackNUtils.readLong(reply, body);
+            if (offset > fileSize) {
+                // the receiver has part of some other, longer file
+                return 0;
+            }
+            if (offset == 0) {
+                return 0;
             }
+
+            byte[] expected = Arrays.copyOfRange(reply, body + 8, body + 8 + GoBackNUtils.FILE_DIGEST_SIZE);
+            MessageDigest prefix = digest != null ? digest : GoBackNUtils.newFileDigest();
+            GoBackNUtils.updateDigest(prefix, fis.getChannel(), 0, offset);
+            if (MessageDigest.isEqual(expected, GoBackNUtils.peekDigest(prefix))) {
+                return offset;
+            }
+            prefix.reset();
+            return 0;
         }
     }
 
-    private void startTimer() {
-        synchronized (timer) {
-            final Runnable runnable = new Runnable() {
-                public void run() {
-                    try {
-                        // resend packet
-                        synchronized (windowPackets) {
-                            Iterator i = windowPackets.iterator();
-                            while (i.hasNext())
-                                socket.send((DatagramPacket) i.next());
-                        }
+    /**
+     * Fetches the receiver's chunk hashes a piece at a time, each request
+     * sent again until it is answered, and compares them with the file's
+     * own chunks as they arrive. With a file digest the whole file is hashed
+     * on the same pass, since most of it is never sent.
+     *
+     * @return offset and length pairs of the runs of chunks to send, or null
+     * if the receiver is not syncing and takes the whole file instead
+     */
+    private long[] negotiateSync(long fileSize, FileInputStream fis, MessageDigest digest) throws IOException {
+        DatagramPacket request = packetPool.get(0);
+        byte[] reply = receivePacket.getData();
+        int headerSize = packetFormat.getHeaderSize();
+        int body = headerSize + GoBackNUtils.CONTROL_TYPE_SIZE;
+        int maxHashes = Math.max(1, (payloadSize - GoBackNUtils.CONTROL_TYPE_SIZE - ChunkManifest.PIECE_HEADER_SIZE)
+                / ChunkManifest.HASH_SIZE);
+        FileChannel file = fis.getChannel();
+        MessageDigest chunkDigest = GoBackNUtils.newFileDigest();
+        byte[] hash = new byte[ChunkManifest.HASH_SIZE];
 
-                    } catch (IOException e) {
-                        // handle error
-                        System.err.println(e.getMessage());
-                    }
+        // unknown until the first answer
+        int chunkSize = 0;
+        int chunks = 0;
+        int matchable = 0;
+        ByteBuffer chunk = null;
+        BitSet changed = new BitSet();
+        int next = 0;
+        while (chunkSize == 0 || next < matchable) {
+            request.getData()[headerSize] = PacketFormat.CONTROL_SYNC_REQUEST;
+            GoBackNUtils.writeInt(request.getData(), body, next);
+            GoBackNUtils.writeInt(request.getData(), body + 4, maxHashes);
+            makePacket(request, 0, GoBackNUtils.CONTROL_TYPE_SIZE + GoBackNUtils.SYNC_REQUEST_SIZE, PacketFormat.FLAG_CONTROL);
+            socket.send(request);
+            socket.setSoTimeout((int) rttEstimator.getTimeoutMillis());
+            receivePacket.setLength(reply.length);
+            try {
+                socket.receive(receivePacket);
+            } catch (SocketTimeoutException e) {
+                continue;
+            }
+            if (packetFormat.isCorrupt(receivePacket) || packetFormat.sessionId(reply) != sessionId
+                    || (packetFormat.flags(reply) & PacketFormat.FLAG_CONTROL) == 0) {
+                continue;
+            }
+
+            int type = GoBackNUtils.controlType(reply, receivePacket.getLength(), headerSize);
+            if (type == PacketFormat.CONTROL_RESUME_INFO && chunkSize == 0) {
+                // a checkpoint: the receiver is not syncing
+                return null;
+            }
+            int length = receivePacket.getLength() - body;
+            if (type != PacketFormat.CONTROL_SYNC_PIECE || length < ChunkManifest.PIECE_HEADER_SIZE
+                    || (length - ChunkManifest.PIECE_HEADER_SIZE) % ChunkManifest.HASH_SIZE != 0) {
+                continue;
+            }
+            if (GoBackNUtils.readInt(reply, body + 12) != next) {
+                // the answer to a request sent again
+                continue;
+            }
+            if (chunkSize == 0) {
+                chunkSize = GoBackNUtils.readInt(reply, body);
+                chunks = ChunkManifest.chunkCount(fileSize, chunkSize);
+                matchable = Math.min(chunks, ChunkManifest.chunkCount(GoBackNUtils.readLong(reply, body + 4), chunkSize));
+                chunk = ByteBuffer.allocate(chunkSize);
+            }
+
+            int count = Math.min((length - ChunkManifest.PIECE_HEADER_SIZE) / ChunkManifest.HASH_SIZE, matchable - next);
+            int hashOffset = body + ChunkManifest.PIECE_HEADER_SIZE;
+            for (int i = 0; i < count; i++, next++, hashOffset += ChunkManifest.HASH_SIZE) {
+                ChunkManifest.readChunk(file, (long) next * chunkSize, chunk, fileSize);
+                if (digest != null) {
+                    digest.update(chunk.duplicate());
+                }
+                ChunkManifest.hash(chunkDigest, chunk, hash, 0);
+                if (!Arrays.equals(hash, 0, ChunkManifest.HASH_SIZE, reply, hashOffset, hashOffset + ChunkManifest.HASH_SIZE)) {
+                    changed.set(next);
+                }
+            }
+            if (count == 0 && next < matchable) {
+                throw new IOException("Receiver sent no hashes from chunk " + next);
+            }
+        }
+
+        // chunks past the end of the receiver's copy are new, and the last one always goes
+        if (digest != null && matchable < chunks) {
+            GoBackNUtils.updateDigest(digest, file, (long) matchable * chunkSize, fileSize);
+        }
+        changed.set(matchable, chunks);
+        if (chunks > 0) {
+            changed.set(chunks - 1);
+        }
+        syncChunks = chunks;
+        syncChunksSent = changed.cardinality();
+
+        long[] runs = new long[Math.max(2, 2 * syncChunksSent)];
+        int run = 0;
+        for (int start = changed.nextSetBit(0); start >= 0; ) {
+            int end = changed.nextClearBit(start);
+            runs[run++] = (long) start * chunkSize;
+            runs[run++] = Math.min(fileSize, (long) end * chunkSize) - (long) start * chunkSize;
+            start = changed.nextSetBit(end);
+        }
+        // an empty file is a single empty run
+        return Arrays.copyOf(runs, Math.max(2, run));
+    }
+
+    /**
+     * Writes offset 0 and the name of the session's next file after the
+     * header, for the receiver to open the file before its data arrives.
+     */
+    private int writeFileHeader(byte[] packet, String fileName) throws IOException {
+        byte[] name = new File(fileName).getName().getBytes(StandardCharsets.UTF_8);
+        int offset = packetFormat.getHeaderSize();
+        if (8 + name.length > packet.length - offset) {
+            throw new IOException("File name is too long for one packet: " + fileName);
+        }
+        GoBackNUtils.writeLong(packet, offset, 0);
+        System.arraycopy(name, 0, packet, offset + 8, name.length);
+        return 8 + name.length;
+    }
+
+    private int finishDigest(MessageDigest digest, byte[] packet) throws IOException {
+        try {
+            return digest.digest(packet, packetFormat.getHeaderSize(), GoBackNUtils.FILE_DIGEST_SIZE);
+        } catch (DigestException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Closes the socket of a transfer that was cut short by an exception.
+     */
+    public void close() {
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
+    private void onTimeout() throws IOException {
+        resendWindow();
+
+        // back off until an ack restarts the timer
+        rttEstimator.onTimeout();
+        metrics.timeout(rttEstimator.getTimeoutNanos());
+        if (congestionController != null) {
+            congestionController.onTimeout();
+        }
+        retransmitDeadline = System.nanoTime() + rttEstimator.getTimeoutNanos();
+    }
+
+    /**
+     * Where the payloads of a flow come from. Each call fills the next
+     * packet after its header, ending with the one flagged FLAG_EOT.
+     */
+    private abstract class PayloadSource {
+        // the FLAG_EOT packet has been filled
+        boolean finished;
+        long bytesSent;
+
+        /**
+         * @param idle nothing is in flight, so the source may wait for data
+         * @return the payload length shifted left 8 bits and or'ed with the
+         * packet's flags, or -1 if no data is ready yet
+         */
+        abstract int next(byte[] packet, boolean idle) throws IOException;
+
+        /**
+         * Whether {@link #next} has a packet without waiting.
+         */
+        boolean isReady() {
+            return true;
+        }
+
+        /**
+         * Accounts for a payload of data just read into the packet.
+         */
+        void sent(MessageDigest digest, byte[] packet, int length) {
+            bytesSent += length;
+            if (digest != null) {
+                digest.update(packet, packetFormat.getHeaderSize(), length);
+            }
+        }
+    }
+
+    /**
+     * Runs of a file as offset and length pairs, each after a FLAG_STRIPE
+     * packet with its offset unless the file is sent whole, then the
+     * digest if there is one.
+     */
+    private class FileSource extends PayloadSource {
+        private final FileInputStream fis;
+        private final long[] runs;
+        private final MessageDigest digest;
+        // hashed as it is read, unless the runs are a sync's and the whole file was hashed up front
+        private final boolean hashRuns;
+        private int nextRun;
+        private long remaining;
+        private boolean endOfData;
+
+        FileSource(FileInputStream fis, long[] runs, boolean announce, MessageDigest digest, boolean hashRuns) {
+            this.fis = fis;
+            this.runs = runs;
+            this.digest = digest;
+            this.hashRuns = hashRuns;
+            if (!announce) {
+                // the file is already positioned at the only run
+                remaining = runs[1];
+                nextRun = 2;
+            }
+        }
+
+        @Override
+        int next(byte[] packet, boolean idle) throws IOException {
+            int headerSize = packetFormat.getHeaderSize();
+            if (endOfData) {
+                // all data is out, this last packet carries the digest instead
+                finished = true;
+                return finishDigest(digest, packet) << 8 | PacketFormat.FLAG_EOT | PacketFormat.FLAG_DIGEST;
+            }
+            if (remaining == 0 && nextRun < runs.length) {
+                // tell the receiver where the run starts before sending any of it
+                GoBackNUtils.writeLong(packet, headerSize, runs[nextRun]);
+                fis.getChannel().position(runs[nextRun]);
+                remaining = runs[nextRun + 1];
+                nextRun += 2;
+                return 8 << 8 | PacketFormat.FLAG_STRIPE;
+            }
+
+            // read bytes straight into the packet, after its header
+            int toRead = (int) Math.min(payloadSize, remaining);
+            int bytesRead = toRead == 0 ? -1 : fis.read(packet, headerSize, toRead);
+            boolean atEnd = bytesRead == -1 || bytesRead < payloadSize;
+            if (atEnd && bytesRead == toRead && nextRun < runs.length) {
+                // only this run is over
+                atEnd = false;
+            }
+            bytesRead = Math.max(0, bytesRead);
+            remaining -= bytesRead;
+            sent(hashRuns ? digest : null, packet, bytesRead);
+            if (atEnd) {
+                endOfData = true;
+                finished = digest == null;
+            }
+            return bytesRead << 8 | (finished ? PacketFormat.FLAG_EOT : 0);
+        }
+    }
+
+    /**
+     * A stream of unknown length, read ahead on a thread of its own, then
+     * the digest if there is one.
+     */
+    private class ReadAheadSource extends PayloadSource {
+        private final StreamSource stream;
+        private final MessageDigest digest = fileDigest ? GoBackNUtils.newFileDigest() : null;
+        private boolean endOfData;
+
+        ReadAheadSource(StreamSource stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        int next(byte[] packet, boolean idle) throws IOException {
+            if (endOfData) {
+                finished = true;
+                return finishDigest(digest, packet) << 8 | PacketFormat.FLAG_EOT | PacketFormat.FLAG_DIGEST;
+            }
+            int bytesRead = stream.read(packet, packetFormat.getHeaderSize(), payloadSize, idle);
+            if (bytesRead == 0) {
+                return -1;
+            }
+            if (bytesRead == -1) {
+                bytesRead = 0;
+                endOfData = true;
+                finished = digest == null;
+            }
+            sent(digest, packet, bytesRead);
+            return bytesRead << 8 | (finished ? PacketFormat.FLAG_EOT : 0)
+                    | (deflater != null ? PacketFormat.FLAG_DEFLATE : 0);
+        }
+
+        @Override
+        boolean isReady() {
+            return endOfData || stream.isReady();
+        }
+    }
+
+    /**
+     * The files of a session as their names are taken from the queue, each
+     * after a FLAG_STRIPE packet with offset 0 and its name and followed by
+     * its own digest, until an empty name ends the flow with an empty
+     * FLAG_EOT packet.
+     */
+    private class SessionSource extends PayloadSource {
+        private final BlockingQueue<String> files;
+        private final MessageDigest digest = fileDigest ? GoBackNUtils.newFileDigest() : null;
+        // the file being read, null between files
+        private FileInputStream file;
+        private boolean endOfData;
+
+        SessionSource(BlockingQueue<String> files) {
+            this.files = files;
+        }
+
+        @Override
+        int next(byte[] packet, boolean idle) throws IOException {
+            if (endOfData) {
+                endOfData = false;
+                int length = finishDigest(digest, packet);
+                close();
+                return length << 8 | PacketFormat.FLAG_DIGEST;
+            }
+            if (file == null) {
+                // only wait for the next file when there is nothing in flight to wait on instead
+                String name;
+                try {
+                    name = idle ? files.take() : files.poll();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted waiting for the next file of the session");
+                }
+                if (name == null) {
+                    return -1;
+                }
+                if (name.isEmpty()) {
+                    finished = true;
+                    return PacketFormat.FLAG_EOT;
+                }
+                file = new FileInputStream(name);
+                filesSent++;
+                return writeFileHeader(packet, name) << 8 | PacketFormat.FLAG_STRIPE;
+            }
+
+            int bytesRead = file.read(packet, packetFormat.getHeaderSize(), payloadSize);
+            boolean atEnd = bytesRead == -1 || bytesRead < payloadSize;
+            bytesRead = Math.max(0, bytesRead);
+            sent(digest, packet, bytesRead);
+            if (atEnd) {
+                // the next file follows in the same flow, after this one's digest if there is one
+                endOfData = digest != null;
+                if (digest == null) {
+                    close();
                 }
-            };
+            }
+            return bytesRead << 8;
+        }
 
-            timerTask = timer.scheduleWithFixedDelay(runnable, TIMEOUT, TIMEOUT, TimeUnit.MILLISECONDS);
+        @Override
+        boolean isReady() {
+            return file != null || endOfData || !files.isEmpty();
+        }
+
+        void close() throws IOException {
+            if (file != null) {
+                file.close();
+                file = null;
+            }
         }
     }
 
     public static void main(String[] argv) throws Exception {
-        if (argv.length != 5) {
+        if (argv.length < 5) {
             System.out.println("Usage:");
-            System.out.println("java StopAndWaitSender <0> <1> <2> <3> <4>");
+            System.out.println("java GoBackNSender <0> <1> <2> <3> <4> [options]");
             System.out.println("0: host address of the receiver");
             System.out.println("1: UDP port number used by the receiver to receive data from the sender");
             System.out.println("2: UDP port number used by the sender to receive ACKs from the receiver");
-            System.out.println("3: Name of the file to be transferred");
-            System.out.println("4: Window size <= 128");
+            System.out.println("3: Name of the file to be transferred, - for standard input, or @<list> to send the files");
+            System.out.println("   named one per line in list (@- for standard input) in one session, as they are read");
+            System.out.println("4: Window size <= " + MAX_WINDOW_SIZE + " (" + MAX_WIDE_WINDOW_SIZE + " with header=wide|session)");
+            System.out.println("options:");
+            for (String line : GoBackNSenderOptions.USAGE) {
+                System.out.println(line);
+            }
+            System.out.println("  compress[=<level>] deflate the data, level 1 (fastest, default) to 9 (header=wide|session)");
+            System.out.println("  pace[=<Mbit/s>]    space packets out at this rate, or at window / RTT without one");
+            System.out.println("  pace-burst=<n>     packets that may go out back to back when pacing, default " + DEFAULT_PACING_BURST);
+            System.out.println("  fec=<k>            send an XOR parity packet every k packets, up to 64 (header=wide|session)");
+            System.out.println("  sync               send only the chunks that differ from the receiver's copy (header=wide|session)");
+            System.out.println("  resume             continue from the receiver's checkpoint (header=wide|session)");
+            System.out.println("  metrics=<file>     write live transfer metrics as JSON lines, - for stderr");
+            System.out.println("  metrics-every=<ms> how often to write metrics, default 1000");
             System.exit(1);
         }
 
+        Map<String, String> options = GoBackNUtils.parseOptions(argv, 5);
+
         int recPort = Integer.parseInt(argv[1]);
         int senderPort = Integer.parseInt(argv[2]);
         int windowSize = Integer.parseInt(argv[4]);
 
-        if (windowSize > 128) {
-            System.out.println("Window size must be <= 128");
+        int maxWindowSize = GoBackNSenderOptions.maxWindowSize(GoBackNSenderOptions.packetFormat(options));
+
+        if (windowSize > maxWindowSize) {
+            System.out.println("Window size must be <= " + maxWindowSize);
             System.exit(1);
         }
 
         GoBackNSender gbnSender = new GoBackNSender(InetAddress.getByName(argv[0]), recPort, senderPort, windowSize);
+        GoBackNSenderOptions.apply(gbnSender, options);
+        gbnSender.setResume(options.containsKey("resume"));
+        if (options.containsKey("pace")) {
+            double mbps = options.get("pace").isEmpty() ? 0 : Double.parseDouble(options.get("pace"));
+            gbnSender.setPacing(mbps * 1e6 / 8,
+                    Integer.parseInt(options.getOrDefault("pace-burst", Integer.toString(DEFAULT_PACING_BURST))));
+        }
+        if (options.containsKey("fec")) {
+            gbnSender.setForwardErrorCorrection(Integer.parseInt(options.get("fec")));
+        }
+        gbnSender.setSync(options.containsKey("sync"));
+        gbnSender.setCompression(options.containsKey("compress"));
+        if (options.containsKey("compress") && !options.get("compress").isEmpty()) {
+            gbnSender.setCompressionLevel(Integer.parseInt(options.get("compress")));
+        }
+        gbnSender.getMetrics().configure(options);
+
+        if (argv[3].equals("-")) {
+            gbnSender.send(System.in);
+        } else if (argv[3].startsWith("@")) {
+            BufferedReader names = new BufferedReader(argv[3].equals("@-")
+                    ? new InputStreamReader(System.in) : new FileReader(argv[3].substring(1)));
+            try (GoBackNSession session = new GoBackNSession(gbnSender)) {
+                String name;
+                while ((name = names.readLine()) != null) {
+                    if (!name.isEmpty()) {
+                        session.send(name);
+                    }
+                }
+            }
+        } else {
+            gbnSender.sendFile(argv[3]);
+        }
+        gbnSender.getMetrics().close();
 
-        gbnSender.sendFile(argv[3]);
+        if (options.containsKey("cc-trace")) {
+            gbnSender.getCongestionController().writeTrace(options.get("cc-trace"));
+        }
         System.exit(0);
     }
 }
@@ -0,0 +1,61 @@
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The command line options GoBackNSender and GoBackNChannelSender both
+ * take: their usage lines, and applying them to either sender.
+ */
+public class GoBackNSenderOptions {
+    public static final Set<String> NAMES = Set.of("cc", "cc-trace", "header", "payload", "session", "crc32c", "digest");
+
+    public static final String[] USAGE = {
+            "  cc                 congestion control, window size becomes the cap",
+            "  cc-trace=<file>    write the congestion window trace as CSV",
+            "  header=<format>    legacy, wide or session packet header, must match the receiver",
+            "  payload=<bytes>    payload bytes per packet, e.g. 1400 or up to 65495 on loopback",
+            "  session=<hex id>   session id for header=session, random by default",
+            "  crc32c             CRC32C per packet instead of the 8-bit checksum (header=wide|session)",
+            "  digest             send a SHA-256 of the file for the receiver to verify (header=wide|session)",
+    };
+
+    /**
+     * The setters behind the shared options.
+     */
+    public interface Target {
+        void setPacketFormat(PacketFormat packetFormat);
+
+        void setPayloadSize(int payloadSize);
+
+        void setCongestionControl(boolean congestionControl);
+
+        void setSessionId(int sessionId);
+
+        void setCrc32c(boolean crc32c);
+
+        void setFileDigest(boolean fileDigest);
+    }
+
+    public static PacketFormat packetFormat(Map<String, String> options) {
+        return PacketFormat.fromName(options.getOrDefault("header", "legacy"));
+    }
+
+    public static int maxWindowSize(PacketFormat packetFormat) {
+        return packetFormat == PacketFormat.LEGACY ? GoBackNSender.MAX_WINDOW_SIZE : GoBackNSender.MAX_WIDE_WINDOW_SIZE;
+    }
+
+    /**
+     * Sets the packet format first, since it resets the payload size.
+     */
+    public static void apply(Target sender, Map<String, String> options) {
+        sender.setPacketFormat(packetFormat(options));
+        if (options.containsKey("payload")) {
+            sender.setPayloadSize(Integer.parseInt(options.get("payload")));
+        }
+        sender.setCongestionControl(options.containsKey("cc") || options.containsKey("cc-trace"));
+        if (options.containsKey("session")) {
+            sender.setSessionId(Integer.parseUnsignedInt(options.get("session"), 16));
+        }
+        sender.setCrc32c(options.containsKey("crc32c"));
+        sender.setFileDigest(options.containsKey("digest"));
+    }
+}
@@ -0,0 +1,481 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Receives any number of concurrent GoBackN transfers on one UDP port.
+ * Senders use the session packet format and are told apart by the session id
+ * in the header; each session has its own reassembly state and output file.
+ *
+ * One thread reads the socket and hands every datagram to one of a small pool
+ * of worker loops, picked by session id, so a session is only ever touched by
+ * a single thread and needs no locking. Sessions idle for longer than the idle
+ * timeout are closed. That also bounds how long a finished session stays
+ * around to re-ack a retransmitted final packet.
+ *
+ * With a session limit, reaching it stops new sessions from opening. The
+ * server returns once the sessions in progress have ended and the socket
+ * has been quiet for GoBackNUtils.LINGER_MILLIS, so lost final acks can
+ * still be repeated.
+ */
+public class GoBackNServer {
+    private static final PacketFormat PACKET_FORMAT = PacketFormat.SESSION;
+    // per worker; past this the reader drops datagrams, just as a full socket buffer would
+    private static final int QUEUE_CAPACITY = 4096;
+    private static final long SWEEP_INTERVAL_MILLIS = 1000;
+    private static final int INFLATE_BUFFER_SIZE = 64 * 1024;
+
+    private int serverPort;
+    private File outputDirectory;
+    private int workerCount = Runtime.getRuntime().availableProcessors();
+    private long idleTimeoutMillis = 30000;
+    private int sessionLimit;
+    private boolean verifyDigest;
+
+    private DatagramSocket socket;
+    private Worker[] workers;
+    private final AtomicInteger sessionsCompleted = new AtomicInteger();
+    private final AtomicInteger sessionsFailed = new AtomicInteger();
+    // opened and not yet completed, failed or timed out
+    private final AtomicInteger sessionsInProgress = new AtomicInteger();
+    // set once the session limit is reached
+    private volatile boolean draining;
+
+    public GoBackNServer(int serverPort, File outputDirectory) {
+        this.serverPort = serverPort;
+        this.outputDirectory = outputDirectory;
+    }
+
+    public void setWorkerCount(int workerCount) {
+        this.workerCount = workerCount;
+    }
+
+    public void setIdleTimeoutMillis(long idleTimeoutMillis) {
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * Makes {@link #serve(int)} stop opening sessions once this many have
+     * completed or failed, and return when the rest have ended too. 0, the
+     * default, serves forever.
+     */
+    public void setSessionLimit(int sessionLimit) {
+        this.sessionLimit = sessionLimit;
+    }
+
+    public void setVerifyDigest(boolean verifyDigest) {
+        this.verifyDigest = verifyDigest;
+    }
+
+    public void serve(int reliabilityNumber) throws IOException {
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            throw new IOException("Cannot create " + outputDirectory);
+        }
+
+        socket = new DatagramSocket(serverPort);
+        // many senders bursting whole windows at once
+        socket.setReceiveBufferSize(GoBackNUtils.SOCKET_BUFFER_SIZE);
+        if (sessionLimit > 0) {
+            // wakes the reader to notice the last session has ended
+            socket.setSoTimeout(GoBackNUtils.LINGER_MILLIS);
+        }
+        draining = false;
+
+        ExecutorService executor = Executors.newFixedThreadPool(workerCount);
+        workers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Worker(reliabilityNumber);
+            executor.execute(workers[i]);
+        }
+
+        System.out.println("Serving on port " + serverPort + " with " + workerCount + " workers, writing to " + outputDirectory);
+
+        byte[] rcvBuffer = new byte[PACKET_FORMAT.getMaxPacketSize()];
+        DatagramPacket receivePacket = new DatagramPacket(rcvBuffer, rcvBuffer.length);
+
+        while (true) {
+            receivePacket.setLength(rcvBuffer.length);
+            try {
+                socket.receive(receivePacket);
+            } catch (SocketTimeoutException e) {
+                if (draining && sessionsInProgress.get() == 0) {
+                    // quiet for the linger time, so every final ack has arrived
+                    break;
+                }
+                continue;
+            }
+
+            int length = receivePacket.getLength();
+            if (length < PACKET_FORMAT.getHeaderSize()) {
+                continue;
+            }
+
+            // the worker gets its own copy so the receive buffer can be reused right away
+            DatagramPacket packet = new DatagramPacket(Arrays.copyOf(rcvBuffer, length), length, receivePacket.getSocketAddress());
+            int sessionId = PACKET_FORMAT.sessionId(rcvBuffer);
+            workers[Math.floorMod(sessionId, workerCount)].queue.offer(packet);
+        }
+
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        socket.close();
+
+        System.out.println();
+        System.out.println("Sessions Completed: " + sessionsCompleted.get());
+        System.out.println("Sessions Failed: " + sessionsFailed.get());
+    }
+
+    private void onSessionEnded() {
+        sessionsInProgress.decrementAndGet();
+        int ended = sessionsCompleted.get() + sessionsFailed.get();
+        if (sessionLimit > 0 && ended >= sessionLimit) {
+            draining = true;
+        }
+    }
+
+    /**
+     * Event loop owning every session whose id hashes to it.
+     */
+    private class Worker implements Runnable {
+        private final BlockingQueue<DatagramPacket> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private final Map<Integer, Session> sessions = new HashMap<>();
+        private final LossModel lossModel;
+
+        Worker(int reliabilityNumber) {
+            this.lossModel = LossModel.fromReliabilityNumber(reliabilityNumber);
+        }
+
+        public void run() {
+            long nextSweep = System.currentTimeMillis() + SWEEP_INTERVAL_MILLIS;
+            try {
+                while (true) {
+                    DatagramPacket packet = queue.poll(SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (packet != null) {
+                        handle(packet);
+                    }
+
+                    long now = System.currentTimeMillis();
+                    if (now >= nextSweep) {
+                        sweep(now);
+                        nextSweep = now + SWEEP_INTERVAL_MILLIS;
+                    }
+                }
+            } catch (InterruptedException e) {
+                // the server is shutting down
+            } finally {
+                for (Session session : sessions.values()) {
+                    session.close();
+                }
+            }
+        }
+
+        private void handle(DatagramPacket packet) {
+            byte[] data = packet.getData();
+            if (PACKET_FORMAT.isCorrupt(packet) || lossModel.shouldDrop()) {
+                return;
+            }
+
+            int sessionId = PACKET_FORMAT.sessionId(data);
+            Session session = sessions.get(sessionId);
+            try {
+                if (session == null) {
+                    // only the first packet opens a session, strays from a forgotten one are dropped,
+                    // and none open once the session limit is reached
+                    if (PACKET_FORMAT.sequenceNumber(data) != 0 || draining) {
+                        return;
+                    }
+                    session = new Session(sessionId);
+                    sessions.put(sessionId, session);
+                    sessionsInProgress.incrementAndGet();
+                }
+
+                session.receive(packet);
+
+            } catch (IOException e) {
+                System.err.println(String.format("Session %08x failed: ", sessionId) + e.getMessage());
+                if (session != null) {
+                    session.close();
+                    sessions.remove(sessionId);
+                    sessionsFailed.incrementAndGet();
+                    onSessionEnded();
+                }
+            }
+        }
+
+        private void sweep(long now) {
+            Iterator<Session> i = sessions.values().iterator();
+            while (i.hasNext()) {
+                Session session = i.next();
+                if (now - session.lastActivity < idleTimeoutMillis) {
+                    continue;
+                }
+
+                i.remove();
+                if (!session.endOfFile) {
+                    session.close();
+                    System.out.println(String.format("Session %08x timed out after ", session.id)
+                            + session.bytesReceived + " bytes, " + GoBackNUtils.partFile(session.file.toPath()) + " is incomplete");
+                    sessionsFailed.incrementAndGet();
+                    onSessionEnded();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reassembly state of one transfer, the same as a GoBackNReceiver's.
+     */
+    private class Session {
+        private final int id;
+        private final File file;
+        private final FileChannel fileChannel;
+        private final MessageDigest digest;
+        private final DatagramPacket ackPacket;
+        private final long startTime = System.nanoTime();
+
+        private long lastAck = -1;
+        private long position;
+        private long bytesReceived;
+        private long lastActivity;
+        private boolean endOfFile;
+        private byte[] expectedDigest;
+        // set once a FLAG_DEFLATE packet arrives
+        private Inflater inflater;
+        private ByteBuffer inflated;
+
+        Session(int id) throws IOException {
+            this.id = id;
+            this.file = new File(outputDirectory, String.format("session-%08x.out", id));
+            // the file takes its name once complete and verified
+            this.fileChannel = FileChannel.open(GoBackNUtils.partFile(file.toPath()),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            this.digest = verifyDigest ? GoBackNUtils.newFileDigest() : null;
+            int headerSize = PACKET_FORMAT.getHeaderSize();
+            this.ackPacket = new DatagramPacket(new byte[headerSize], headerSize);
+        }
+
+        void receive(DatagramPacket packet) throws IOException {
+            byte[] data = packet.getData();
+            int headerSize = PACKET_FORMAT.getHeaderSize();
+            int flags = PACKET_FORMAT.flags(data);
+            long seqNum = PACKET_FORMAT.unwrap(PACKET_FORMAT.sequenceNumber(data), lastAck);
+            lastActivity = System.currentTimeMillis();
+
+            if ((flags & PacketFormat.FLAG_CONTROL) != 0) {
+                // nothing is kept from earlier runs: resumed and synced transfers start again from 0
+                int type = GoBackNUtils.controlType(data, packet.getLength(), headerSize);
+                if (lastAck == -1 && (type == PacketFormat.CONTROL_RESUME_REQUEST || type == PacketFormat.CONTROL_SYNC_REQUEST)) {
+                    sendResumeInfo(packet, flags);
+                }
+                return;
+            }
+            if ((flags & PacketFormat.FLAG_PARITY) != 0) {
+                // not data, and its sequence number is its group's: losses are resent instead
+                return;
+            }
+
+            long ackNum;
+            boolean completed = false;
+            if (!endOfFile && seqNum == lastAck + 1) {
+                int length = packet.getLength() - headerSize;
+                if ((flags & PacketFormat.FLAG_DIGEST) != 0) {
+                    expectedDigest = Arrays.copyOfRange(data, headerSize, headerSize + length);
+                } else if ((flags & PacketFormat.FLAG_STRIPE) != 0) {
+                    // where the following data goes: a range, a resumed flow or a run of changed chunks
+                    position = GoBackNUtils.readLong(data, headerSize);
+                } else {
+                    ByteBuffer body = ByteBuffer.wrap(data, headerSize, length);
+                    if ((flags & PacketFormat.FLAG_DEFLATE) != 0) {
+                        inflate(body);
+                    } else {
+                        write(body);
+                    }
+                    // a digest covers the data as sent
+                    if (digest != null) {
+                        digest.update(data, headerSize, length);
+                    }
+                }
+                ackNum = seqNum;
+                lastAck = lastAck + 1;
+                endOfFile = (flags & PacketFormat.FLAG_EOT) != 0;
+                completed = endOfFile;
+
+            } else {
+                // includes retransmissions of the last packet, which are only re-acked
+                ackNum = lastAck;
+            }
+            if (completed) {
+                // the final ack says the file arrived intact, so it waits for the checks
+                verify(packet, flags);
+            }
+
+            // make and send ACK, to wherever the sender is sending from now
+            PACKET_FORMAT.writeSessionId(ackPacket.getData(), id);
+            ackPacket.setLength(PACKET_FORMAT.encode(ackPacket.getData(), ackNum, flags & PacketFormat.FLAG_CRC32C, 0));
+            ackPacket.setSocketAddress(packet.getSocketAddress());
+            socket.send(ackPacket);
+
+            if (completed) {
+                complete(packet);
+            }
+        }
+
+        private void write(ByteBuffer data) throws IOException {
+            while (data.hasRemaining()) {
+                int written = fileChannel.write(data, position);
+                position += written;
+                bytesReceived += written;
+            }
+        }
+
+        /**
+         * Inflates the next slice of the sender's zlib stream and writes out
+         * whatever it completes, the same way GoBackNReceiver does.
+         */
+        private void inflate(ByteBuffer compressed) throws IOException {
+            if (inflater == null) {
+                inflater = new Inflater();
+                inflated = ByteBuffer.allocate(INFLATE_BUFFER_SIZE);
+            }
+            inflater.setInput(compressed);
+            try {
+                while (!inflater.finished()) {
+                    inflated.clear();
+                    int length = inflater.inflate(inflated);
+                    inflated.flip();
+                    write(inflated);
+                    if (length == 0) {
+                        if (!inflater.needsInput()) {
+                            throw new IOException("compressed data needs a preset dictionary");
+                        }
+                        break;
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("compressed data is corrupt", e);
+            }
+        }
+
+        private void sendResumeInfo(DatagramPacket request, int flags) throws IOException {
+            int headerSize = PACKET_FORMAT.getHeaderSize();
+            byte[] reply = new byte[headerSize + GoBackNUtils.CONTROL_TYPE_SIZE + GoBackNUtils.RESUME_INFO_SIZE];
+            int infoLength = GoBackNUtils.writeResumeInfo(reply, headerSize, 0, null);
+            PACKET_FORMAT.writeSessionId(reply, id);
+            int length = PACKET_FORMAT.encode(reply, -1, flags & PacketFormat.FLAG_CRC32C | PacketFormat.FLAG_CONTROL, infoLength);
+            socket.send(new DatagramPacket(reply, length, request.getSocketAddress()));
+        }
+
+        /**
+         * Checks the digest and gives the file its name, or tells the sender
+         * why not in place of the final ack.
+         */
+        private void verify(DatagramPacket packet, int flags) throws IOException {
+            fileChannel.close();
+            String failure = null;
+            if (inflater != null && !inflater.finished()) {
+                failure = "compressed data ends before the end of its zlib stream";
+            } else if (digest != null && expectedDigest == null) {
+                failure = "sender did not send a file digest";
+            } else if (digest != null && !MessageDigest.isEqual(expectedDigest, digest.digest())) {
+                failure = "file digest mismatch, " + file + " is corrupt";
+            }
+            if (failure != null) {
+                Files.deleteIfExists(GoBackNUtils.partFile(file.toPath()));
+                int headerSize = PACKET_FORMAT.getHeaderSize();
+                byte[] reply = new byte[PACKET_FORMAT.getMaxPacketSize()];
+                int length = GoBackNUtils.writeRejection(reply, headerSize, failure, PACKET_FORMAT.getMaxPayloadSize());
+                PACKET_FORMAT.writeSessionId(reply, id);
+                length = PACKET_FORMAT.encode(reply, -1, flags & PacketFormat.FLAG_CRC32C | PacketFormat.FLAG_CONTROL, length);
+                socket.send(new DatagramPacket(reply, length, packet.getSocketAddress()));
+                throw new IOException(failure);
+            }
+            Files.move(GoBackNUtils.partFile(file.toPath()), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+
+        private void complete(DatagramPacket packet) {
+            String verified = digest != null ? ", " + GoBackNUtils.FILE_DIGEST_ALGORITHM + " verified" : "";
+
+            long duration = System.nanoTime() - startTime;
+            System.out.println(String.format("Session %08x completed: ", id) + bytesReceived + " bytes from "
+                    + packet.getSocketAddress() + " in " + TimeUnit.NANOSECONDS.toMillis(duration) + " ms to " + file + verified);
+            sessionsCompleted.incrementAndGet();
+            onSessionEnded();
+        }
+
+        void close() {
+            try {
+                fileChannel.close();
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+            }
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+    }
+
+    public static void main(String[] argv) throws Exception {
+        if (argv.length < 3) {
+            System.out.println("Usage:");
+            System.out.println("java GoBackNServer <0> <1> <2> [options]");
+            System.out.println("0: UDP port number used by the server to receive data from senders");
+            System.out.println("1: Directory to write received files to, one session-<id>.out per session");
+            System.out.println("2: Reliability number");
+            System.out.println("options:");
+            System.out.println("  workers=<n>        worker loops sessions are spread over, default one per processor");
+            System.out.println("  idle=<ms>          close sessions idle for this long, default 30000");
+            System.out.println("  sessions=<n>       stop taking sessions once n have completed or failed, exit when the rest end");
+            System.out.println("  digest             require and check each sender's SHA-256 file digest");
+            System.out.println("Senders must use header=session.");
+            System.exit(1);
+        }
+
+        Map<String, String> options = GoBackNUtils.parseOptions(argv, 3);
+
+        int serverPort = Integer.parseInt(argv[0]);
+        int rn = Integer.parseInt(argv[2]);
+
+        GoBackNServer server = new GoBackNServer(serverPort, new File(argv[1]));
+        if (options.containsKey("workers")) {
+            server.setWorkerCount(Integer.parseInt(options.get("workers")));
+        }
+        if (options.containsKey("idle")) {
+            server.setIdleTimeoutMillis(Long.parseLong(options.get("idle")));
+        }
+        if (options.containsKey("sessions")) {
+            server.setSessionLimit(Integer.parseInt(options.get("sessions")));
+        }
+        server.setVerifyDigest(options.containsKey("digest"));
+
+        server.serve(rn);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,70 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Sends files over one long-lived flow as they are handed to it, from a
+ * thread of its own. The socket, RTT estimate and windows of the
+ * {@link GoBackNSender} carry over from file to file instead of being set
+ * up again for each, which is most of the cost of sending a small file.
+ * Closing the session waits for the queued files to be sent and ends the
+ * flow.
+ */
+public class GoBackNSession implements Closeable {
+    private final BlockingQueue<String> files = new LinkedBlockingQueue<>();
+    private final Thread thread;
+    private volatile Exception failure;
+    private boolean closed;
+
+    public GoBackNSession(final GoBackNSender sender) {
+        thread = new Thread(() -> {
+            try {
+                sender.sendFiles(files);
+            } catch (IOException | RuntimeException e) {
+                failure = e;
+            }
+        }, "gbn-session");
+        thread.start();
+    }
+
+    /**
+     * Queues a file to go out after the ones queued before it.
+     */
+    public void send(String fileName) throws IOException {
+        if (closed) {
+            throw new IllegalStateException("Session is closed");
+        }
+        checkFailure();
+        if (!new File(fileName).isFile()) {
+            throw new FileNotFoundException(fileName);
+        }
+        files.add(fileName);
+    }
+
+    /**
+     * Waits until every queued file has been sent and acked.
+     */
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            // an empty name ends the flow
+            files.add("");
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted waiting for the session to finish");
+        }
+        checkFailure();
+    }
+
+    private void checkFailure() throws IOException {
+        if (failure != null) {
+            throw new IOException("Sending the session failed", failure);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Receives a file sent by GoBackNStripedSender. Each stripe is an ordinary
+ * GoBackN flow on its own port, received on its own thread and written
+ * positionally into one shared file channel at the offset the flow announces.
+ */
+public class GoBackNStripedReceiver {
+    private InetAddress senderAddress;
+    private int senderPort;
+    private int receiverPort;
+    private int stripes;
+
+    private PacketFormat packetFormat = PacketFormat.WIDE;
+    private boolean verifyDigest;
+
+    public GoBackNStripedReceiver(InetAddress senderAddress, int senderPort, int receiverPort, int stripes) {
+        this.senderAddress = senderAddress;
+        this.senderPort = senderPort;
+        this.receiverPort = receiverPort;
+        this.stripes = stripes;
+    }
+
+    public void setPacketFormat(PacketFormat packetFormat) {
+        this.packetFormat = packetFormat;
+    }
+
+    public void setVerifyDigest(boolean verifyDigest) {
+        this.verifyDigest = verifyDigest;
+    }
+
+    public void receiveFile(String fileName, int reliabilityNumber) throws IOException {
+        FileChannel fileChannel = FileChannel.open(Paths.get(fileName),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        ExecutorService executor = Executors.newFixedThreadPool(stripes);
+        List<Future<?>> flows = new ArrayList<>();
+
+        for (int i = 0; i < stripes; i++) {
+            final GoBackNReceiver receiver = new GoBackNReceiver(senderAddress, senderPort + i, receiverPort + i);
+            receiver.setPacketFormat(packetFormat);
+            receiver.setVerifyDigest(verifyDigest);
+            flows.add(executor.submit(() -> {
+                receiver.receive(fileChannel, reliabilityNumber);
+                return null;
+            }));
+        }
+
+        try {
+            for (Future<?> flow : flows) {
+                flow.get();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException("A stripe failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+            fileChannel.close();
+        }
+
+        System.out.println("File transfer completed");
+        System.out.println("Stripes: " + stripes);
+        if (verifyDigest) {
+            System.out.println("File Digest: " + GoBackNUtils.FILE_DIGEST_ALGORITHM + " verified for every stripe");
+        }
+    }
+
+    public static void main(String[] argv) throws Exception {
+        if (argv.length < 6) {
+            System.out.println("Usage:");
+            System.out.println("java GoBackNStripedReceiver <0> <1> <2> <3> <4> <5> [options]");
+            System.out.println("0: host address of the sender");
+            System.out.println("1: first UDP port number used by the sender to receive ACKs, one per stripe");
+            System.out.println("2: first UDP port number used by the receiver to receive data, one per stripe");
+            System.out.println("3: Reliability number");
+            System.out.println("4: Name of the file to write received data");
+            System.out.println("5: Number of stripes, must match the sender");
+            System.out.println("options:");
+            System.out.println("  header=<format>    wide or session packet header, must match the sender");
+            System.out.println("  digest             require and check the sender's SHA-256 of each stripe");
+            System.exit(1);
+        }
+
+        Map<String, String> options = GoBackNUtils.parseOptions(argv, 6);
+
+        int senderPort = Integer.parseInt(argv[1]);
+        int recPort = Integer.parseInt(argv[2]);
+        int rn = Integer.parseInt(argv[3]);
+        int stripes = Integer.parseInt(argv[5]);
+
+        GoBackNStripedReceiver stripedReceiver = new GoBackNStripedReceiver(InetAddress.getByName(argv[0]), senderPort, recPort, stripes);
+        stripedReceiver.setPacketFormat(PacketFormat.fromName(options.getOrDefault("header", "wide")));
+        stripedReceiver.setVerifyDigest(options.containsKey("digest"));
+
+        stripedReceiver.receiveFile(argv[4], rn);
+        System.exit(0);
+    }
+}
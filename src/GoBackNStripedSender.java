@@ -0,0 +1,176 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Sends one file as several byte-range stripes, each over its own GoBackN
+ * flow with its own window, timer and port pair, so the flows run on separate
+ * cores. Stripe i goes from port senderPort + i to receiverPort + i; see
+ * GoBackNStripedReceiver for the other end.
+ */
+public class GoBackNStripedSender {
+    private InetAddress receiverAddress;
+    private int receiverPort;
+    private int senderPort;
+    private int windowSize;
+    private int stripes;
+
+    private PacketFormat packetFormat = PacketFormat.WIDE;
+    private int payloadSize = -1;
+    private boolean congestionControl;
+    private boolean crc32c;
+    private boolean fileDigest;
+
+    public GoBackNStripedSender(InetAddress receiverAddress, int receiverPort, int senderPort, int windowSize, int stripes) {
+        this.receiverAddress = receiverAddress;
+        this.receiverPort = receiverPort;
+        this.senderPort = senderPort;
+        this.windowSize = windowSize;
+        this.stripes = stripes;
+    }
+
+    public void setPacketFormat(PacketFormat packetFormat) {
+        this.packetFormat = packetFormat;
+    }
+
+    public void setPayloadSize(int payloadSize) {
+        this.payloadSize = payloadSize;
+    }
+
+    public void setCongestionControl(boolean congestionControl) {
+        this.congestionControl = congestionControl;
+    }
+
+    public void setCrc32c(boolean crc32c) {
+        this.crc32c = crc32c;
+    }
+
+    public void setFileDigest(boolean fileDigest) {
+        this.fileDigest = fileDigest;
+    }
+
+    public void sendFile(String fileName) throws IOException {
+        long fileSize = new File(fileName).length();
+
+        List<GoBackNSender> senders = new ArrayList<>();
+        for (int i = 0; i < stripes; i++) {
+            GoBackNSender sender = new GoBackNSender(receiverAddress, receiverPort + i, senderPort + i, windowSize);
+            sender.setPacketFormat(packetFormat);
+            if (payloadSize != -1) {
+                sender.setPayloadSize(payloadSize);
+            }
+            sender.setCongestionControl(congestionControl);
+            sender.setCrc32c(crc32c);
+            sender.setFileDigest(fileDigest);
+            sender.setQuiet(true);
+            senders.add(sender);
+        }
+
+        // whole packets per stripe, so only the last packet of the last stripe is short
+        int stripePayload = senders.get(0).getPayloadSize();
+        long packets = (fileSize + stripePayload - 1) / stripePayload;
+        long stripeSize = (packets + stripes - 1) / stripes * stripePayload;
+
+        for (int i = 0; i < stripes; i++) {
+            long offset = Math.min(fileSize, i * stripeSize);
+            senders.get(i).setRange(offset, Math.min(stripeSize, fileSize - offset));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(stripes);
+        List<Future<?>> flows = new ArrayList<>();
+
+        long startTime = System.nanoTime();
+
+        for (final GoBackNSender sender : senders) {
+            flows.add(executor.submit(() -> {
+                sender.sendFile(fileName);
+                return null;
+            }));
+        }
+
+        try {
+            for (Future<?> flow : flows) {
+                flow.get();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException("A stripe failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+            for (GoBackNSender sender : senders) {
+                sender.close();
+            }
+        }
+
+        long endTime = System.nanoTime();
+        long duration = (endTime - startTime);
+
+        long timeoutMillis = 0;
+        for (GoBackNSender sender : senders) {
+            timeoutMillis = Math.max(timeoutMillis, sender.getTimeoutMillis());
+        }
+
+        System.out.println();
+        System.out.println("~~File Transfer Completed~~");
+        System.out.println("File Name: " + fileName);
+        System.out.println("File Size: " + fileSize + " bytes");
+        System.out.println("Transfer Time: " + Long.toString(duration) + " nanoseconds");
+        System.out.println("Timeout Length: " + timeoutMillis + " milliseconds (longest stripe)");
+        System.out.println("Stripes: " + stripes + " of " + stripeSize + " bytes");
+        System.out.println("Packet Format: " + packetFormat + ", " + stripePayload + " byte payloads");
+        System.out.println();
+        System.out.println(timeoutMillis + "," + fileSize + "," + windowSize + "," + Long.toString(duration));
+    }
+
+    public static void main(String[] argv) throws Exception {
+        if (argv.length < 6) {
+            System.out.println("Usage:");
+            System.out.println("java GoBackNStripedSender <0> <1> <2> <3> <4> <5> [options]");
+            System.out.println("0: host address of the receiver");
+            System.out.println("1: first UDP port number used by the receiver to receive data, one per stripe");
+            System.out.println("2: first UDP port number used by the sender to receive ACKs, one per stripe");
+            System.out.println("3: Name of the file to be transferred");
+            System.out.println("4: Window size of each stripe <= " + GoBackNSender.MAX_WIDE_WINDOW_SIZE);
+            System.out.println("5: Number of stripes");
+            System.out.println("options:");
+            System.out.println("  cc                 congestion control per stripe, window size becomes the cap");
+            System.out.println("  header=<format>    wide or session packet header, must match the receiver");
+            System.out.println("  payload=<bytes>    payload bytes per packet, e.g. 1400 or up to 65495 on loopback");
+            System.out.println("  crc32c             CRC32C per packet instead of the 8-bit checksum");
+            System.out.println("  digest             send a SHA-256 of each stripe for the receiver to verify");
+            System.exit(1);
+        }
+
+        Map<String, String> options = GoBackNUtils.parseOptions(argv, 6);
+
+        int recPort = Integer.parseInt(argv[1]);
+        int senderPort = Integer.parseInt(argv[2]);
+        int windowSize = Integer.parseInt(argv[4]);
+        int stripes = Integer.parseInt(argv[5]);
+
+        if (windowSize > GoBackNSender.MAX_WIDE_WINDOW_SIZE) {
+            System.out.println("Window size must be <= " + GoBackNSender.MAX_WIDE_WINDOW_SIZE);
+            System.exit(1);
+        }
+
+        GoBackNStripedSender stripedSender = new GoBackNStripedSender(InetAddress.getByName(argv[0]), recPort, senderPort, windowSize, stripes);
+        stripedSender.setPacketFormat(PacketFormat.fromName(options.getOrDefault("header", "wide")));
+        if (options.containsKey("payload")) {
+            stripedSender.setPayloadSize(Integer.parseInt(options.get("payload")));
+        }
+        stripedSender.setCongestionControl(options.containsKey("cc"));
+        stripedSender.setCrc32c(options.containsKey("crc32c"));
+        stripedSender.setFileDigest(options.containsKey("digest"));
+
+        stripedSender.sendFile(argv[3]);
+        System.exit(0);
+    }
+}
@@ -1,5 +1,18 @@
+import java.io.EOFException;
+import java.io.IOException;
 import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.CRC32C;
 
 /**
  * Created by jmuia on 2016-03-08.
@@ -7,15 +20,137 @@ import java.util.Arrays;
 public class GoBackNUtils {
     public static final int EOT_INDEX = 7;
     public static final int MAX_PACKET_SIZE = 128;
+    // largest UDP payload over IPv4
+    public static final int MAX_DATAGRAM_SIZE = 65507;
+    // requested socket buffer for the wide format, the OS may cap it lower
+    public static final int SOCKET_BUFFER_SIZE = 4 * 1024 * 1024;
+    // receivers keep re-acking until the sender has been quiet this long, in case the final ack was lost
+    public static final int LINGER_MILLIS = 1000;
+
+    // a FLAG_SACK ack carries up to this many blocks, each the low 32 bits of its first and one-past-last sequence number
+    public static final int MAX_SACK_BLOCKS = 4;
+    public static final int SACK_BLOCK_SIZE = 8;
+
+    // whole-file digest carried by the final packet when the sender asks for one
+    public static final String FILE_DIGEST_ALGORITHM = "SHA-256";
+    public static final int FILE_DIGEST_SIZE = 32;
+    // the FLAG_WINDOW field at the start of an ack's payload
+    public static final int ADVERTISED_WINDOW_SIZE = 4;
+    // a FLAG_CONTROL payload starts with its PacketFormat.CONTROL_ type
+    public static final int CONTROL_TYPE_SIZE = 1;
+    // a CONTROL_RESUME_INFO body: the checkpoint offset, then the digest of the file up to it
+    public static final int RESUME_INFO_SIZE = 8 + FILE_DIGEST_SIZE;
+    // a CONTROL_SYNC_REQUEST body
+    public static final int SYNC_REQUEST_SIZE = 8;
+    // received files are written under this suffix and only take their name once verified
+    public static final String PART_SUFFIX = ".part";
+    // a FLAG_PARITY payload starts with the group's packet count (2 bytes) and the XOR of
+    // each packet's length << 8 | flags (4 bytes), then the XOR of their payloads
+    public static final int FEC_HEADER_SIZE = 6;
+    // groups are tracked in a 64-bit mask
+    public static final int MAX_FEC_GROUP_SIZE = 64;
+
+    // CRC32C keeps running state, so every thread gets its own
+    private static final ThreadLocal<CRC32C> CRC = ThreadLocal.withInitial(CRC32C::new);
 
     public static byte checksum(byte[] data) {
+        return checksum(data, 0, data.length);
+    }
+
+    public static byte checksum(byte[] data, int offset, int length) {
         byte checksum = 0;
-        for (byte b: data) {
-            checksum += (0xFF & b);
+        for (int i = offset; i < offset + length; i++) {
+            checksum += (0xFF & data[i]);
         }
         return (byte) ~checksum;
     }
 
+    public static byte checksum(ByteBuffer data, int offset, int length) {
+        byte checksum = 0;
+        for (int i = offset; i < offset + length; i++) {
+            checksum += (0xFF & data.get(i));
+        }
+        return (byte) ~checksum;
+    }
+
+    /**
+     * CRC32C of the first {@code length} bytes, skipping the 4-byte checksum
+     * field at {@code checksumOffset}. Uses the hardware CRC instructions where
+     * the JVM has them.
+     */
+    public static int crc32c(byte[] data, int length, int checksumOffset) {
+        CRC32C crc = CRC.get();
+        crc.reset();
+        crc.update(data, 0, checksumOffset);
+        crc.update(data, checksumOffset + 4, length - checksumOffset - 4);
+        return (int) crc.getValue();
+    }
+
+    public static int crc32c(ByteBuffer data, int length, int checksumOffset) {
+        int position = data.position();
+        int limit = data.limit();
+
+        CRC32C crc = CRC.get();
+        crc.reset();
+        data.limit(checksumOffset).position(0);
+        crc.update(data);
+        data.limit(length).position(checksumOffset + 4);
+        crc.update(data);
+
+        data.limit(limit).position(position);
+        return (int) crc.getValue();
+    }
+
+    public static MessageDigest newFileDigest() {
+        try {
+            return MessageDigest.getInstance(FILE_DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // every JRE is required to provide SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Feeds the bytes of {@code file} between {@code from} and {@code to} into
+     * {@code digest}, without moving the channel's position.
+     */
+    public static void updateDigest(MessageDigest digest, FileChannel file, long from, long to) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        long position = from;
+        while (position < to) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), to - position));
+            int read = file.read(buffer, position);
+            if (read == -1) {
+                throw new EOFException("File ends at " + position + ", before " + to);
+            }
+            position += read;
+            buffer.flip();
+            digest.update(buffer);
+        }
+    }
+
+    /**
+     * XORs {@code length} bytes of {@code source} into {@code target}.
+     */
+    public static void xor(byte[] source, int sourceOffset, byte[] target, int targetOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            target[targetOffset + i] ^= source[sourceOffset + i];
+        }
+    }
+
+    /**
+     * The digest of everything fed in so far, leaving {@code digest} able to
+     * take more.
+     */
+    public static byte[] peekDigest(MessageDigest digest) {
+        try {
+            return ((MessageDigest) digest.clone()).digest();
+        } catch (CloneNotSupportedException e) {
+            // the JDK's SHA-256 can be cloned
+            throw new IllegalStateException(e);
+        }
+    }
+
     public static byte checksumFromPacketData(byte[] packet) {
         byte headerChecksum = packet[1];
         packet[1] = 0;
@@ -34,14 +169,135 @@ public class GoBackNUtils {
             return true;
         }
 
-        byte[] data = Arrays.copyOfRange(packet.getData(), 0, dataLength);
+        // verify in place rather than copying the packet out of the receive buffer
+        byte[] data = packet.getData();
         byte checksum = data[1];
+        data[1] = 0;
+        byte calculatedChecksum = checksum(data, 0, dataLength);
+        data[1] = checksum;
 
-        if (checksum != GoBackNUtils.checksumFromPacketData(data)) {
+        if (checksum != calculatedChecksum) {
             // System.out.println("Dropping corrupt packet: checksum not same.");
             return true;
         }
 
         return false;
     }
+
+    public static void writeShort(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 8);
+        data[offset + 1] = (byte) value;
+    }
+
+    public static int readShort(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+    }
+
+    public static void writeInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+
+    public static int readInt(byte[] data, int offset) {
+        return ((data[offset] & 0xFF) << 24)
+                | ((data[offset + 1] & 0xFF) << 16)
+                | ((data[offset + 2] & 0xFF) << 8)
+                | (data[offset + 3] & 0xFF);
+    }
+
+    public static void writeLong(byte[] data, int offset, long value) {
+        writeInt(data, offset, (int) (value >>> 32));
+        writeInt(data, offset + 4, (int) value);
+    }
+
+    public static long readLong(byte[] data, int offset) {
+        return ((long) readInt(data, offset) << 32) | (readInt(data, offset + 4) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Parses trailing command line options of the form {@code name} or {@code name=value}.
+     */
+    /**
+     * Same as {@link #parseOptions(String[], int)}, failing on any option
+     * not in {@code supported} instead of silently ignoring it.
+     */
+    /**
+     * Writes a CONTROL_RESUME_INFO payload at {@code offset}, with no
+     * checkpoint if {@code hash} is null: resuming starts from 0.
+     *
+     * @return the payload length
+     */
+    public static int writeResumeInfo(byte[] packet, int offset, long resumeOffset, byte[] hash) {
+        packet[offset] = PacketFormat.CONTROL_RESUME_INFO;
+        writeLong(packet, offset + CONTROL_TYPE_SIZE, hash == null ? 0 : resumeOffset);
+        int hashOffset = offset + CONTROL_TYPE_SIZE + 8;
+        if (hash == null) {
+            Arrays.fill(packet, hashOffset, hashOffset + FILE_DIGEST_SIZE, (byte) 0);
+        } else {
+            System.arraycopy(hash, 0, packet, hashOffset, FILE_DIGEST_SIZE);
+        }
+        return CONTROL_TYPE_SIZE + RESUME_INFO_SIZE;
+    }
+
+    /**
+     * Writes a CONTROL_REJECTED payload at {@code offset}, the reason cut
+     * short to fit {@code maxPayloadSize}.
+     *
+     * @return the payload length
+     */
+    public static int writeRejection(byte[] packet, int offset, String reason, int maxPayloadSize) {
+        byte[] text = reason.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(text.length, maxPayloadSize - CONTROL_TYPE_SIZE);
+        packet[offset] = PacketFormat.CONTROL_REJECTED;
+        System.arraycopy(text, 0, packet, offset + CONTROL_TYPE_SIZE, length);
+        return CONTROL_TYPE_SIZE + length;
+    }
+
+    /**
+     * @return the reason of a CONTROL_REJECTED packet of {@code length} bytes
+     */
+    public static String readRejection(byte[] packet, int length, int headerSize) {
+        int offset = headerSize + CONTROL_TYPE_SIZE;
+        return new String(packet, offset, Math.max(0, length - offset), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return where a file is written until it is verified
+     */
+    public static Path partFile(Path file) {
+        return file.resolveSibling(file.getFileName() + PART_SUFFIX);
+    }
+
+    /**
+     * @return the CONTROL_ type of a FLAG_CONTROL packet of {@code length}
+     * bytes, or 0 if it has no payload
+     */
+    public static int controlType(byte[] packet, int length, int headerSize) {
+        return length > headerSize ? packet[headerSize] : 0;
+    }
+
+    public static Map<String, String> parseOptions(String[] argv, int start, Set<String> supported) {
+        Map<String, String> options = parseOptions(argv, start);
+        for (String name : options.keySet()) {
+            if (!supported.contains(name)) {
+                throw new IllegalArgumentException("Unsupported option " + name + ", supported: " + new TreeSet<>(supported));
+            }
+        }
+        return options;
+    }
+
+    public static Map<String, String> parseOptions(String[] argv, int start) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = start; i < argv.length; i++) {
+            int split = argv[i].indexOf('=');
+            if (split == -1) {
+                options.put(argv[i], "");
+            } else {
+                options.put(argv[i].substring(0, split), argv[i].substring(split + 1));
+            }
+        }
+        return options;
+    }
 }
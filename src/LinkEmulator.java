@@ -0,0 +1,242 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One direction of an emulated network link. Every datagram passed to
+ * {@link #transmit} may be lost, corrupted or duplicated, then waits behind
+ * earlier ones for the link's bandwidth, and is delivered after the
+ * propagation delay plus jitter. A share of packets can be held back so that
+ * later ones overtake them. A full queue drops the packet, as a router would.
+ *
+ * transmit is meant to be called from one thread; delivery happens on the
+ * link's own thread.
+ */
+public class LinkEmulator {
+    private LossModel lossModel = LossModel.none();
+    private long delayNanos;
+    private long jitterNanos;
+    private double reorderRate;
+    private long reorderDelayNanos = TimeUnit.MILLISECONDS.toNanos(10);
+    private double duplicateRate;
+    private double corruptRate;
+    private long bitsPerSecond;
+    private int queueLimit = 1024 * 1024;
+
+    private final Random random;
+    // ordered by absolute arrival time, so equal or close arrivals keep their order
+    private final DelayQueue<Delivery> deliveries = new DelayQueue<>();
+    private final Thread deliveryThread;
+    private long deliveryCount;
+
+    // when the last queued packet finishes going onto the wire
+    private long linkFreeAt;
+    // latest delivery so far, which jitter may not overtake
+    private long lastArrival;
+
+    private long packets;
+    private long lost;
+    private long queueDrops;
+    private long corrupted;
+    private long duplicated;
+    private long reordered;
+
+    public LinkEmulator(Random random) {
+        this.random = random;
+        this.deliveryThread = new Thread(() -> {
+            try {
+                while (true) {
+                    Delivery delivery = deliveries.take();
+                    try {
+                        delivery.socket.send(delivery.packet);
+                    } catch (IOException e) {
+                        // the proxy is closing
+                    }
+                }
+            } catch (InterruptedException e) {
+                // closed
+            }
+        }, "link-emulator");
+        deliveryThread.setDaemon(true);
+        deliveryThread.start();
+    }
+
+    public void setLossModel(LossModel lossModel) {
+        this.lossModel = lossModel;
+    }
+
+    public void setDelay(long delay, TimeUnit unit) {
+        this.delayNanos = unit.toNanos(delay);
+    }
+
+    /**
+     * Adds a uniformly random extra delay of up to {@code jitter}. Packets
+     * still leave in order, as from a router queue; see setReorder for that.
+     */
+    public void setJitter(long jitter, TimeUnit unit) {
+        this.jitterNanos = unit.toNanos(jitter);
+    }
+
+    public void setReorder(double reorderRate, long reorderDelay, TimeUnit unit) {
+        this.reorderRate = reorderRate;
+        this.reorderDelayNanos = unit.toNanos(reorderDelay);
+    }
+
+    public void setDuplicateRate(double duplicateRate) {
+        this.duplicateRate = duplicateRate;
+    }
+
+    public void setCorruptRate(double corruptRate) {
+        this.corruptRate = corruptRate;
+    }
+
+    /**
+     * @param bitsPerSecond link rate, 0 for unlimited
+     * @param queueLimit    bytes that may wait for the link before it drops
+     */
+    public void setBandwidth(long bitsPerSecond, int queueLimit) {
+        this.bitsPerSecond = bitsPerSecond;
+        this.queueLimit = queueLimit;
+    }
+
+    /**
+     * Sends {@code data[0, length)} to {@code destination} over {@code socket}
+     * as the link would. The data is copied, so the caller may reuse it.
+     */
+    public void transmit(DatagramSocket socket, byte[] data, int length, SocketAddress destination) throws IOException {
+        packets++;
+        if (lossModel.shouldDrop()) {
+            lost++;
+            return;
+        }
+
+        long now = System.nanoTime();
+        long departure = now;
+        if (bitsPerSecond > 0) {
+            long start = Math.max(now, linkFreeAt);
+            if ((start - now) / 8e9 * bitsPerSecond > queueLimit) {
+                queueDrops++;
+                return;
+            }
+            departure = start + (long) (length * 8e9 / bitsPerSecond);
+            linkFreeAt = departure;
+        }
+
+        byte[] copy = new byte[length];
+        System.arraycopy(data, 0, copy, 0, length);
+        if (random.nextDouble() < corruptRate) {
+            copy[random.nextInt(length)] ^= (byte) (1 << random.nextInt(8));
+            corrupted++;
+        }
+
+        long arrival = departure + delayNanos;
+        if (jitterNanos > 0) {
+            arrival = Math.max(lastArrival, arrival + (long) (random.nextDouble() * jitterNanos));
+        }
+        if (random.nextDouble() < reorderRate) {
+            arrival += reorderDelayNanos;
+            reordered++;
+        } else {
+            lastArrival = arrival;
+        }
+
+        DatagramPacket packet = new DatagramPacket(copy, length, destination);
+        deliveries.add(new Delivery(socket, packet, arrival, deliveryCount++));
+        if (random.nextDouble() < duplicateRate) {
+            deliveries.add(new Delivery(socket, packet, arrival, deliveryCount++));
+            duplicated++;
+        }
+    }
+
+    public void close() {
+        deliveryThread.interrupt();
+    }
+
+    public String describe() {
+        StringBuilder sb = new StringBuilder("loss " + lossModel);
+        if (delayNanos > 0 || jitterNanos > 0) {
+            sb.append(", delay ").append(TimeUnit.NANOSECONDS.toMillis(delayNanos)).append(" ms");
+            if (jitterNanos > 0) {
+                sb.append(" + up to ").append(TimeUnit.NANOSECONDS.toMillis(jitterNanos)).append(" ms jitter");
+            }
+        }
+        if (reorderRate > 0) {
+            sb.append(String.format(", reorder %.3f%%", reorderRate * 100));
+        }
+        if (duplicateRate > 0) {
+            sb.append(String.format(", duplicate %.3f%%", duplicateRate * 100));
+        }
+        if (corruptRate > 0) {
+            sb.append(String.format(", corrupt %.3f%%", corruptRate * 100));
+        }
+        if (bitsPerSecond > 0) {
+            sb.append(", ").append(bitsPerSecond / 1000).append(" kbit/s with a ").append(queueLimit).append(" byte queue");
+        }
+        return sb.toString();
+    }
+
+    public String summary() {
+        return packets + " packets, " + lost + " lost, " + queueDrops + " queue drops, " + corrupted + " corrupted, "
+                + duplicated + " duplicated, " + reordered + " reordered";
+    }
+
+    /**
+     * Builds a link from command line options. A plain option applies to both
+     * directions; {@code <prefix>name} overrides it for this one, e.g.
+     * {@code ack-loss=0} with prefix {@code ack-}.
+     */
+    public static LinkEmulator fromOptions(Map<String, String> options, String prefix, Random random) {
+        LinkEmulator link = new LinkEmulator(random);
+
+        double loss = option(options, prefix, "loss", 0);
+        if (options.containsKey(prefix + "ge-p") || options.containsKey("ge-p")) {
+            link.setLossModel(LossModel.gilbertElliott(option(options, prefix, "ge-p", 0), option(options, prefix, "ge-r", 0.5),
+                    loss, option(options, prefix, "ge-loss", 1), random));
+        } else {
+            link.setLossModel(LossModel.bernoulli(loss, random));
+        }
+
+        link.setDelay((long) option(options, prefix, "delay", 0), TimeUnit.MILLISECONDS);
+        link.setJitter((long) option(options, prefix, "jitter", 0), TimeUnit.MILLISECONDS);
+        link.setReorder(option(options, prefix, "reorder", 0), (long) option(options, prefix, "reorder-delay", 10), TimeUnit.MILLISECONDS);
+        link.setDuplicateRate(option(options, prefix, "duplicate", 0));
+        link.setCorruptRate(option(options, prefix, "corrupt", 0));
+        link.setBandwidth((long) (option(options, prefix, "rate", 0) * 1000), (int) option(options, prefix, "queue", 1024 * 1024));
+        return link;
+    }
+
+    private static class Delivery implements Delayed {
+        final DatagramSocket socket;
+        final DatagramPacket packet;
+        final long arrival;
+        final long order;
+
+        Delivery(DatagramSocket socket, DatagramPacket packet, long arrival, long order) {
+            this.socket = socket;
+            this.packet = packet;
+            this.arrival = arrival;
+            this.order = order;
+        }
+
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(arrival - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        public int compareTo(Delayed other) {
+            Delivery that = (Delivery) other;
+            int byArrival = Long.compare(arrival, that.arrival);
+            return byArrival != 0 ? byArrival : Long.compare(order, that.order);
+        }
+    }
+
+    private static double option(Map<String, String> options, String prefix, String name, double defaultValue) {
+        String value = options.getOrDefault(prefix + name, options.get(name));
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+}
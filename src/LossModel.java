@@ -0,0 +1,74 @@
+import java.util.Random;
+
+/**
+ * Decides which packets an emulated link loses. Bernoulli loses each packet
+ * independently; Gilbert-Elliott switches between a good and a bad state so
+ * that losses come in bursts, the way they do on real links.
+ *
+ * Not thread safe: give every link or receiver thread its own model.
+ */
+public abstract class LossModel {
+
+    public abstract boolean shouldDrop();
+
+    /**
+     * @return the long-run fraction of packets lost
+     */
+    public abstract double getMeanLossRate();
+
+    public static LossModel none() {
+        return bernoulli(0, new Random());
+    }
+
+    public static LossModel bernoulli(final double lossRate, final Random random) {
+        return new LossModel() {
+            public boolean shouldDrop() {
+                return lossRate > 0 && random.nextDouble() < lossRate;
+            }
+
+            public double getMeanLossRate() {
+                return lossRate;
+            }
+
+            public String toString() {
+                return String.format("bernoulli %.3f%%", lossRate * 100);
+            }
+        };
+    }
+
+    /**
+     * @param toBad    chance per packet of moving from the good to the bad state
+     * @param toGood   chance per packet of moving from the bad to the good state
+     * @param goodLoss loss rate in the good state
+     * @param badLoss  loss rate in the bad state
+     */
+    public static LossModel gilbertElliott(final double toBad, final double toGood,
+                                           final double goodLoss, final double badLoss, final Random random) {
+        return new LossModel() {
+            private boolean bad;
+
+            public boolean shouldDrop() {
+                bad = bad ? random.nextDouble() >= toGood : random.nextDouble() < toBad;
+                return random.nextDouble() < (bad ? badLoss : goodLoss);
+            }
+
+            public double getMeanLossRate() {
+                double badShare = toBad + toGood == 0 ? 0 : toBad / (toBad + toGood);
+                return (1 - badShare) * goodLoss + badShare * badLoss;
+            }
+
+            public String toString() {
+                return String.format("gilbert-elliott %.3f%% (bursts of %.1f packets)",
+                        getMeanLossRate() * 100, toGood == 0 ? Double.POSITIVE_INFINITY : 1 / toGood);
+            }
+        };
+    }
+
+    /**
+     * The receivers' reliability number: each packet is lost with chance
+     * 1/rn, and none are for rn < 1.
+     */
+    public static LossModel fromReliabilityNumber(int rn) {
+        return rn < 1 ? none() : bernoulli(1.0 / rn, new Random());
+    }
+}
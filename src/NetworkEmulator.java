@@ -0,0 +1,139 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Local UDP proxy that puts an emulated link between any sender and receiver
+ * in this repository. Point the sender's receiver port at the data port and
+ * the receiver's sender port at the ack port:
+ *
+ *   sender -> data port -> [data link] -> receiver
+ *   sender <- [ack link] <- ack port <- receiver
+ *
+ * Acks go back to wherever data last came from. Can also be started from
+ * within another program with {@link #start()} and {@link #close()}.
+ */
+public class NetworkEmulator {
+    private int dataPort;
+    private InetSocketAddress receiver;
+    private int ackPort;
+
+    private LinkEmulator dataLink;
+    private LinkEmulator ackLink;
+
+    private DatagramSocket senderSide;
+    private DatagramSocket receiverSide;
+    private volatile SocketAddress sender;
+
+    public NetworkEmulator(int dataPort, InetAddress receiverAddress, int receiverPort, int ackPort,
+                           LinkEmulator dataLink, LinkEmulator ackLink) {
+        this.dataPort = dataPort;
+        this.receiver = new InetSocketAddress(receiverAddress, receiverPort);
+        this.ackPort = ackPort;
+        this.dataLink = dataLink;
+        this.ackLink = ackLink;
+    }
+
+    public void start() throws IOException {
+        senderSide = new DatagramSocket(dataPort);
+        receiverSide = new DatagramSocket(ackPort);
+        senderSide.setReceiveBufferSize(GoBackNUtils.SOCKET_BUFFER_SIZE);
+        receiverSide.setReceiveBufferSize(GoBackNUtils.SOCKET_BUFFER_SIZE);
+
+        // data goes out of the ack socket, so servers that ack to the source reach the ack link too
+        startForwarding("data", senderSide, receiverSide, dataLink, true);
+        startForwarding("ack", receiverSide, senderSide, ackLink, false);
+    }
+
+    private void startForwarding(String name, final DatagramSocket in, final DatagramSocket out,
+                                 final LinkEmulator link, final boolean fromSender) {
+        Thread thread = new Thread(() -> {
+            byte[] buffer = new byte[GoBackNUtils.MAX_DATAGRAM_SIZE];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                while (true) {
+                    packet.setLength(buffer.length);
+                    in.receive(packet);
+
+                    SocketAddress destination;
+                    if (fromSender) {
+                        sender = packet.getSocketAddress();
+                        destination = receiver;
+                    } else {
+                        destination = sender;
+                        if (destination == null) {
+                            continue;
+                        }
+                    }
+                    link.transmit(out, buffer, packet.getLength(), destination);
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }, "network-emulator-" + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void close() {
+        senderSide.close();
+        receiverSide.close();
+        dataLink.close();
+        ackLink.close();
+    }
+
+    public static void main(String[] argv) throws Exception {
+        if (argv.length < 4) {
+            System.out.println("Usage:");
+            System.out.println("java NetworkEmulator <0> <1> <2> <3> [options]");
+            System.out.println("0: UDP port the sender sends data to, in place of the receiver's");
+            System.out.println("1: host address of the receiver");
+            System.out.println("2: UDP port number used by the receiver to receive data");
+            System.out.println("3: UDP port the receiver sends ACKs to, in place of the sender's");
+            System.out.println("options, for both directions or prefixed with data- or ack- for one:");
+            System.out.println("  loss=<p>           chance of losing each packet, or the good state's with ge-p");
+            System.out.println("  ge-p=<p>           Gilbert-Elliott bursts: chance per packet of entering the bad state");
+            System.out.println("  ge-r=<p>           chance per packet of leaving the bad state, default 0.5");
+            System.out.println("  ge-loss=<p>        loss rate in the bad state, default 1");
+            System.out.println("  delay=<ms>         one-way propagation delay");
+            System.out.println("  jitter=<ms>        uniformly random extra delay up to this, keeping packets in order");
+            System.out.println("  reorder=<p>        chance of holding a packet back so later ones overtake it");
+            System.out.println("  reorder-delay=<ms> how long reordered packets are held back, default 10");
+            System.out.println("  duplicate=<p>      chance of delivering a packet twice");
+            System.out.println("  corrupt=<p>        chance of flipping one bit of a packet");
+            System.out.println("  rate=<kbit/s>      link bandwidth, unlimited by default");
+            System.out.println("  queue=<bytes>      bytes waiting for the link before it drops, default 1048576");
+            System.out.println("  seed=<n>           seed for repeatable runs");
+            System.exit(1);
+        }
+
+        Map<String, String> options = GoBackNUtils.parseOptions(argv, 4);
+
+        int dataPort = Integer.parseInt(argv[0]);
+        int receiverPort = Integer.parseInt(argv[2]);
+        int ackPort = Integer.parseInt(argv[3]);
+
+        long seed = options.containsKey("seed") ? Long.parseLong(options.get("seed")) : System.nanoTime();
+        LinkEmulator dataLink = LinkEmulator.fromOptions(options, "data-", new Random(seed));
+        LinkEmulator ackLink = LinkEmulator.fromOptions(options, "ack-", new Random(seed + 1));
+
+        final NetworkEmulator emulator = new NetworkEmulator(dataPort, InetAddress.getByName(argv[1]), receiverPort, ackPort, dataLink, ackLink);
+        emulator.start();
+
+        System.out.println("Data Link: " + dataLink.describe());
+        System.out.println("Ack Link: " + ackLink.describe());
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            emulator.close();
+            System.out.println("Data Link: " + dataLink.summary());
+            System.out.println("Ack Link: " + ackLink.summary());
+        }));
+
+        Thread.currentThread().join();
+    }
+}
@@ -0,0 +1,342 @@
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+
+/**
+ * Wire formats understood by the GoBackN sender and receiver. Both ends must
+ * be started with the same format.
+ *
+ * LEGACY is the original 2-byte header: a 7-bit sequence number with the EOT
+ * flag in bit 7, followed by the 8-bit checksum.
+ *
+ * WIDE is a versioned 12-byte header that lifts the window and payload limits:
+ *
+ *   0      version (2)
+ *   1      flags
+ *   2..3   payload length
+ *   4..7   sequence number
+ *   8..11  checksum
+ *
+ * SESSION is WIDE with version 3 and a 32-bit session id in bytes 12..15, so
+ * one receiver port can serve many senders at once (see GoBackNServer).
+ *
+ * The checksum field of both holds the 8-bit additive checksum, or a CRC32C
+ * of the packet (checksum field excluded) when FLAG_CRC32C is set. Since the
+ * flag travels in the header, receivers verify whichever the sender chose.
+ *
+ * Data packets and acks each have all eight flag bits, so a bit can mean one
+ * thing from the sender and another from the receiver (FLAG_WINDOW, FLAG_NAK):
+ *
+ *   bit    sender to receiver      receiver to sender
+ *   0x01   FLAG_EOT                -
+ *   0x02   FLAG_CRC32C             FLAG_CRC32C
+ *   0x04   FLAG_DIGEST             FLAG_WINDOW
+ *   0x08   FLAG_STRIPE             -
+ *   0x10   -                       FLAG_SACK, or FLAG_NAK from a fan-out receiver
+ *   0x20   FLAG_CONTROL            FLAG_CONTROL
+ *   0x40   FLAG_DEFLATE            -
+ *   0x80   FLAG_PARITY             -
+ *
+ * FLAG_CONTROL packets are not part of the flow in either direction. The
+ * first payload byte is one of the CONTROL_ types, which says what the rest
+ * is; a type a peer does not know is ignored.
+ */
+public enum PacketFormat {
+    LEGACY(2, GoBackNUtils.MAX_PACKET_SIZE, 1L << 7, (byte) 0) {
+        @Override
+        public int encode(byte[] packet, long sequenceNumber, int flags, int length) {
+            byte header = (byte) (sequenceNumber & 0x7F);
+
+            if ((flags & FLAG_EOT) != 0) {
+                header |= (1 << GoBackNUtils.EOT_INDEX);
+            }
+
+            packet[0] = header;
+            packet[1] = 0;
+            packet[1] = GoBackNUtils.checksum(packet, 0, length + 2);
+            return length + 2;
+        }
+
+        @Override
+        public int encode(ByteBuffer packet, long sequenceNumber, int flags, int length) {
+            byte header = (byte) (sequenceNumber & 0x7F);
+
+            if ((flags & FLAG_EOT) != 0) {
+                header |= (1 << GoBackNUtils.EOT_INDEX);
+            }
+
+            packet.put(0, header);
+            packet.put(1, (byte) 0);
+            packet.put(1, GoBackNUtils.checksum(packet, 0, length + 2));
+            return length + 2;
+        }
+
+        @Override
+        public boolean isCorrupt(DatagramPacket packet) {
+            return GoBackNUtils.isPacketCorrupt(packet);
+        }
+
+        @Override
+        public boolean isCorrupt(ByteBuffer packet, int length) {
+            if (length < 2) {
+                return true;
+            }
+
+            byte checksum = packet.get(1);
+            packet.put(1, (byte) 0);
+            byte calculatedChecksum = GoBackNUtils.checksum(packet, 0, length);
+            packet.put(1, checksum);
+
+            return checksum != calculatedChecksum;
+        }
+
+        @Override
+        public long sequenceNumber(byte[] packet) {
+            return packet[0] & 0x7F;
+        }
+
+        @Override
+        public long sequenceNumber(ByteBuffer packet) {
+            return packet.get(0) & 0x7F;
+        }
+
+        @Override
+        public int flags(byte[] packet) {
+            return (packet[0] >> GoBackNUtils.EOT_INDEX & 1) == 1 ? FLAG_EOT : 0;
+        }
+
+        @Override
+        public int flags(ByteBuffer packet) {
+            return (packet.get(0) >> GoBackNUtils.EOT_INDEX & 1) == 1 ? FLAG_EOT : 0;
+        }
+    },
+
+    WIDE(12, GoBackNUtils.MAX_DATAGRAM_SIZE, 1L << 32, (byte) 2),
+
+    SESSION(16, GoBackNUtils.MAX_DATAGRAM_SIZE, 1L << 32, (byte) 3) {
+        @Override
+        public boolean hasSessionId() {
+            return true;
+        }
+
+        @Override
+        public int sessionId(byte[] packet) {
+            return GoBackNUtils.readInt(packet, 12);
+        }
+
+        @Override
+        public int sessionId(ByteBuffer packet) {
+            return packet.getInt(12);
+        }
+
+        @Override
+        public void writeSessionId(byte[] packet, int sessionId) {
+            GoBackNUtils.writeInt(packet, 12, sessionId);
+        }
+
+        @Override
+        public void writeSessionId(ByteBuffer packet, int sessionId) {
+            packet.putInt(12, sessionId);
+        }
+    };
+
+    public static final int FLAG_EOT = 0x01;
+    // not LEGACY: the checksum field is a CRC32C
+    public static final int FLAG_CRC32C = 0x02;
+    // not LEGACY: the payload is a SHA-256 digest of the whole file, not file data
+    public static final int FLAG_DIGEST = 0x04;
+    // not LEGACY: the payload is the 8-byte file offset the rest of this flow's data starts at
+    public static final int FLAG_STRIPE = 0x08;
+    // not LEGACY: an ack whose payload lists ranges received past the acked packet, see GoBackNUtils.SACK_BLOCK_SIZE
+    public static final int FLAG_SACK = 0x10;
+    // not LEGACY: from a fan-out receiver, sharing FLAG_SACK's bit, the ranges after the receiver id are
+    // missing rather than held, see GoBackNFanOutSender
+    public static final int FLAG_NAK = 0x10;
+    // not LEGACY: on acks, sharing FLAG_DIGEST's bit, the payload starts with the receiver's free
+    // buffer space in packets past the acked one, see GoBackNUtils.ADVERTISED_WINDOW_SIZE
+    public static final int FLAG_WINDOW = 0x04;
+    // not LEGACY: a control message outside the flow, typed by its first payload byte
+    public static final int FLAG_CONTROL = 0x20;
+    // not LEGACY: the payload is the next slice of one zlib stream of the file, see GoBackNSender.setCompression
+    public static final int FLAG_DEFLATE = 0x40;
+    // not LEGACY: outside the sequence space, the XOR of the group of packets starting at
+    // the sequence number, see GoBackNUtils.FEC_HEADER_SIZE
+    public static final int FLAG_PARITY = 0x80;
+
+    // asks where to resume, no body
+    public static final int CONTROL_RESUME_REQUEST = 1;
+    // the receiver's checkpoint, see GoBackNUtils.RESUME_INFO_SIZE; also the answer of a receiver that is not syncing
+    public static final int CONTROL_RESUME_INFO = 2;
+    // asks for chunk hashes: the index of the first (4 bytes) and how many at most (4 bytes)
+    public static final int CONTROL_SYNC_REQUEST = 3;
+    // chunk hashes, see ChunkManifest.writePiece
+    public static final int CONTROL_SYNC_PIECE = 4;
+    // in place of the final ack, the receiver failed the transfer: a UTF-8 reason, e.g. a digest mismatch
+    public static final int CONTROL_REJECTED = 5;
+
+    private final int headerSize;
+    private final int maxPacketSize;
+    private final long sequenceSpace;
+    private final byte version;
+
+    PacketFormat(int headerSize, int maxPacketSize, long sequenceSpace, byte version) {
+        this.headerSize = headerSize;
+        this.maxPacketSize = maxPacketSize;
+        this.sequenceSpace = sequenceSpace;
+        this.version = version;
+    }
+
+    /**
+     * Writes the header in front of a payload that is already in place at
+     * {@code packet[getHeaderSize()]}, without copying or allocating.
+     *
+     * @return the length of the whole packet
+     */
+    public int encode(byte[] packet, long sequenceNumber, int flags, int length) {
+        packet[0] = version;
+        packet[1] = (byte) flags;
+        GoBackNUtils.writeShort(packet, 2, length);
+        GoBackNUtils.writeInt(packet, 4, (int) sequenceNumber);
+
+        GoBackNUtils.writeInt(packet, 8, versionedChecksum(packet, length + headerSize));
+        return length + headerSize;
+    }
+
+    /**
+     * Same as {@link #encode(byte[], long, int, int)}, for packets held in a
+     * (typically direct) buffer. Uses absolute indices from 0.
+     */
+    public int encode(ByteBuffer packet, long sequenceNumber, int flags, int length) {
+        packet.put(0, version);
+        packet.put(1, (byte) flags);
+        packet.putShort(2, (short) length);
+        packet.putInt(4, (int) sequenceNumber);
+
+        packet.putInt(8, versionedChecksum(packet, length + headerSize));
+        return length + headerSize;
+    }
+
+    public boolean isCorrupt(DatagramPacket packet) {
+        byte[] data = packet.getData();
+        int length = packet.getLength();
+
+        if (length < headerSize || data[0] != version) {
+            return true;
+        }
+        if (GoBackNUtils.readShort(data, 2) != length - headerSize) {
+            return true;
+        }
+        return GoBackNUtils.readInt(data, 8) != versionedChecksum(data, length);
+    }
+
+    public boolean isCorrupt(ByteBuffer packet, int length) {
+        if (length < headerSize || packet.get(0) != version) {
+            return true;
+        }
+        if ((packet.getShort(2) & 0xFFFF) != length - headerSize) {
+            return true;
+        }
+        return packet.getInt(8) != versionedChecksum(packet, length);
+    }
+
+    /**
+     * @return the sequence number as sent, in [0, getSequenceSpace())
+     */
+    public long sequenceNumber(byte[] packet) {
+        return GoBackNUtils.readInt(packet, 4) & 0xFFFFFFFFL;
+    }
+
+    public long sequenceNumber(ByteBuffer packet) {
+        return packet.getInt(4) & 0xFFFFFFFFL;
+    }
+
+    public int flags(byte[] packet) {
+        return packet[1] & 0xFF;
+    }
+
+    public int flags(ByteBuffer packet) {
+        return packet.get(1) & 0xFF;
+    }
+
+    public boolean hasSessionId() {
+        return false;
+    }
+
+    /**
+     * @return the session the packet belongs to, 0 for formats without one
+     */
+    public int sessionId(byte[] packet) {
+        return 0;
+    }
+
+    public int sessionId(ByteBuffer packet) {
+        return 0;
+    }
+
+    /**
+     * Stamps the session id; call before encoding, the checksum covers it.
+     */
+    public void writeSessionId(byte[] packet, int sessionId) {
+        throw new UnsupportedOperationException(this + " packets have no session id");
+    }
+
+    public void writeSessionId(ByteBuffer packet, int sessionId) {
+        throw new UnsupportedOperationException(this + " packets have no session id");
+    }
+
+    public int getHeaderSize() {
+        return headerSize;
+    }
+
+    public int getMaxPacketSize() {
+        return maxPacketSize;
+    }
+
+    public int getMaxPayloadSize() {
+        return maxPacketSize - headerSize;
+    }
+
+    public long getSequenceSpace() {
+        return sequenceSpace;
+    }
+
+    /**
+     * Maps a sequence number from the wire onto the closest absolute packet
+     * index at or after {@code base}.
+     */
+    public long unwrap(long wireSequenceNumber, long base) {
+        return base + Math.floorMod(wireSequenceNumber - base, sequenceSpace);
+    }
+
+    public static PacketFormat fromName(String name) {
+        return valueOf(name.toUpperCase());
+    }
+
+    private static int versionedChecksum(byte[] data, int length) {
+        if ((data[1] & FLAG_CRC32C) != 0) {
+            return GoBackNUtils.crc32c(data, length, 8);
+        }
+
+        // the checksum field itself counts as zero
+        int headerChecksum = GoBackNUtils.readInt(data, 8);
+        GoBackNUtils.writeInt(data, 8, 0);
+
+        byte calculatedChecksum = GoBackNUtils.checksum(data, 0, length);
+        GoBackNUtils.writeInt(data, 8, headerChecksum);
+
+        return calculatedChecksum & 0xFF;
+    }
+
+    private static int versionedChecksum(ByteBuffer packet, int length) {
+        if ((packet.get(1) & FLAG_CRC32C) != 0) {
+            return GoBackNUtils.crc32c(packet, length, 8);
+        }
+
+        int headerChecksum = packet.getInt(8);
+        packet.putInt(8, 0);
+
+        byte calculatedChecksum = GoBackNUtils.checksum(packet, 0, length);
+        packet.putInt(8, headerChecksum);
+
+        return calculatedChecksum & 0xFF;
+    }
+}
@@ -0,0 +1,36 @@
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+
+/**
+ * Fixed ring of reusable datagrams, one slot per packet the window can hold.
+ * Slots are indexed by sequence number, so a packet's buffer is reused once
+ * the window has slid past it and nothing is allocated after construction.
+ */
+public class PacketPool {
+    private final DatagramPacket[] packets;
+    private int allocations;
+
+    public PacketPool(int capacity, int packetSize, InetAddress address, int port) {
+        packets = new DatagramPacket[capacity];
+        for (int i = 0; i < capacity; i++) {
+            packets[i] = new DatagramPacket(new byte[packetSize], packetSize, address, port);
+            allocations++;
+        }
+    }
+
+    public DatagramPacket get(long sequenceNumber) {
+        return packets[(int) (sequenceNumber % packets.length)];
+    }
+
+    public int getCapacity() {
+        return packets.length;
+    }
+
+    /**
+     * @return the number of packet buffers ever allocated, which stays at the
+     * capacity however much data goes through the pool
+     */
+    public int getAllocations() {
+        return allocations;
+    }
+}
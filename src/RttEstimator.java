@@ -0,0 +1,84 @@
+/**
+ * Retransmission timeout estimator following RFC 6298.
+ *
+ * Samples are fed in from ack timing. Callers apply Karn's rule by never
+ * sampling a packet that has been retransmitted; timeouts double the RTO
+ * until the next valid sample arrives, or until an ack for retransmitted
+ * data shows the path is alive again.
+ */
+public class RttEstimator {
+    public static final long INITIAL_RTO_NANOS = 100 * 1000000L;
+    public static final long MIN_RTO_NANOS = 1000000L;
+    public static final long MAX_RTO_NANOS = 60 * 1000000000L;
+
+    // RFC 6298 gains: alpha = 1/8, beta = 1/4, K = 4
+    private static final double ALPHA = 0.125;
+    private static final double BETA = 0.25;
+    private static final int K = 4;
+
+    private double smoothedRtt;
+    private double rttVariance;
+    private boolean hasSample;
+    private long rto;
+    // the RTO without backoff
+    private long baseRto;
+
+    public RttEstimator() {
+        this(INITIAL_RTO_NANOS);
+    }
+
+    public RttEstimator(long initialRtoNanos) {
+        this.rto = clamp(initialRtoNanos);
+        this.baseRto = rto;
+    }
+
+    public synchronized void addSample(long rttNanos) {
+        if (rttNanos < 0) {
+            return;
+        }
+
+        if (!hasSample) {
+            smoothedRtt = rttNanos;
+            rttVariance = rttNanos / 2.0;
+            hasSample = true;
+        } else {
+            rttVariance = (1 - BETA) * rttVariance + BETA * Math.abs(smoothedRtt - rttNanos);
+            smoothedRtt = (1 - ALPHA) * smoothedRtt + ALPHA * rttNanos;
+        }
+
+        // a fresh sample also clears any exponential backoff
+        baseRto = clamp((long) (smoothedRtt + Math.max(MIN_RTO_NANOS, K * rttVariance)));
+        rto = baseRto;
+    }
+
+    /**
+     * Drops the backoff on an ack of new data that cannot be sampled. Without
+     * this, a lossy path where every window holds a retransmission never
+     * yields a valid sample and the RTO climbs to the maximum, as Linux
+     * avoids by resetting its backoff on any forward progress.
+     */
+    public synchronized void clearBackoff() {
+        rto = baseRto;
+    }
+
+    public synchronized void onTimeout() {
+        rto = clamp(rto * 2);
+    }
+
+    public synchronized long getTimeoutNanos() {
+        return rto;
+    }
+
+    public synchronized long getTimeoutMillis() {
+        // round up so a sub-millisecond RTO is not reported as 0
+        return (rto + 999999) / 1000000;
+    }
+
+    public synchronized long getSmoothedRttNanos() {
+        return (long) smoothedRtt;
+    }
+
+    private static long clamp(long rto) {
+        return Math.max(MIN_RTO_NANOS, Math.min(MAX_RTO_NANOS, rto));
+    }
+}
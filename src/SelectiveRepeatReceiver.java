@@ -0,0 +1,159 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Selective Repeat receiver. Acks every packet individually and writes each
+ * body straight to its offset in the file as it arrives, so out-of-order
+ * packets within the window need no buffering; only the window bitmap is kept.
+ */
+public class SelectiveRepeatReceiver {
+    private InetAddress senderAddress;
+    private int senderPort;
+    private int receiverPort;
+
+    private static final int MAX_SEQUENCE_NUMBER = 128;
+    private static final int WINDOW_SIZE = SelectiveRepeatSender.MAX_WINDOW_SIZE;
+
+    private DatagramSocket socket;
+
+    public SelectiveRepeatReceiver(InetAddress senderAddress, int senderPort, int receiverPort) {
+        this.senderAddress = senderAddress;
+        this.senderPort = senderPort;
+        this.receiverPort = receiverPort;
+    }
+
+    public void receiveFile(String fileName, int reliabilityNumber) throws IOException {
+        FileChannel fileChannel = FileChannel.open(Paths.get(fileName),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        int receiveBase = 0;
+        // absolute index of the packet at receiveBase, which positions bodies in the file
+        long receiveBaseIndex = 0;
+        long endOfFileIndex = -1;
+        boolean endOfFile = false;
+        byte[] rcvBuffer = new byte[GoBackNUtils.MAX_PACKET_SIZE];
+        DatagramPacket receivePacket = new DatagramPacket(rcvBuffer, rcvBuffer.length);
+
+        boolean[] received = new boolean[MAX_SEQUENCE_NUMBER];
+
+        LossModel lossModel = LossModel.fromReliabilityNumber(reliabilityNumber);
+        socket = new DatagramSocket(receiverPort);
+
+        while (!endOfFile) {
+            // receive packet
+            receivePacket.setLength(rcvBuffer.length);
+            socket.receive(receivePacket);
+
+            if (GoBackNUtils.isPacketCorrupt(receivePacket)) {
+                continue;
+            }
+
+            byte header = rcvBuffer[0];
+
+            boolean endOfFileBit = (header >> GoBackNUtils.EOT_INDEX & 1) == 1;
+
+            header &= ~(1 << GoBackNUtils.EOT_INDEX);
+            int seqNum = header & 0xFF;
+
+            if (lossModel.shouldDrop()) {
+                // System.out.println("Dropping packet: reliability number.");
+                continue;
+            }
+
+            int offset = (seqNum - receiveBase + MAX_SEQUENCE_NUMBER) % MAX_SEQUENCE_NUMBER;
+
+            if (offset < WINDOW_SIZE) {
+                // write the body at its place in the file, unless it is a duplicate
+                if (!received[seqNum]) {
+                    long index = receiveBaseIndex + offset;
+                    ByteBuffer body = ByteBuffer.wrap(rcvBuffer, 2, receivePacket.getLength() - 2);
+                    long position = index * SelectiveRepeatSender.PACKET_DATA_SIZE;
+                    while (body.hasRemaining()) {
+                        position += fileChannel.write(body, position);
+                    }
+
+                    received[seqNum] = true;
+                    if (endOfFileBit) {
+                        endOfFileIndex = index;
+                    }
+                }
+
+                // slide past everything that is now contiguous
+                while (received[receiveBase]) {
+                    endOfFile = receiveBaseIndex == endOfFileIndex;
+
+                    received[receiveBase] = false;
+                    receiveBase = (receiveBase + 1) % MAX_SEQUENCE_NUMBER;
+                    receiveBaseIndex++;
+                }
+
+                // flag the ack with EOT once the whole file has been delivered
+                socket.send(makePacket(seqNum, endOfFile));
+
+            } else {
+                // already delivered: the previous ack was lost, so ack it again
+                socket.send(makePacket(seqNum, false));
+            }
+        }
+
+        fileChannel.close();
+
+        // the final ack may be lost: ack retransmissions until the sender goes quiet
+        socket.setSoTimeout(GoBackNUtils.LINGER_MILLIS);
+        try {
+            while (true) {
+                receivePacket.setLength(rcvBuffer.length);
+                socket.receive(receivePacket);
+                if (!GoBackNUtils.isPacketCorrupt(receivePacket)) {
+                    socket.send(makePacket(rcvBuffer[0] & 0x7F, true));
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // the sender has finished
+        }
+        socket.close();
+        System.out.println("File transfer completed");
+    }
+
+    private DatagramPacket makePacket(int packetNumber, boolean endOfFile) {
+        byte header = (byte) packetNumber;
+
+        if (endOfFile) {
+            header |= (1 << GoBackNUtils.EOT_INDEX);
+        }
+
+        byte[] data = { header, 0 };
+        byte checksum = GoBackNUtils.checksum(data);
+        data[1] = checksum;
+        return new DatagramPacket(data, data.length, senderAddress, senderPort);
+    }
+
+    public static void main(String[] argv) throws Exception {
+        if (argv.length != 5) {
+            System.out.println("Usage:");
+            System.out.println("java SelectiveRepeatReceiver <0> <1> <2> <3> <4>");
+            System.out.println("0: host address of the sender");
+            System.out.println("1: UDP port number used by the sender to receive data from the receiver");
+            System.out.println("2: UDP port number used by the receiver to receive ACKs from the sender");
+            System.out.println("3: Reliability number");
+            System.out.println("4: Name of the file to write received data");
+            System.exit(1);
+        }
+
+        int senderPort = Integer.parseInt(argv[1]);
+        int recPort = Integer.parseInt(argv[2]);
+        int rn = Integer.parseInt(argv[3]);
+
+        SelectiveRepeatReceiver srReceiver = new SelectiveRepeatReceiver(InetAddress.getByName(argv[0]), senderPort, recPort);
+
+        srReceiver.receiveFile(argv[4], rn);
+        System.exit(0);
+    }
+}
@@ -0,0 +1,257 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Selective Repeat sender. Uses the GoBackN packet format, but every packet in
+ * the window has its own retransmission timer and is acked individually, so a
+ * single loss costs a single retransmission.
+ */
+public class SelectiveRepeatSender {
+    public static final int PACKET_DATA_SIZE = 124;
+    private static final int MAX_SEQUENCE_NUMBER = 128;
+    public static final int MAX_WINDOW_SIZE = MAX_SEQUENCE_NUMBER / 2;
+    private static final int MAX_BACKOFF_SHIFT = 16;
+
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private final ScheduledFuture<?>[] timerTasks = new ScheduledFuture<?>[MAX_SEQUENCE_NUMBER];
+    private final int[] timerGenerations = new int[MAX_SEQUENCE_NUMBER];
+
+    private final RttEstimator rttEstimator = new RttEstimator();
+    private final long[] sendTimes = new long[MAX_SEQUENCE_NUMBER];
+    private final int[] retransmissions = new int[MAX_SEQUENCE_NUMBER];
+
+    private InetAddress receiverAddress;
+    private int receiverPort;
+    private int senderPort;
+    private int windowSize;
+    private int sendBase;
+    private int nextSequenceNumber;
+
+    private final DatagramPacket[] windowPackets = new DatagramPacket[MAX_SEQUENCE_NUMBER];
+    private final boolean[] acked = new boolean[MAX_SEQUENCE_NUMBER];
+
+    private DatagramSocket socket;
+
+    public SelectiveRepeatSender(InetAddress receiverAddress, int receiverPort, int senderPort, int windowSize) {
+        this.receiverAddress = receiverAddress;
+        this.receiverPort = receiverPort;
+        this.senderPort = senderPort;
+        this.windowSize = windowSize;
+    }
+
+    public void sendFile(String fileName) throws IOException {
+        File f = new File(fileName);
+        long fileSize = f.length();
+
+        FileInputStream fis = new FileInputStream(fileName);
+
+        byte[] rcvBuffer = new byte[GoBackNUtils.MAX_PACKET_SIZE];
+        byte[] fileBuffer = new byte[PACKET_DATA_SIZE];
+
+        int bytesRead;
+        int outstanding = 0;
+        boolean endOfFile = false;
+        boolean transferComplete = false;
+
+        long startTime = System.nanoTime();
+
+        nextSequenceNumber = 0;
+        sendBase = 0;
+        socket = new DatagramSocket(senderPort);
+
+        while (!transferComplete) {
+            while (outstanding < windowSize && !endOfFile) {
+                // read bytes
+                bytesRead = fis.read(fileBuffer);
+
+                // check for EOF
+                if (bytesRead == -1 || bytesRead < fileBuffer.length) {
+                    bytesRead = Math.max(0, bytesRead);
+                    endOfFile = true;
+                }
+
+                // make packet
+                DatagramPacket packet = makePacket(nextSequenceNumber, fileBuffer, bytesRead, endOfFile);
+                synchronized (windowPackets) {
+                    windowPackets[nextSequenceNumber] = packet;
+                    acked[nextSequenceNumber] = false;
+                    sendTimes[nextSequenceNumber] = System.nanoTime();
+                    retransmissions[nextSequenceNumber] = 0;
+                }
+
+                // send packet and start its timer
+                socket.send(packet);
+                startTimer(nextSequenceNumber);
+
+                nextSequenceNumber = (nextSequenceNumber + 1) % MAX_SEQUENCE_NUMBER;
+                outstanding++;
+            }
+
+            // wait for ACK
+            DatagramPacket receivePacket = new DatagramPacket(rcvBuffer, rcvBuffer.length);
+            socket.receive(receivePacket);
+
+            // validate ack
+            if (GoBackNUtils.isPacketCorrupt(receivePacket)) {
+                continue;
+            }
+
+            byte header = receivePacket.getData()[0];
+            boolean endOfFileBit = (header >> GoBackNUtils.EOT_INDEX & 1) == 1;
+            header &= ~(1 << GoBackNUtils.EOT_INDEX);
+            int ackNum = header & 0xFF;
+
+            if (!isInWindow(ackNum, outstanding)) {
+                continue;
+            }
+
+            cancelTimer(ackNum);
+
+            synchronized (windowPackets) {
+                // Karn's rule: only time packets that were sent exactly once
+                if (!acked[ackNum] && retransmissions[ackNum] == 0) {
+                    rttEstimator.addSample(System.nanoTime() - sendTimes[ackNum]);
+                }
+                acked[ackNum] = true;
+
+                // slide window past every acked packet
+                while (outstanding > 0 && acked[sendBase]) {
+                    windowPackets[sendBase] = null;
+                    acked[sendBase] = false;
+                    sendBase = (sendBase + 1) % MAX_SEQUENCE_NUMBER;
+                    outstanding--;
+                }
+            }
+
+            // the receiver sets EOT on the ack once it has delivered the whole file
+            transferComplete = endOfFileBit || (endOfFile && outstanding == 0);
+        }
+
+        for (int i = 0; i < MAX_SEQUENCE_NUMBER; i++) {
+            cancelTimer(i);
+        }
+        timer.shutdownNow();
+
+        fis.close();
+        socket.close();
+
+        long endTime = System.nanoTime();
+        long duration = (endTime - startTime);
+
+        System.out.println();
+        System.out.println("~~File Transfer Completed~~");
+        System.out.println("File Name: " + fileName);
+        System.out.println("File Size: " + fileSize + " bytes");
+        System.out.println("Transfer Time: " + Long.toString(duration) + " nanoseconds");
+        System.out.println("Timeout Length: " + rttEstimator.getTimeoutMillis() + " milliseconds");
+        System.out.println();
+        System.out.println(rttEstimator.getTimeoutMillis() + "," + fileSize + "," + windowSize + "," + Long.toString(duration));
+    }
+
+    private boolean isInWindow(int value, int outstanding) {
+        int offset = (value - sendBase + MAX_SEQUENCE_NUMBER) % MAX_SEQUENCE_NUMBER;
+        return offset < outstanding;
+    }
+
+    private DatagramPacket makePacket(int packetNumber, byte[] buffer, int numberOfBytes, boolean endOfFile) {
+        byte header = (byte) packetNumber;
+
+        if (endOfFile) {
+            header |= (1 << GoBackNUtils.EOT_INDEX);
+        }
+
+        byte[] data = new byte[numberOfBytes+2];
+        data[0] = header;
+        data[1] = 0;
+        System.arraycopy(buffer, 0, data, 2, numberOfBytes);
+
+        byte checksum = GoBackNUtils.checksum(data);
+        data[1] = checksum;
+
+        return new DatagramPacket(data, data.length, receiverAddress, receiverPort);
+    }
+
+    private void cancelTimer(int sequenceNumber) {
+        synchronized (timer) {
+            timerGenerations[sequenceNumber]++;
+            ScheduledFuture<?> timerTask = timerTasks[sequenceNumber];
+            if (timerTask != null) {
+                timerTask.cancel(false);
+                timerTasks[sequenceNumber] = null;
+            }
+        }
+    }
+
+    private void startTimer(final int sequenceNumber) {
+        synchronized (timer) {
+            final int generation = ++timerGenerations[sequenceNumber];
+            final Runnable runnable = new Runnable() {
+                public void run() {
+                    int backoff;
+
+                    // send while holding the lock so the window cannot slide past this
+                    // sequence number and reuse it before the stale copy is on the wire
+                    synchronized (windowPackets) {
+                        if (acked[sequenceNumber] || windowPackets[sequenceNumber] == null) {
+                            return;
+                        }
+                        backoff = Math.min(++retransmissions[sequenceNumber], MAX_BACKOFF_SHIFT);
+
+                        try {
+                            // resend only this packet
+                            socket.send(windowPackets[sequenceNumber]);
+                        } catch (IOException e) {
+                            // handle error
+                            System.err.println(e.getMessage());
+                        }
+                    }
+
+                    // each packet backs off on its own, so one loss does not slow the rest of the window
+                    synchronized (timer) {
+                        if (generation == timerGenerations[sequenceNumber]) {
+                            long delay = Math.min(rttEstimator.getTimeoutNanos() << backoff, RttEstimator.MAX_RTO_NANOS);
+                            timerTasks[sequenceNumber] = timer.schedule(this, delay, TimeUnit.NANOSECONDS);
+                        }
+                    }
+                }
+            };
+
+            timerTasks[sequenceNumber] = timer.schedule(runnable, rttEstimator.getTimeoutNanos(), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    public static void main(String[] argv) throws Exception {
+        if (argv.length != 5) {
+            System.out.println("Usage:");
+            System.out.println("java SelectiveRepeatSender <0> <1> <2> <3> <4>");
+            System.out.println("0: host address of the receiver");
+            System.out.println("1: UDP port number used by the receiver to receive data from the sender");
+            System.out.println("2: UDP port number used by the sender to receive ACKs from the receiver");
+            System.out.println("3: Name of the file to be transferred");
+            System.out.println("4: Window size <= " + MAX_WINDOW_SIZE);
+            System.exit(1);
+        }
+
+        int recPort = Integer.parseInt(argv[1]);
+        int senderPort = Integer.parseInt(argv[2]);
+        int windowSize = Integer.parseInt(argv[4]);
+
+        if (windowSize < 1 || windowSize > MAX_WINDOW_SIZE) {
+            System.out.println("Window size must be between 1 and " + MAX_WINDOW_SIZE);
+            System.exit(1);
+        }
+
+        SelectiveRepeatSender srSender = new SelectiveRepeatSender(InetAddress.getByName(argv[0]), recPort, senderPort, windowSize);
+
+        srSender.sendFile(argv[3]);
+        System.exit(0);
+    }
+}
@@ -3,7 +3,9 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.SocketTimeoutException;
 import java.util.Arrays;
+import java.util.Map;
 
 /**
  * Created by jmuia on 2016-03-08.
@@ -14,11 +16,17 @@ public class StopAndWaitReceiver {
     private int receiverPort;
 
     private DatagramSocket socket;
+    private final TransferMetrics metrics;
 
     public StopAndWaitReceiver(InetAddress senderAddress, int senderPort, int receiverPort) {
         this.senderAddress = senderAddress;
         this.senderPort = senderPort;
         this.receiverPort = receiverPort;
+        this.metrics = new TransferMetrics("StopAndWaitReceiver-" + receiverPort);
+    }
+
+    public TransferMetrics getMetrics() {
+        return metrics;
     }
 
     public void receiveFile(String fileName, int reliabilityNumber) throws IOException {
@@ -28,49 +36,72 @@ public class StopAndWaitReceiver {
         boolean endOfFile = false;
         byte[] rcvBuffer = new byte[StopAndWaitUtils.MAX_PACKET_SIZE];
 
+        LossModel lossModel = LossModel.fromReliabilityNumber(reliabilityNumber);
         socket = new DatagramSocket(receiverPort);
+        metrics.start();
 
         while (!endOfFile) {
             // receive packet
             DatagramPacket receivePacket = new DatagramPacket(rcvBuffer, rcvBuffer.length);
             socket.receive(receivePacket);
+            metrics.packetReceived();
 
             if (StopAndWaitUtils.isPacketCorrupt(receivePacket)) {
+                metrics.checksumFailure();
                 continue;
             }
 
             byte[] data = Arrays.copyOfRange(receivePacket.getData(), 0, receivePacket.getLength());
             byte header = data[0];
 
-            endOfFile = (header >> StopAndWaitUtils.EOT_INDEX & 1) == 1;
+            boolean endOfFileBit = (header >> StopAndWaitUtils.EOT_INDEX & 1) == 1;
 
             header &= ~(1 << StopAndWaitUtils.EOT_INDEX);
             int seqNum = (int) header;
 
             byte[] body = Arrays.copyOfRange(data, 2, data.length);
 
-            if (shouldDropPacket(reliabilityNumber)) {
+            if (lossModel.shouldDrop()) {
                 // System.out.println("Dropping packet: reliability number.");
+                metrics.packetDropped();
 
             } else {
                 if (lastSeqNum == -1 || seqNum != lastSeqNum) {
                     fos.write(body);
+                    metrics.packetDelivered(body.length);
+                } else {
+                    // a retransmission after a lost ack
+                    metrics.packetOutOfOrder();
                 }
                 // make and send ACK
                 socket.send(makePacket(seqNum));
+                metrics.packetSent();
                 lastSeqNum = seqNum;
+                // only once the last packet has really arrived
+                endOfFile = endOfFileBit;
             }
         }
 
         fos.close();
+
+        // the final ack may be lost: ack retransmissions until the sender goes quiet
+        socket.setSoTimeout(GoBackNUtils.LINGER_MILLIS);
+        try {
+            while (true) {
+                DatagramPacket receivePacket = new DatagramPacket(rcvBuffer, rcvBuffer.length);
+                socket.receive(receivePacket);
+                if (!StopAndWaitUtils.isPacketCorrupt(receivePacket)) {
+                    socket.send(makePacket(rcvBuffer[0] & ~(1 << StopAndWaitUtils.EOT_INDEX)));
+                    metrics.packetSent();
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            // the sender has finished
+        }
         socket.close();
         System.out.println("File transfer completed");
-    }
-
-    private boolean shouldDropPacket(int rn) {
-        if (rn < 1) { return false; }
-        double random = Math.random();
-        return random <= (1 / rn);
+        System.out.println("Packets Received: " + metrics.getPacketsReceived() + " (" + metrics.getPacketsDropped() + " dropped, "
+                + metrics.getPacketsOutOfOrder() + " duplicate, " + metrics.getChecksumFailures() + " corrupt)");
     }
 
     private DatagramPacket makePacket(int packetNumber) {
@@ -81,24 +112,32 @@ public class StopAndWaitReceiver {
     }
 
     public static void main(String[] argv) throws Exception {
-        if (argv.length != 5) {
+        if (argv.length < 5) {
             System.out.println("Usage:");
-            System.out.println("java StopAndWaitReceiver <0> <1> <2> <3> <4>");
+            System.out.println("java StopAndWaitReceiver <0> <1> <2> <3> <4> [options]");
             System.out.println("0: host address of the sender");
             System.out.println("1: UDP port number used by the sender to receive data from the receiver");
             System.out.println("2: UDP port number used by the receiver to receive ACKs from the sender");
             System.out.println("3: Reliability number");
             System.out.println("4: Name of the file to write received data");
+            System.out.println("options:");
+            System.out.println("  metrics=<file>     write live transfer metrics as JSON lines, - for stderr");
+            System.out.println("  metrics-every=<ms> how often to write metrics, default 1000");
             System.exit(1);
         }
 
+        Map<String, String> options = GoBackNUtils.parseOptions(argv, 5);
+
         int senderPort = Integer.parseInt(argv[1]);
         int recPort = Integer.parseInt(argv[2]);
         int rn = Integer.parseInt(argv[3]);
 
         StopAndWaitReceiver swReceiver = new StopAndWaitReceiver(InetAddress.getByName(argv[0]), senderPort, recPort);
 
+        swReceiver.getMetrics().configure(options);
+
         swReceiver.receiveFile(argv[4], rn);
+        swReceiver.getMetrics().close();
         System.exit(0);
     }
 }
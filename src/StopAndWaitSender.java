@@ -4,18 +4,22 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by jmuia on 2016-03-07.
  */
 public class StopAndWaitSender {
-    private static final long TIMEOUT = 100;
     private static final int PACKET_DATA_SIZE = 124;
 
-    private Timer timer = new Timer();
-    private TimerTask timerTask;
+    private final RttEstimator rttEstimator = new RttEstimator();
+    private final TransferMetrics metrics;
+    private long lastSendTime;
+    private boolean lastRetransmitted;
+    // the retransmission timer, checked while waiting for the ack
+    private long retransmitDeadline;
 
     private InetAddress receiverAddress;
     private int receiverPort;
@@ -28,6 +32,11 @@ public class StopAndWaitSender {
         this.receiverAddress = receiverAddress;
         this.receiverPort = receiverPort;
         this.senderPort = senderPort;
+        this.metrics = new TransferMetrics("StopAndWaitSender-" + senderPort);
+    }
+
+    public TransferMetrics getMetrics() {
+        return metrics;
     }
 
     public void sendFile(String fileName) throws IOException {
@@ -46,6 +55,7 @@ public class StopAndWaitSender {
         long startTime = System.nanoTime();
 
         socket = new DatagramSocket(senderPort);
+        metrics.start();
 
         while (!endOfFile) {
             // read bytes
@@ -61,19 +71,36 @@ public class StopAndWaitSender {
             lastPacket = makePacket(seqNum, fileBuffer, bytesRead, endOfFile);
 
             // send packet
+            lastSendTime = System.nanoTime();
+            lastRetransmitted = false;
             socket.send(lastPacket);
+            metrics.packetSent();
+            metrics.windowOccupancy(1);
 
             // start timer
-            startTimer();
+            retransmitDeadline = lastSendTime + rttEstimator.getTimeoutNanos();
 
             // wait for ACK
             boolean gotAck = false;
             do {
+                long waitNanos = retransmitDeadline - System.nanoTime();
+                if (waitNanos <= 0) {
+                    onTimeout();
+                    continue;
+                }
+                // whole milliseconds, rounded up so the deadline has passed on waking
+                socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMillis(waitNanos + 999999)));
+
                 DatagramPacket receivePacket = new DatagramPacket(rcvBuffer, rcvBuffer.length);
-                socket.receive(receivePacket);
+                try {
+                    socket.receive(receivePacket);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
 
                 // validate ack
                 if (StopAndWaitUtils.isPacketCorrupt(receivePacket)) {
+                    metrics.checksumFailure();
                     continue;
                 }
 
@@ -82,7 +109,21 @@ public class StopAndWaitSender {
 
                 if ((int) header == seqNum) {
                     gotAck = true;
-                    timerTask.cancel();
+
+                    // Karn's rule: only time packets that were sent exactly once
+                    if (!lastRetransmitted) {
+                        long rtt = System.nanoTime() - lastSendTime;
+                        rttEstimator.addSample(rtt);
+                        metrics.rttSample(rtt, rttEstimator.getTimeoutNanos());
+                    } else {
+                        rttEstimator.clearBackoff();
+                    }
+                    metrics.packetsAcked(1, bytesRead);
+                    metrics.windowOccupancy(0);
+
+                } else {
+                    // the previous packet's ack again
+                    metrics.duplicateAck();
                 }
             } while(!gotAck);
 
@@ -100,9 +141,12 @@ public class StopAndWaitSender {
         System.out.println("File Name: " + fileName);
         System.out.println("File Size: " + fileSize + " bytes");
         System.out.println("Transfer Time: " + Long.toString(duration) + " nanoseconds");
-        System.out.println("Timeout Length: " + TIMEOUT + " milliseconds");
+        System.out.println("Timeout Length: " + rttEstimator.getTimeoutMillis() + " milliseconds");
+        System.out.println("Packets Sent: " + metrics.getPacketsSent() + " (" + metrics.getPacketsRetransmitted() + " retransmitted, "
+                + metrics.getTimeouts() + " timeouts)");
+        System.out.println("RTT p50/p99: " + metrics.getRttP50Micros() + "/" + metrics.getRttP99Micros() + " microseconds");
         System.out.println();
-        System.out.println(TIMEOUT + "," + fileSize + "," + "" + "," + Long.toString(duration));
+        System.out.println(rttEstimator.getTimeoutMillis() + "," + fileSize + "," + "" + "," + Long.toString(duration));
     }
 
     private DatagramPacket makePacket(int packetNumber, byte[] buffer, int numberOfBytes, boolean endOfFile) {
@@ -123,42 +167,43 @@ public class StopAndWaitSender {
         return new DatagramPacket(data, data.length, receiverAddress, receiverPort);
     }
 
-    private void startTimer() {
-        // set timer
-        timerTask = new TimerTask() {
-            @Override
-            public void run() {
-                try {
-                    // resend packet
-                    socket.send(lastPacket);
-                } catch (IOException e) {
-                    // handle error
-                    System.err.println(e.getMessage());
-                }
-                // reset timer
-                startTimer();
-            }
-        };
-        timer.schedule(timerTask, TIMEOUT);
+    private void onTimeout() throws IOException {
+        // resend packet
+        lastRetransmitted = true;
+        socket.send(lastPacket);
+        metrics.packetsRetransmitted(1);
+
+        // back off and reset timer
+        rttEstimator.onTimeout();
+        metrics.timeout(rttEstimator.getTimeoutNanos());
+        retransmitDeadline = System.nanoTime() + rttEstimator.getTimeoutNanos();
     }
 
     public static void main(String[] argv) throws Exception {
-        if (argv.length != 4) {
+        if (argv.length < 4) {
             System.out.println("Usage:");
-            System.out.println("java StopAndWaitSender <0> <1> <2> <3>");
+            System.out.println("java StopAndWaitSender <0> <1> <2> <3> [options]");
             System.out.println("0: host address of the receiver");
             System.out.println("1: UDP port number used by the receiver to receive data from the sender");
             System.out.println("2: UDP port number used by the sender to receive ACKs from the receiver");
             System.out.println("3: Name of the file to be transferred");
+            System.out.println("options:");
+            System.out.println("  metrics=<file>     write live transfer metrics as JSON lines, - for stderr");
+            System.out.println("  metrics-every=<ms> how often to write metrics, default 1000");
             System.exit(1);
         }
 
+        Map<String, String> options = GoBackNUtils.parseOptions(argv, 4);
+
         int recPort = Integer.parseInt(argv[1]);
         int senderPort = Integer.parseInt(argv[2]);
 
         StopAndWaitSender swSender = new StopAndWaitSender(InetAddress.getByName(argv[0]), recPort, senderPort);
 
+        swSender.getMetrics().configure(options);
+
         swSender.sendFile(argv[3]);
+        swSender.getMetrics().close();
         System.exit(0);
     }
 }
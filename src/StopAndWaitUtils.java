@@ -1,5 +1,4 @@
 import java.net.DatagramPacket;
-import java.util.Arrays;
 
 /**
  * Created by jmuia on 2016-03-08.
@@ -9,9 +8,13 @@ public class StopAndWaitUtils {
     public static final int MAX_PACKET_SIZE = 128;
 
     public static byte checksum(byte[] data) {
+        return checksum(data, 0, data.length);
+    }
+
+    public static byte checksum(byte[] data, int offset, int length) {
         byte checksum = 0;
-        for (byte b: data) {
-            checksum += (0xFF & b);
+        for (int i = offset; i < offset + length; i++) {
+            checksum += (0xFF & data[i]);
         }
         return (byte) ~checksum;
     }
@@ -34,10 +37,14 @@ public class StopAndWaitUtils {
             return true;
         }
 
-        byte[] data = Arrays.copyOfRange(packet.getData(), 0, dataLength);
+        // verify in place rather than copying the packet out of the receive buffer
+        byte[] data = packet.getData();
         byte checksum = data[1];
+        data[1] = 0;
+        byte calculatedChecksum = checksum(data, 0, dataLength);
+        data[1] = checksum;
 
-        if (checksum != StopAndWaitUtils.checksumFromPacketData(data)) {
+        if (checksum != calculatedChecksum) {
             // System.out.println("Dropping corrupt packet: checksum not same.");
             return true;
         }
@@ -0,0 +1,118 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads a stream of unknown length on its own thread into a fixed set of
+ * recycled buffers, so that a sender can take whatever has arrived without
+ * blocking while it has packets in flight. Once every buffer is full the
+ * reading stops, which pushes back on whoever writes the stream.
+ */
+public class StreamSource implements Closeable {
+    // queued after the last data, never recycled
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final BlockingQueue<ByteBuffer> free;
+    private final BlockingQueue<ByteBuffer> filled;
+    private final Thread reader;
+    private volatile IOException failure;
+
+    // partly taken, owned by the caller of read
+    private ByteBuffer current;
+
+    public StreamSource(final ReadableByteChannel source, int bufferSize, int buffers) {
+        free = new ArrayBlockingQueue<>(buffers);
+        filled = new ArrayBlockingQueue<>(buffers + 1);
+        for (int i = 0; i < buffers; i++) {
+            free.add(ByteBuffer.allocate(bufferSize));
+        }
+
+        reader = new Thread(() -> {
+            try {
+                while (true) {
+                    ByteBuffer buffer = free.take();
+                    buffer.clear();
+                    if (source.read(buffer) == -1) {
+                        break;
+                    }
+                    buffer.flip();
+                    filled.put(buffer);
+                }
+            } catch (IOException e) {
+                failure = e;
+            } catch (InterruptedException e) {
+                // closed
+            }
+            // there is always room: at most every buffer is queued ahead of it
+            filled.offer(END);
+        }, "stream-source");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Copies up to {@code length} bytes of the stream into {@code data}.
+     *
+     * @param block wait for at least one byte if none has arrived yet
+     * @return the number of bytes copied, 0 if none had arrived and
+     * {@code block} is false, or -1 at the end of the stream
+     */
+    public int read(byte[] data, int offset, int length, boolean block) throws IOException {
+        int copied = 0;
+        while (copied < length) {
+            if (current == null) {
+                current = copied == 0 && block ? take() : filled.poll();
+                if (current == null) {
+                    break;
+                }
+            }
+
+            if (current == END) {
+                if (copied > 0) {
+                    // report the end on the next call
+                    break;
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                return -1;
+            }
+
+            int chunk = Math.min(length - copied, current.remaining());
+            current.get(data, offset + copied, chunk);
+            copied += chunk;
+            if (!current.hasRemaining()) {
+                free.offer(current);
+                current = null;
+            }
+        }
+        return copied;
+    }
+
+    /**
+     * @return whether {@link #read} has data or the end of the stream to
+     * return straight away
+     */
+    public boolean isReady() {
+        return current != null || !filled.isEmpty();
+    }
+
+    private ByteBuffer take() throws IOException {
+        try {
+            return filled.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted waiting for stream data");
+        }
+    }
+
+    /**
+     * Stops the reader thread, which also closes an interruptible source.
+     */
+    public void close() {
+        reader.interrupt();
+    }
+}
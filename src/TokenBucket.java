@@ -0,0 +1,57 @@
+/**
+ * Token bucket for pacing packets out. Tokens are bytes, earned at a steady
+ * rate up to the burst size. A packet may spend more than there are, which
+ * leaves a debt the next ones wait out, so one is never held back halfway.
+ * Not thread safe; owned by the sending thread.
+ */
+public class TokenBucket {
+    private final long burstBytes;
+    private double bytesPerNano;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    /**
+     * @param bytesPerSecond the rate, or infinity for none until {@link #setRate}
+     */
+    public TokenBucket(double bytesPerSecond, long burstBytes) {
+        this.burstBytes = burstBytes;
+        this.bytesPerNano = bytesPerSecond / 1e9;
+        this.tokens = burstBytes;
+    }
+
+    public void setRate(double bytesPerSecond) {
+        refill(System.nanoTime());
+        bytesPerNano = bytesPerSecond / 1e9;
+    }
+
+    public double getBytesPerSecond() {
+        return bytesPerNano * 1e9;
+    }
+
+    public long getBurstBytes() {
+        return burstBytes;
+    }
+
+    /**
+     * @return how long until {@code bytes} can be sent, 0 if they can now
+     */
+    public long nanosUntil(int bytes) {
+        refill(System.nanoTime());
+        // a packet larger than the burst waits for a full bucket, not forever
+        double missing = Math.min(bytes, burstBytes) - tokens;
+        return missing <= 0 ? 0 : (long) Math.ceil(missing / bytesPerNano);
+    }
+
+    public void take(int bytes) {
+        tokens -= bytes;
+    }
+
+    private void refill(long now) {
+        if (Double.isInfinite(bytesPerNano)) {
+            tokens = burstBytes;
+        } else {
+            tokens = Math.min(burstBytes, tokens + (now - lastRefill) * bytesPerNano);
+        }
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,353 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Live counters for one side of a transfer, updated as packets go by. Senders
+ * count data packets out and acks in; receivers count data packets in and
+ * acks out. Readable while the transfer runs through JMX, once registered as
+ * {@code rdt:type=TransferMetrics,name=<name>}, and as one JSON object per
+ * line written every interval by {@link #startDump}.
+ *
+ * Recording never locks or allocates, so it is safe on the per-packet path.
+ */
+public class TransferMetrics implements TransferMetricsMXBean {
+    public static final long DEFAULT_DUMP_INTERVAL_MILLIS = 1000;
+
+    private final String name;
+
+    private final LongAdder packetsSent = new LongAdder();
+    private final LongAdder packetsRetransmitted = new LongAdder();
+    private final LongAdder packetsAcked = new LongAdder();
+    private final LongAdder packetsReceived = new LongAdder();
+    private final LongAdder packetsOutOfOrder = new LongAdder();
+    private final LongAdder packetsDropped = new LongAdder();
+    private final LongAdder packetsRecovered = new LongAdder();
+    private final LongAdder duplicateAcks = new LongAdder();
+    private final LongAdder outOfOrderAcks = new LongAdder();
+    private final LongAdder checksumFailures = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder bytesDelivered = new LongAdder();
+    private final LatencyHistogram rtt = new LatencyHistogram();
+
+    private volatile long startNanos = System.nanoTime();
+    private volatile long lastProgressNanos = startNanos;
+    private volatile long timeoutNanos;
+    private volatile long windowOccupancy;
+    private volatile long maxWindowOccupancy;
+
+    private ObjectName objectName;
+    private ScheduledExecutorService dumper;
+    private PrintStream dumpStream;
+    private long lastDumpNanos;
+    private long lastDumpBytes;
+
+    public TransferMetrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Zeroes everything at the start of a transfer.
+     */
+    public void start() {
+        for (LongAdder counter : new LongAdder[] { packetsSent, packetsRetransmitted, packetsAcked, packetsReceived,
+                packetsOutOfOrder, packetsDropped, packetsRecovered, duplicateAcks, outOfOrderAcks, checksumFailures, timeouts, bytesDelivered }) {
+            counter.reset();
+        }
+        rtt.reset();
+        windowOccupancy = 0;
+        maxWindowOccupancy = 0;
+        startNanos = System.nanoTime();
+        lastProgressNanos = startNanos;
+        synchronized (this) {
+            lastDumpNanos = startNanos;
+            lastDumpBytes = 0;
+        }
+    }
+
+    public void packetSent() {
+        packetsSent.increment();
+    }
+
+    public void packetsRetransmitted(int count) {
+        packetsSent.add(count);
+        packetsRetransmitted.add(count);
+    }
+
+    public void packetsAcked(int count, long bytes) {
+        packetsAcked.add(count);
+        bytesDelivered.add(bytes);
+        lastProgressNanos = System.nanoTime();
+    }
+
+    public void packetReceived() {
+        packetsReceived.increment();
+    }
+
+    public void packetDelivered(int bytes) {
+        bytesDelivered.add(bytes);
+        lastProgressNanos = System.nanoTime();
+    }
+
+    public void packetOutOfOrder() {
+        packetsOutOfOrder.increment();
+    }
+
+    public void packetDropped() {
+        packetsDropped.increment();
+    }
+
+    public void packetRecovered() {
+        packetsRecovered.increment();
+    }
+
+    public void duplicateAck() {
+        duplicateAcks.increment();
+    }
+
+    public void outOfOrderAck() {
+        outOfOrderAcks.increment();
+    }
+
+    public void checksumFailure() {
+        checksumFailures.increment();
+    }
+
+    public void timeout(long nextTimeoutNanos) {
+        timeouts.increment();
+        timeoutNanos = nextTimeoutNanos;
+    }
+
+    public void rttSample(long rttNanos, long nextTimeoutNanos) {
+        rtt.recordNanos(rttNanos);
+        timeoutNanos = nextTimeoutNanos;
+    }
+
+    /**
+     * Packets sent but not yet acked. Only the sending thread may call this.
+     */
+    public void windowOccupancy(int packets) {
+        windowOccupancy = packets;
+        if (packets > maxWindowOccupancy) {
+            maxWindowOccupancy = packets;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getElapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    public long getMillisSinceProgress() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastProgressNanos);
+    }
+
+    public long getPacketsSent() {
+        return packetsSent.sum();
+    }
+
+    public long getPacketsRetransmitted() {
+        return packetsRetransmitted.sum();
+    }
+
+    public long getPacketsAcked() {
+        return packetsAcked.sum();
+    }
+
+    public long getPacketsReceived() {
+        return packetsReceived.sum();
+    }
+
+    public long getPacketsOutOfOrder() {
+        return packetsOutOfOrder.sum();
+    }
+
+    public long getPacketsDropped() {
+        return packetsDropped.sum();
+    }
+
+    public long getPacketsRecovered() {
+        return packetsRecovered.sum();
+    }
+
+    public long getDuplicateAcks() {
+        return duplicateAcks.sum();
+    }
+
+    public long getOutOfOrderAcks() {
+        return outOfOrderAcks.sum();
+    }
+
+    public long getChecksumFailures() {
+        return checksumFailures.sum();
+    }
+
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    public long getTimeoutMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(timeoutNanos);
+    }
+
+    public long getBytesDelivered() {
+        return bytesDelivered.sum();
+    }
+
+    public long getGoodputBitsPerSecond() {
+        return bitsPerSecond(bytesDelivered.sum(), System.nanoTime() - startNanos);
+    }
+
+    public long getWindowOccupancy() {
+        return windowOccupancy;
+    }
+
+    public long getMaxWindowOccupancy() {
+        return maxWindowOccupancy;
+    }
+
+    public long getRttSamples() {
+        return rtt.getCount();
+    }
+
+    public long getRttP50Micros() {
+        return rtt.percentileMicros(0.5);
+    }
+
+    public long getRttP90Micros() {
+        return rtt.percentileMicros(0.9);
+    }
+
+    public long getRttP99Micros() {
+        return rtt.percentileMicros(0.99);
+    }
+
+    public long getRttMaxMicros() {
+        return rtt.getMaxMicros();
+    }
+
+    /**
+     * Registers with the platform MBean server, replacing an earlier transfer
+     * of the same name.
+     */
+    public void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            objectName = new ObjectName("rdt:type=TransferMetrics,name=" + ObjectName.quote(name));
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register " + name, e);
+        }
+    }
+
+    /**
+     * Writes a JSON line to {@code fileName} every {@code intervalMillis}, and
+     * a last one on {@link #close()}. "-" writes to standard error, keeping
+     * standard output for the summary.
+     */
+    public void startDump(String fileName, long intervalMillis) throws IOException {
+        dumpStream = fileName.equals("-") ? System.err : new PrintStream(new FileOutputStream(fileName), true);
+        dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleAtFixedRate(this::dump, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void dump() {
+        dumpStream.println(toJson());
+    }
+
+    /**
+     * The counters as one line of JSON. Goodput is given both since the start
+     * and since the previous line, which shows a stall as it happens.
+     */
+    public synchronized String toJson() {
+        long now = System.nanoTime();
+        long bytes = bytesDelivered.sum();
+        long intervalGoodput = bitsPerSecond(bytes - lastDumpBytes, now - lastDumpNanos);
+        lastDumpNanos = now;
+        lastDumpBytes = bytes;
+
+        return "{\"name\":\"" + name + "\""
+                + ",\"elapsedMillis\":" + getElapsedMillis()
+                + ",\"millisSinceProgress\":" + getMillisSinceProgress()
+                + ",\"packetsSent\":" + getPacketsSent()
+                + ",\"packetsRetransmitted\":" + getPacketsRetransmitted()
+                + ",\"packetsAcked\":" + getPacketsAcked()
+                + ",\"packetsReceived\":" + getPacketsReceived()
+                + ",\"packetsOutOfOrder\":" + getPacketsOutOfOrder()
+                + ",\"packetsDropped\":" + getPacketsDropped()
+                + ",\"packetsRecovered\":" + getPacketsRecovered()
+                + ",\"duplicateAcks\":" + getDuplicateAcks()
+                + ",\"outOfOrderAcks\":" + getOutOfOrderAcks()
+                + ",\"checksumFailures\":" + getChecksumFailures()
+                + ",\"timeouts\":" + getTimeouts()
+                + ",\"timeoutMillis\":" + getTimeoutMillis()
+                + ",\"bytesDelivered\":" + bytes
+                + ",\"goodputBitsPerSecond\":" + getGoodputBitsPerSecond()
+                + ",\"intervalGoodputBitsPerSecond\":" + intervalGoodput
+                + ",\"windowOccupancy\":" + getWindowOccupancy()
+                + ",\"maxWindowOccupancy\":" + getMaxWindowOccupancy()
+                + ",\"rttSamples\":" + getRttSamples()
+                + ",\"rttP50Micros\":" + getRttP50Micros()
+                + ",\"rttP90Micros\":" + getRttP90Micros()
+                + ",\"rttP99Micros\":" + getRttP99Micros()
+                + ",\"rttMaxMicros\":" + getRttMaxMicros()
+                + "}";
+    }
+
+    /**
+     * Stops the dump after a final line and unregisters from JMX.
+     */
+    public void close() {
+        if (dumper != null) {
+            dumper.shutdownNow();
+            dump();
+            if (dumpStream != System.err) {
+                dumpStream.close();
+            }
+            dumper = null;
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException e) {
+                // already gone
+            }
+            objectName = null;
+        }
+    }
+
+    /**
+     * Applies the metrics= and metrics-every= options shared by every
+     * sender and receiver main, and registers with JMX.
+     */
+    public void configure(Map<String, String> options) throws IOException {
+        register();
+        if (options.containsKey("metrics")) {
+            long interval = Long.parseLong(options.getOrDefault("metrics-every", Long.toString(DEFAULT_DUMP_INTERVAL_MILLIS)));
+            startDump(options.get("metrics"), interval);
+        }
+    }
+
+    private static long bitsPerSecond(long bytes, long nanos) {
+        return nanos <= 0 ? 0 : (long) (bytes * 8e9 / nanos);
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * Management interface of {@link TransferMetrics}. Counters are totals since
+ * the transfer started; sender-only and receiver-only ones stay 0 on the
+ * other side.
+ */
+public interface TransferMetricsMXBean {
+
+    String getName();
+
+    long getElapsedMillis();
+
+    /**
+     * Time since the transfer last moved forward, i.e. since an ack slid the
+     * window or a receiver accepted a packet. Grows during a stall.
+     */
+    long getMillisSinceProgress();
+
+    long getPacketsSent();
+
+    long getPacketsRetransmitted();
+
+    long getPacketsAcked();
+
+    long getPacketsReceived();
+
+    long getPacketsOutOfOrder();
+
+    long getPacketsDropped();
+
+    /**
+     * Lost packets a receiver rebuilt from FEC parity instead of waiting for
+     * a retransmission.
+     */
+    long getPacketsRecovered();
+
+    long getDuplicateAcks();
+
+    long getOutOfOrderAcks();
+
+    long getChecksumFailures();
+
+    long getTimeouts();
+
+    long getTimeoutMillis();
+
+    long getBytesDelivered();
+
+    long getGoodputBitsPerSecond();
+
+    long getWindowOccupancy();
+
+    long getMaxWindowOccupancy();
+
+    long getRttSamples();
+
+    long getRttP50Micros();
+
+    long getRttP90Micros();
+
+    long getRttP99Micros();
+
+    long getRttMaxMicros();
+}
@@ -2,10 +2,13 @@ import os
 import subprocess
 from itertools import product
 
+# files sent back to back over one flow by the GoBackNSession method
+SESSION_FILES = 20
+
 
 def main():
 
-    methods = ["GoBackN", "StopAndWait"]
+    methods = ["GoBackN", "GoBackNChannel", "GoBackNSession", "SelectiveRepeat", "StopAndWait"]
     filenames = ["s_sm_file", "s_md_file", "s_lg_file"]
     reliability_numbers = [0, 10, 100]
     window_sizes = [10, 40, 80]
@@ -38,17 +41,33 @@ def main():
 
 
 def rec_process(m, rn):
+    if m == "GoBackNSession":
+        # one receiver for the whole session, writing each file into recdir
+        if not os.path.isdir("recdir"):
+            os.mkdir("recdir")
+        cmd = "java GoBackNReceiver localhost 5000 8000 {rn} recdir files header=wide".format(rn=rn).split(" ")
+        return subprocess.Popen(cmd)
+
     receiver_cmd = "java {method}Receiver localhost 5000 8000 {rn} recfile"
     cmd = receiver_cmd.format(method=m, rn=rn).split(" ")
     return subprocess.Popen(cmd)
 
 
 def snd_process(m, fn, ws):
+    if m == "GoBackNSession":
+        # the file SESSION_FILES times over one socket and window; sizes and times are totals
+        with open("session.list", "w") as names:
+            names.write((fn + "\n") * SESSION_FILES)
+        cmd = "java GoBackNSender localhost 8000 5000 @session.list {ws} header=wide".format(ws=ws).split(" ")
+        return subprocess.Popen(cmd, stdout=subprocess.PIPE)
+
     sender_cmd = "java {method}Sender localhost 8000 5000 {fn} {ws}"
     cmd = sender_cmd.format(method=m, fn=fn, ws=ws).split(" ")
 
     if m == "StopAndWait":
         cmd = cmd[:-1]
+    elif m == "SelectiveRepeat":
+        cmd[-1] = str(min(ws, 64))
 
     return subprocess.Popen(cmd, stdout=subprocess.PIPE)
 